@@ -0,0 +1,74 @@
+package tv.twitch;
+
+
+/**
+ * A pure Java stand in for the native core API.  It's used along with SimulatedStreamAPI and SimulatedChatAPI to run the controllers
+ * without the SDK library, which the standard core API loads as soon as it's created.
+ */
+public class SimulatedCoreAPI extends CoreAPI
+{
+    protected boolean m_Initialized = false;
+    protected MessageLevel m_TraceLevel = MessageLevel.TTV_ML_ERROR;
+
+    public SimulatedCoreAPI()
+    {
+    }
+
+    public boolean getIsInitialized()
+    {
+        return m_Initialized;
+    }
+
+    public MessageLevel getTraceLevel()
+    {
+        return m_TraceLevel;
+    }
+
+    @Override
+    public ErrorCode init(String clientId, String dllPath)
+    {
+        if (m_Initialized)
+        {
+            return ErrorCode.TTV_EC_ALREADY_INITIALIZED;
+        }
+
+        if (clientId == null || clientId.length() == 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_CLIENTID;
+        }
+
+        m_Initialized = true;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode shutdown()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_NOT_INITIALIZED;
+        }
+
+        m_Initialized = false;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode setTraceLevel(MessageLevel level)
+    {
+        m_TraceLevel = level;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode setTraceOutput(String outputFileName)
+    {
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public String errorToString(ErrorCode err)
+    {
+        return err == null ? "Unknown error" : err.name();
+    }
+}
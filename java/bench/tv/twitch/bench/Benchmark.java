@@ -0,0 +1,46 @@
+package tv.twitch.bench;
+
+
+/**
+ * A single benchmark run by the BenchmarkRunner.  The runner calls setup() once, then calls run() repeatedly to warm up and measure,
+ * and finally calls teardown().
+ */
+public abstract class Benchmark
+{
+    protected final String m_Name;
+    protected final int m_ItemsPerRun;
+
+    /**
+     * @param name The name to report the results under
+     * @param itemsPerRun The number of items, such as messages, processed by each call to run() so the cost per item can be reported
+     */
+    protected Benchmark(String name, int itemsPerRun)
+    {
+        m_Name = name;
+        m_ItemsPerRun = Math.max(1, itemsPerRun);
+    }
+
+    public String getName()
+    {
+        return m_Name;
+    }
+
+    public int getItemsPerRun()
+    {
+        return m_ItemsPerRun;
+    }
+
+    public void setup() throws Exception
+    {
+    }
+
+    /**
+     * Performs one operation.
+     * @return A value derived from the work done so the JIT can't discard it
+     */
+    public abstract long run() throws Exception;
+
+    public void teardown() throws Exception
+    {
+    }
+}
@@ -0,0 +1,308 @@
+package tv.twitch.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import tv.twitch.broadcast.BroadcastBenchmarks;
+import tv.twitch.chat.ChatBenchmarks;
+
+
+/**
+ * Runs the benchmarks of the broadcast and chat paths which the game's frame budget depends on.  The benchmarks use the simulated
+ * core, stream and chat APIs kept alongside them in the bench tree so they run without the SDK library.
+ *
+ * Each benchmark is warmed up and then measured over several iterations of a fixed duration.  The mean time per operation is reported
+ * along with the fastest and slowest iteration.  The results can be written to a CSV file and compared against a previous run, in which
+ * case the runner fails if any benchmark got slower by more than the threshold.
+ *
+ * Build and run from the java directory:
+ *
+ *   javac -cp TwitchJava.jar -d bench-out $(find src/tv/twitch/broadcast src/tv/twitch/chat bench -name '*.java')
+ *   java -cp TwitchJava.jar:bench-out tv.twitch.bench.BenchmarkRunner [options]
+ *
+ * Options:
+ *   --filter text         Only run the benchmarks whose names contain the text
+ *   --warmup ms           The time spent warming up each benchmark (2000)
+ *   --measure ms          The duration of each measured iteration (1000)
+ *   --iterations n        The number of measured iterations (5)
+ *   --csv file            Writes the results to the file
+ *   --baseline file       Compares the results with a file written by --csv
+ *   --threshold percent   The slowdown from the baseline which counts as a regression (10)
+ */
+public class BenchmarkRunner
+{
+    public static class Result
+    {
+        public final String name;
+        public final int itemsPerRun;
+        public final double meanNanosPerRun;
+        public final double minNanosPerRun;
+        public final double maxNanosPerRun;
+
+        public Result(String name, int itemsPerRun, double meanNanosPerRun, double minNanosPerRun, double maxNanosPerRun)
+        {
+            this.name = name;
+            this.itemsPerRun = itemsPerRun;
+            this.meanNanosPerRun = meanNanosPerRun;
+            this.minNanosPerRun = minNanosPerRun;
+            this.maxNanosPerRun = maxNanosPerRun;
+        }
+    }
+
+    protected long m_WarmupMilliseconds = 2000;
+    protected long m_MeasureMilliseconds = 1000;
+    protected int m_Iterations = 5;
+
+    protected static volatile long s_Sink = 0;     //!< Keeps the results of the benchmarks alive.
+
+    public BenchmarkRunner()
+    {
+    }
+
+    public void setWarmupMilliseconds(long value)
+    {
+        m_WarmupMilliseconds = Math.max(0, value);
+    }
+
+    public void setMeasureMilliseconds(long value)
+    {
+        m_MeasureMilliseconds = Math.max(1, value);
+    }
+
+    public void setIterations(int value)
+    {
+        m_Iterations = Math.max(1, value);
+    }
+
+    public Result run(Benchmark benchmark) throws Exception
+    {
+        benchmark.setup();
+        try
+        {
+            runFor(benchmark, m_WarmupMilliseconds);
+
+            double total = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+
+            for (int i = 0; i < m_Iterations; ++i)
+            {
+                double nanosPerRun = runFor(benchmark, m_MeasureMilliseconds);
+
+                total += nanosPerRun;
+                min = Math.min(min, nanosPerRun);
+                max = Math.max(max, nanosPerRun);
+            }
+
+            return new Result(benchmark.getName(), benchmark.getItemsPerRun(), total / m_Iterations, min, max);
+        }
+        finally
+        {
+            benchmark.teardown();
+        }
+    }
+
+    /**
+     * Calls the benchmark repeatedly for the given time.
+     * @return The average time per call
+     */
+    protected double runFor(Benchmark benchmark, long milliseconds) throws Exception
+    {
+        long sink = 0;
+        long runs = 0;
+
+        long start = System.nanoTime();
+        long end = start + milliseconds * 1000000L;
+        long now = start;
+
+        // always make at least one call so slow benchmarks still report
+        do
+        {
+            sink += benchmark.run();
+            runs++;
+            now = System.nanoTime();
+        }
+        while (now - end < 0);
+
+        s_Sink += sink;
+        return (double)(now - start) / runs;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        // the simulated stream API allocates its frame buffers through NativeMemory
+        System.setProperty("tv.twitch.broadcast.nativeMemory", "true");
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        String filter = null;
+        String csvPath = null;
+        String baselinePath = null;
+        double threshold = 10;
+
+        for (int i = 0; i < args.length; ++i)
+        {
+            String arg = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : null;
+
+            if (value == null)
+            {
+                usage(String.format("Missing value for %s", arg));
+                return;
+            }
+
+            if (arg.equals("--filter"))
+            {
+                filter = value;
+            }
+            else if (arg.equals("--warmup"))
+            {
+                runner.setWarmupMilliseconds(Long.parseLong(value));
+            }
+            else if (arg.equals("--measure"))
+            {
+                runner.setMeasureMilliseconds(Long.parseLong(value));
+            }
+            else if (arg.equals("--iterations"))
+            {
+                runner.setIterations(Integer.parseInt(value));
+            }
+            else if (arg.equals("--csv"))
+            {
+                csvPath = value;
+            }
+            else if (arg.equals("--baseline"))
+            {
+                baselinePath = value;
+            }
+            else if (arg.equals("--threshold"))
+            {
+                threshold = Double.parseDouble(value);
+            }
+            else
+            {
+                usage(String.format("Unknown option %s", arg));
+                return;
+            }
+
+            i++;
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.addAll(BroadcastBenchmarks.createAll());
+        benchmarks.addAll(ChatBenchmarks.createAll());
+
+        List<Result> results = new ArrayList<Result>();
+
+        System.out.println(String.format("%-40s %14s %14s %14s %12s", "benchmark", "mean ns/op", "min ns/op", "max ns/op", "ns/item"));
+        for (Benchmark benchmark : benchmarks)
+        {
+            if (filter != null && !benchmark.getName().contains(filter))
+            {
+                continue;
+            }
+
+            Result result = runner.run(benchmark);
+            results.add(result);
+
+            System.out.println(String.format("%-40s %14.1f %14.1f %14.1f %12.1f",
+                result.name, result.meanNanosPerRun, result.minNanosPerRun, result.maxNanosPerRun, result.meanNanosPerRun / result.itemsPerRun));
+        }
+
+        if (csvPath != null)
+        {
+            writeCsv(csvPath, results);
+        }
+
+        if (baselinePath != null && !compare(readCsv(baselinePath), results, threshold))
+        {
+            System.exit(1);
+        }
+    }
+
+    protected static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Options: --filter text --warmup ms --measure ms --iterations n --csv file --baseline file --threshold percent");
+        System.exit(2);
+    }
+
+    protected static void writeCsv(String path, List<Result> results) throws IOException
+    {
+        PrintWriter writer = new PrintWriter(new FileWriter(path));
+        try
+        {
+            writer.println("benchmark,items_per_op,mean_ns_per_op,min_ns_per_op,max_ns_per_op");
+            for (Result result : results)
+            {
+                writer.println(String.format("%s,%d,%.1f,%.1f,%.1f", result.name, result.itemsPerRun, result.meanNanosPerRun, result.minNanosPerRun, result.maxNanosPerRun));
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the mean time per operation of each benchmark from a file written by writeCsv().
+     */
+    protected static HashMap<String, Double> readCsv(String path) throws IOException
+    {
+        HashMap<String, Double> means = new HashMap<String, Double>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try
+        {
+            // skip the header
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split(",");
+                if (fields.length >= 3)
+                {
+                    means.put(fields[0], Double.parseDouble(fields[2]));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return means;
+    }
+
+    /**
+     * Reports the benchmarks which are slower than the baseline by more than the threshold.
+     * @return Whether or not all the benchmarks are within the threshold
+     */
+    protected static boolean compare(HashMap<String, Double> baseline, List<Result> results, double thresholdPercent)
+    {
+        boolean passed = true;
+
+        System.out.println();
+        for (Result result : results)
+        {
+            Double previous = baseline.get(result.name);
+            if (previous == null || previous <= 0)
+            {
+                System.out.println(String.format("%-40s no baseline", result.name));
+                continue;
+            }
+
+            double change = (result.meanNanosPerRun - previous) * 100 / previous;
+            boolean regressed = change > thresholdPercent;
+
+            System.out.println(String.format("%-40s %+8.1f%%%s", result.name, change, regressed ? "  REGRESSION" : ""));
+            passed &= !regressed;
+        }
+
+        return passed;
+    }
+}
@@ -0,0 +1,281 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import tv.twitch.SimulatedCoreAPI;
+import tv.twitch.bench.Benchmark;
+
+
+/**
+ * Benchmarks of the per frame broadcast paths, run against the SimulatedStreamAPI with encoding and sending made instant so only the
+ * cost of the Java side is measured.
+ */
+public final class BroadcastBenchmarks
+{
+    /**
+     * A frame taken from the pool, submitted and then unlocked again by the next update.
+     */
+    public static class FrameRoundTrip extends Benchmark
+    {
+        protected BroadcastController m_Controller;
+
+        public FrameRoundTrip()
+        {
+            super("broadcast.frame-round-trip", 1);
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            m_Controller = startBroadcasting();
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            FrameBuffer buffer = m_Controller.getNextFreeBuffer();
+            if (buffer != null)
+            {
+                m_Controller.submitFrame(buffer);
+            }
+
+            m_Controller.update();
+
+            return buffer == null ? 0 : buffer.getAddress();
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            stopBroadcasting(m_Controller);
+        }
+    }
+
+    /**
+     * The SDK handing a buffer back through bufferUnlockCallback, which finds the buffer's slot in the pool by address.
+     */
+    public static class BufferUnlock extends Benchmark
+    {
+        protected BroadcastController m_Controller;
+        protected FrameBufferPool m_Pool;
+
+        public BufferUnlock()
+        {
+            super("broadcast.buffer-unlock", 1);
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            m_Controller = startBroadcasting();
+            m_Pool = m_Controller.getFrameBufferPool();
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            FrameBuffer buffer = m_Pool.acquire();
+            if (buffer == null)
+            {
+                return 0;
+            }
+
+            m_Controller.streamCallbacks.bufferUnlockCallback(buffer.getAddress());
+            return buffer.getAddress();
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            stopBroadcasting(m_Controller);
+        }
+    }
+
+    /**
+     * FrameBuffer.lookupBuffer() with the given number of buffers allocated.
+     */
+    public static class BufferLookup extends Benchmark
+    {
+        protected final int m_NumBuffers;
+        protected FrameBuffer[] m_Buffers;
+        protected int m_Next = 0;
+
+        public BufferLookup(int numBuffers)
+        {
+            super(String.format("broadcast.buffer-lookup-%d", numBuffers), 1);
+            m_NumBuffers = numBuffers;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            Stream stream = new Stream(new SimulatedStreamAPI());
+
+            m_Buffers = new FrameBuffer[m_NumBuffers];
+            for (int i = 0; i < m_Buffers.length; ++i)
+            {
+                m_Buffers[i] = stream.allocateFrameBuffer(1280 * 720 * 4);
+            }
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            long address = m_Buffers[m_Next].getAddress();
+            m_Next = (m_Next + 1) % m_Buffers.length;
+
+            return FrameBuffer.lookupBuffer(address).getSize();
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            for (FrameBuffer buffer : m_Buffers)
+            {
+                buffer.free();
+            }
+        }
+    }
+
+    /**
+     * Blending a static chat overlay and a webcam into a 720p frame.  The chat is mostly translucent background with opaque text and
+     * the webcam is opaque.
+     */
+    public static class Composite extends Benchmark
+    {
+        protected final int m_NumThreads;
+        protected FrameCompositor m_Compositor;
+        protected ByteBuffer m_Frame;
+
+        public Composite(int numThreads)
+        {
+            super(String.format("broadcast.composite-720p-%d-threads", numThreads), 1);
+            m_NumThreads = numThreads;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            m_Frame = ByteBuffer.allocateDirect(1280 * 720 * 4);
+
+            Random random = new Random(1);
+
+            FrameCompositor.Layer chat = new FrameCompositor.Layer(400, 720);
+            int[] pixels = new int[400 * 720];
+            for (int i = 0; i < pixels.length; ++i)
+            {
+                pixels[i] = random.nextInt(8) == 0 ? 0xFFFFFFFF : 0x80000000;
+            }
+            chat.setPixels(pixels, 0, 400);
+            chat.setPosition(880, 0);
+
+            FrameCompositor.Layer webcam = new FrameCompositor.Layer(320, 240);
+            pixels = new int[320 * 240];
+            for (int i = 0; i < pixels.length; ++i)
+            {
+                pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            webcam.setPixels(pixels, 0, 320);
+            webcam.setPosition(16, 464);
+
+            m_Compositor = new FrameCompositor();
+            m_Compositor.setNumThreads(m_NumThreads);
+            m_Compositor.addLayer(chat);
+            m_Compositor.addLayer(webcam);
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            m_Compositor.composite(m_Frame, 1280, 720, PixelFormat.TTV_PF_BGRA, true);
+            return m_Compositor.getNumFramesComposited();
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            m_Compositor.shutdown();
+        }
+    }
+
+    private BroadcastBenchmarks()
+    {
+    }
+
+    public static List<Benchmark> createAll()
+    {
+        List<Benchmark> list = new ArrayList<Benchmark>();
+        list.add(new FrameRoundTrip());
+        list.add(new BufferUnlock());
+        list.add(new BufferLookup(8));
+        list.add(new BufferLookup(64));
+        list.add(new Composite(1));
+        list.add(new Composite(4));
+
+        return list;
+    }
+
+    /**
+     * Brings up a controller which is broadcasting to a simulated server with unlimited bandwidth.
+     */
+    protected static BroadcastController startBroadcasting() throws InterruptedException
+    {
+        SimulatedStreamAPI api = new SimulatedStreamAPI();
+        api.setApiLatencyMilliseconds(0);
+        api.setRTMPStateIntervalMilliseconds(0);
+        api.setEncodeLatencyMilliseconds(0);
+        api.setUplinkKbps(Integer.MAX_VALUE / 1000);
+        api.setMaxSendBacklogMilliseconds(1000000000L);     // frames are submitted far faster than real time so never let them back up
+
+        BroadcastController controller = new BroadcastController(new SimulatedCoreAPI(), api);
+        controller.setClientId("benchmark");
+
+        if (!controller.initialize())
+        {
+            throw new IllegalStateException("Unable to initialize the broadcast controller");
+        }
+
+        controller.requestAuthToken("benchmark", "benchmark");
+        waitFor(controller, BroadcastController.BroadcastState.ReadyToBroadcast);
+
+        if (!controller.startBroadcasting(controller.getRecommendedVideoParams(1280, 720, 30)))
+        {
+            throw new IllegalStateException("Unable to start broadcasting");
+        }
+        waitFor(controller, BroadcastController.BroadcastState.Broadcasting);
+
+        return controller;
+    }
+
+    protected static void stopBroadcasting(BroadcastController controller) throws InterruptedException
+    {
+        if (controller == null)
+        {
+            return;
+        }
+
+        controller.stopBroadcasting();
+        waitFor(controller, BroadcastController.BroadcastState.ReadyToBroadcast);
+
+        controller.shutdown();
+        controller.update();
+    }
+
+    protected static void waitFor(BroadcastController controller, BroadcastController.BroadcastState state) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (controller.getCurrentState() != state)
+        {
+            if (System.currentTimeMillis() > end)
+            {
+                throw new IllegalStateException(String.format("Timed out waiting for %s, the controller is %s", state, controller.getCurrentState()));
+            }
+
+            controller.update();
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,1075 @@
+package tv.twitch.broadcast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import tv.twitch.AuthToken;
+import tv.twitch.ErrorCode;
+
+
+/**
+ * A pure Java stand in for the native stream API so the BroadcastController and IngestTester can be run where the SDK library isn't
+ * available, such as on a headless build machine.  Nothing is encoded or sent anywhere.  Instead the simulator models the timing the
+ * controller sees from the real SDK:
+ *
+ * - Web API requests complete after a fixed latency and always succeed with made up data.
+ * - Starting a broadcast steps through the RTMP states at a fixed interval before the start callback fires.
+ * - Submitted frames are "encoded" one after another, each taking the encode latency, and their buffers are unlocked once done.
+ * - Encoded data is "sent" at the uplink bandwidth.  When the send backlog grows past its limit frames are dropped and submissions
+ *   return TTV_WRN_FRAMES_QUEUEING just like the real SDK on a congested connection.
+ *
+ * All callbacks are fired from pollTasks() and pollStats() like the native API.  The randomness used for the made up data is seeded so
+ * runs are repeatable.  Frame buffers are allocated in native memory so the capture paths which write to them directly can be exercised,
+ * which needs the system property tv.twitch.broadcast.nativeMemory set to true.
+ */
+public class SimulatedStreamAPI extends StreamAPI
+{
+    protected static class PendingFrame
+    {
+        public final long address;
+        public final long readyTime;
+
+        public PendingFrame(long address, long readyTime)
+        {
+            this.address = address;
+            this.readyTime = readyTime;
+        }
+    }
+
+    protected static class ScheduledCallback
+    {
+        public final long dueTime;
+        public final Runnable callback;
+
+        public ScheduledCallback(long dueTime, Runnable callback)
+        {
+            this.dueTime = dueTime;
+            this.callback = callback;
+        }
+    }
+
+    protected IStreamCallbacks m_StreamCallbacks = null;
+    protected IStatCallbacks m_StatCallbacks = null;
+
+    protected long m_ApiLatencyMilliseconds = 100;
+    protected long m_EncodeLatencyMilliseconds = 10;
+    protected long m_RTMPStateIntervalMilliseconds = 100;
+    protected int m_UplinkKbps = 5000;
+    protected HashMap<String, Integer> m_ServerUplinkKbps = new HashMap<String, Integer>();  //!< Uplink overrides by ingest server url.
+    protected long m_MaxSendBacklogMilliseconds = 3000;
+    protected int m_MaxQueuedFrames = 16;
+    protected ErrorCode m_StartError = null;        //!< The error to fail the next start with, if any.
+    protected IngestServer[] m_IngestServers;
+    protected Random m_Random = new Random(0);
+
+    protected ArrayList<ScheduledCallback> m_Scheduled = new ArrayList<ScheduledCallback>();
+    protected ArrayList<Runnable> m_Callbacks = new ArrayList<Runnable>();
+    protected HashSet<Long> m_AllocatedBuffers = new HashSet<Long>();
+    protected ArrayDeque<PendingFrame> m_EncodeQueue = new ArrayDeque<PendingFrame>();
+    protected EnumMap<AudioDeviceType, Float> m_Volumes = new EnumMap<AudioDeviceType, Float>(AudioDeviceType.class);
+
+    protected RTMPState m_RTMPState = RTMPState.Idle;
+    protected RTMPState m_ReportedRTMPState = RTMPState.Invalid;
+    protected long m_StateChangeTime = 0;
+    protected boolean m_StartAsync = false;
+    protected VideoParams m_VideoParams = null;
+    protected String m_ActiveServerUrl = null;
+    protected int m_ActiveUplinkKbps = 0;
+    protected long m_StartTime = 0;
+    protected long m_LastSendTime = 0;
+    protected double m_SendBacklogBytes = 0;
+    protected double m_TotalBytesSent = 0;
+    protected long m_NextSpanId = 1;
+
+    protected long m_NumFramesEncoded = 0;
+    protected long m_NumFramesDropped = 0;
+
+    public SimulatedStreamAPI()
+    {
+        m_IngestServers = new IngestServer[]
+        {
+            createIngestServer("Simulated Primary", "rtmp://primary.simulated/app/{stream_key}", true),
+            createIngestServer("Simulated Secondary", "rtmp://secondary.simulated/app/{stream_key}", false),
+            createIngestServer("Simulated Distant", "rtmp://distant.simulated/app/{stream_key}", false),
+        };
+
+        m_ServerUplinkKbps.put(m_IngestServers[2].serverUrl, 1200);
+    }
+
+    //region Properties
+
+    /**
+     * The time taken by the web API requests.
+     */
+    public synchronized long getApiLatencyMilliseconds()
+    {
+        return m_ApiLatencyMilliseconds;
+    }
+    public synchronized void setApiLatencyMilliseconds(long value)
+    {
+        m_ApiLatencyMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The time taken to encode each frame.  Frames are encoded one at a time.
+     */
+    public synchronized long getEncodeLatencyMilliseconds()
+    {
+        return m_EncodeLatencyMilliseconds;
+    }
+    public synchronized void setEncodeLatencyMilliseconds(long value)
+    {
+        m_EncodeLatencyMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The time spent in each RTMP state while connecting and shutting down.
+     */
+    public synchronized long getRTMPStateIntervalMilliseconds()
+    {
+        return m_RTMPStateIntervalMilliseconds;
+    }
+    public synchronized void setRTMPStateIntervalMilliseconds(long value)
+    {
+        m_RTMPStateIntervalMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The bandwidth available for sending to ingest servers without their own setting.
+     */
+    public synchronized int getUplinkKbps()
+    {
+        return m_UplinkKbps;
+    }
+    public synchronized void setUplinkKbps(int value)
+    {
+        m_UplinkKbps = Math.max(1, value);
+        m_ActiveUplinkKbps = getServerUplinkKbps(m_ActiveServerUrl);
+    }
+
+    /**
+     * Sets the bandwidth available when sending to the given ingest server.  This takes effect immediately so it can be used to
+     * simulate the connection degrading part way through a broadcast.
+     * @param serverUrl The url of the server
+     * @param kbps The bandwidth or 0 to use the default
+     */
+    public synchronized void setServerUplinkKbps(String serverUrl, int kbps)
+    {
+        if (kbps <= 0)
+        {
+            m_ServerUplinkKbps.remove(serverUrl);
+        }
+        else
+        {
+            m_ServerUplinkKbps.put(serverUrl, kbps);
+        }
+
+        m_ActiveUplinkKbps = getServerUplinkKbps(m_ActiveServerUrl);
+    }
+
+    /**
+     * The most encoded video, in milliseconds, which may be waiting to be sent before frames are dropped.
+     */
+    public synchronized long getMaxSendBacklogMilliseconds()
+    {
+        return m_MaxSendBacklogMilliseconds;
+    }
+    public synchronized void setMaxSendBacklogMilliseconds(long value)
+    {
+        m_MaxSendBacklogMilliseconds = Math.max(1, value);
+    }
+
+    /**
+     * The most frames which may be waiting to be encoded.  Submissions beyond this fail with TTV_EC_FRAME_QUEUE_FULL.
+     */
+    public synchronized int getMaxQueuedFrames()
+    {
+        return m_MaxQueuedFrames;
+    }
+    public synchronized void setMaxQueuedFrames(int value)
+    {
+        m_MaxQueuedFrames = Math.max(1, value);
+    }
+
+    /**
+     * Makes the next start fail with the given error once it has tried to connect.
+     */
+    public synchronized void setStartError(ErrorCode value)
+    {
+        m_StartError = value;
+    }
+
+    public synchronized IngestServer[] getIngestServers()
+    {
+        return m_IngestServers;
+    }
+    public synchronized void setIngestServers(IngestServer[] value)
+    {
+        m_IngestServers = value;
+    }
+
+    /**
+     * Reseeds the generator used for the made up data.
+     */
+    public synchronized void setSeed(long seed)
+    {
+        m_Random.setSeed(seed);
+    }
+
+    public synchronized RTMPState getRTMPState()
+    {
+        return m_RTMPState;
+    }
+
+    public synchronized long getTotalBytesSent()
+    {
+        return (long)m_TotalBytesSent;
+    }
+
+    public synchronized long getNumFramesEncoded()
+    {
+        return m_NumFramesEncoded;
+    }
+
+    /**
+     * The number of encoded frames dropped because the send backlog was full.
+     */
+    public synchronized long getNumFramesDropped()
+    {
+        return m_NumFramesDropped;
+    }
+
+    public synchronized int getNumAllocatedFrameBuffers()
+    {
+        return m_AllocatedBuffers.size();
+    }
+
+    //endregion
+
+    //region Callbacks
+
+    @Override
+    public synchronized void setStreamCallbacks(IStreamCallbacks callbacks)
+    {
+        m_StreamCallbacks = callbacks;
+    }
+
+    @Override
+    public synchronized IStreamCallbacks getStreamCallbacks()
+    {
+        return m_StreamCallbacks;
+    }
+
+    @Override
+    public synchronized void setStatCallbacks(IStatCallbacks callbacks)
+    {
+        m_StatCallbacks = callbacks;
+    }
+
+    @Override
+    public synchronized IStatCallbacks getStatCallbacks()
+    {
+        return m_StatCallbacks;
+    }
+
+    //endregion
+
+    //region Web API
+
+    @Override
+    public synchronized ErrorCode requestAuthToken(AuthParams authParams, HashSet<AuthFlag> flags)
+    {
+        final AuthToken token = new AuthToken();
+        token.data = String.format("simulated%08x", m_Random.nextInt());
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.requestAuthTokenCallback(ErrorCode.TTV_EC_SUCCESS, token);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode login(AuthToken authToken)
+    {
+        if (authToken == null || !authToken.getIsValid())
+        {
+            return ErrorCode.TTV_EC_INVALID_AUTHTOKEN;
+        }
+
+        final ChannelInfo info = new ChannelInfo();
+        info.name = "simulated";
+        info.displayName = "Simulated";
+        info.channelUrl = "http://www.twitch.tv/simulated";
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.loginCallback(ErrorCode.TTV_EC_SUCCESS, info);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getIngestServers(AuthToken authToken)
+    {
+        final IngestList list = new IngestList(m_IngestServers.clone());
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.getIngestServersCallback(ErrorCode.TTV_EC_SUCCESS, list);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getUserInfo(AuthToken authToken)
+    {
+        final UserInfo info = new UserInfo();
+        info.name = "simulated";
+        info.displayName = "Simulated";
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.getUserInfoCallback(ErrorCode.TTV_EC_SUCCESS, info);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getStreamInfo(AuthToken authToken, String channel)
+    {
+        final StreamInfo info = new StreamInfo();
+        info.streamId = m_StartTime;
+        info.viewers = m_RTMPState == RTMPState.SendVideo ? m_Random.nextInt(1000) : 0;
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.getStreamInfoCallback(ErrorCode.TTV_EC_SUCCESS, info);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode setStreamInfo(AuthToken authToken, String channel, StreamInfoForSetting streamInfoToSet)
+    {
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.setStreamInfoCallback(ErrorCode.TTV_EC_SUCCESS);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getArchivingState(AuthToken authToken)
+    {
+        final ArchivingState state = new ArchivingState();
+        state.recordingEnabled = false;
+        state.cureUrl = "";
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.getArchivingStateCallback(ErrorCode.TTV_EC_SUCCESS, state);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode runCommercial(AuthToken authToken)
+    {
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.runCommercialCallback(ErrorCode.TTV_EC_SUCCESS);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getGameNameList(String str)
+    {
+        final GameInfoList list = new GameInfoList();
+        list.list = new GameInfo[3];
+        for (int i = 0; i < list.list.length; ++i)
+        {
+            GameInfo info = new GameInfo();
+            info.id = i + 1;
+            info.name = String.format("%s %d", str, i + 1);
+            info.popularity = m_Random.nextInt(10000);
+            list.list[i] = info;
+        }
+
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.getGameNameListCallback(ErrorCode.TTV_EC_SUCCESS, list);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode sendActionMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.sendActionMetaDataCallback(ErrorCode.TTV_EC_SUCCESS);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized long sendStartSpanMetaData(AuthToken authToken, String name, long streamTime, String humanDescription, String data)
+    {
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.sendStartSpanMetaDataCallback(ErrorCode.TTV_EC_SUCCESS);
+                }
+            }
+        });
+
+        return m_NextSpanId++;
+    }
+
+    @Override
+    public synchronized ErrorCode sendEndSpanMetaData(AuthToken authToken, String name, long streamTime, long sequenceId, String humanDescription, String data)
+    {
+        schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.sendEndSpanMetaDataCallback(ErrorCode.TTV_EC_SUCCESS);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Settings
+
+    @Override
+    public synchronized ErrorCode setVolume(AudioDeviceType device, float volume)
+    {
+        m_Volumes.put(device, volume);
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized float getVolume(AudioDeviceType device)
+    {
+        Float volume = m_Volumes.get(device);
+        return volume == null ? 1.0f : volume;
+    }
+
+    @Override
+    public ErrorCode getDefaultParams(VideoParams videoParams)
+    {
+        videoParams.outputWidth = 1280;
+        videoParams.outputHeight = 720;
+        videoParams.targetFps = 30;
+        videoParams.maxKbps = 2000;
+        videoParams.pixelFormat = PixelFormat.TTV_PF_BGRA;
+        videoParams.encodingCpuUsage = EncodingCpuUsage.TTV_ECU_HIGH;
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public int[] getMaxResolution(int maxKbps, int frameRate, float bitsPerPixel, float aspectRatio)
+    {
+        // the number of pixels which can be encoded in the bitrate, rounded down to a resolution the encoder accepts
+        double pixels = maxKbps * 1000.0 / (Math.max(1, frameRate) * bitsPerPixel);
+        int height = (int)Math.sqrt(pixels / aspectRatio);
+        int width = (int)(height * aspectRatio);
+
+        width = Math.max(32, width - width % 32);
+        height = Math.max(16, height - height % 16);
+
+        return new int[] { width, height };
+    }
+
+    //endregion
+
+    //region Polling
+
+    @Override
+    public ErrorCode pollTasks()
+    {
+        List<Runnable> callbacks;
+        synchronized (this)
+        {
+            simulate(System.nanoTime());
+
+            callbacks = m_Callbacks;
+            m_Callbacks = new ArrayList<Runnable>();
+        }
+
+        // callbacks may call back into the API so they are fired without holding the lock
+        for (Runnable callback : callbacks)
+        {
+            callback.run();
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode pollStats()
+    {
+        IStatCallbacks callbacks;
+        RTMPState state;
+        boolean stateChanged;
+        long bytesSent;
+
+        synchronized (this)
+        {
+            simulate(System.nanoTime());
+
+            callbacks = m_StatCallbacks;
+            state = m_RTMPState;
+            stateChanged = state != m_ReportedRTMPState;
+            bytesSent = (long)m_TotalBytesSent;
+
+            m_ReportedRTMPState = state;
+        }
+
+        if (callbacks != null)
+        {
+            if (stateChanged)
+            {
+                callbacks.statCallback(StatType.TTV_ST_RTMPSTATE, state.getValue());
+            }
+
+            callbacks.statCallback(StatType.TTV_ST_RTMPDATASENT, bytesSent);
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Broadcasting
+
+    @Override
+    public synchronized ErrorCode start(VideoParams videoParams, AudioParams audioParams, IngestServer ingestServer, int flags, boolean async)
+    {
+        if (m_RTMPState != RTMPState.Idle && m_RTMPState != RTMPState.Error)
+        {
+            return ErrorCode.TTV_EC_STREAM_ALREADY_STARTED;
+        }
+
+        if (videoParams == null || videoParams.outputWidth <= 0 || videoParams.outputHeight <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_RESOLUTION;
+        }
+        else if (videoParams.targetFps <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_FPS;
+        }
+        else if (videoParams.maxKbps <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_BITRATE;
+        }
+        else if (ingestServer == null)
+        {
+            return ErrorCode.TTV_EC_INVALID_INGEST_SERVER;
+        }
+
+        long now = System.nanoTime();
+
+        m_VideoParams = videoParams.clone();
+        m_ActiveServerUrl = ingestServer.serverUrl;
+        m_ActiveUplinkKbps = getServerUplinkKbps(m_ActiveServerUrl);
+        m_StartAsync = async;
+        m_StartTime = now;
+        m_LastSendTime = now;
+        m_SendBacklogBytes = 0;
+        m_TotalBytesSent = 0;
+
+        if (async)
+        {
+            setRTMPState(RTMPState.Initialize, now);
+            return ErrorCode.TTV_EC_SUCCESS;
+        }
+
+        // a synchronous start connects straight away
+        if (m_StartError != null)
+        {
+            ErrorCode err = m_StartError;
+            m_StartError = null;
+            setRTMPState(RTMPState.Error, now);
+            return err;
+        }
+
+        setRTMPState(RTMPState.SendVideo, now);
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode stop(boolean async)
+    {
+        if (m_RTMPState == RTMPState.Idle || m_RTMPState == RTMPState.Shutdown)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        long now = System.nanoTime();
+
+        // hand back the frames which haven't been encoded
+        while (!m_EncodeQueue.isEmpty())
+        {
+            unlockBuffer(m_EncodeQueue.removeFirst().address);
+        }
+
+        m_SendBacklogBytes = 0;
+
+        if (async)
+        {
+            setRTMPState(RTMPState.Shutdown, now);
+        }
+        else
+        {
+            setRTMPState(RTMPState.Idle, now);
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode pauseVideo()
+    {
+        if (m_RTMPState != RTMPState.SendVideo)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode submitVideoFrame(long frameBuffer)
+    {
+        if (m_RTMPState != RTMPState.SendVideo)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        if (!m_AllocatedBuffers.contains(frameBuffer))
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        if (m_EncodeQueue.size() >= m_MaxQueuedFrames)
+        {
+            return ErrorCode.TTV_EC_FRAME_QUEUE_FULL;
+        }
+
+        // the encoder works on one frame at a time
+        long now = System.nanoTime();
+        long start = m_EncodeQueue.isEmpty() ? now : Math.max(now, m_EncodeQueue.peekLast().readyTime);
+        m_EncodeQueue.addLast(new PendingFrame(frameBuffer, start + m_EncodeLatencyMilliseconds * 1000000L));
+
+        return getSendBacklogMilliseconds() > m_MaxSendBacklogMilliseconds / 2 ? ErrorCode.TTV_WRN_FRAMES_QUEUEING : ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized long getStreamTime()
+    {
+        if (m_RTMPState != RTMPState.SendVideo)
+        {
+            return 0;
+        }
+
+        return (System.nanoTime() - m_StartTime) / 1000000L;
+    }
+
+    //endregion
+
+    //region Frame Buffers
+
+    @Override
+    public synchronized long allocateFrameBuffer(int size)
+    {
+        if (size <= 0 || !NativeMemory.isAvailable())
+        {
+            return 0;
+        }
+
+        long address = NativeMemory.allocate(size);
+        m_AllocatedBuffers.add(address);
+
+        return address;
+    }
+
+    @Override
+    public synchronized ErrorCode freeFrameBuffer(long frameBuffer)
+    {
+        if (!m_AllocatedBuffers.remove(frameBuffer))
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        // a frame still being encoded is dropped
+        Iterator<PendingFrame> iter = m_EncodeQueue.iterator();
+        while (iter.hasNext())
+        {
+            if (iter.next().address == frameBuffer)
+            {
+                iter.remove();
+            }
+        }
+
+        NativeMemory.free(frameBuffer);
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode memsetFrameBuffer(long frameBuffer, int size, int value)
+    {
+        if (!m_AllocatedBuffers.contains(frameBuffer))
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        NativeMemory.fill(frameBuffer, size, (byte)value);
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode randomizeFrameBuffer(long frameBuffer, int size)
+    {
+        if (!m_AllocatedBuffers.contains(frameBuffer))
+        {
+            return ErrorCode.TTV_EC_INVALID_BUFFER;
+        }
+
+        byte[] bytes = new byte[size];
+        m_Random.nextBytes(bytes);
+        NativeMemory.copy(bytes, 0, frameBuffer, size);
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode captureFrameBuffer_ReadPixels(long frameBuffer)
+    {
+        // there's no graphics context so the buffer is left as it is
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //endregion
+
+    //region Simulation
+
+    protected void schedule(Runnable callback)
+    {
+        m_Scheduled.add(new ScheduledCallback(System.nanoTime() + m_ApiLatencyMilliseconds * 1000000L, callback));
+    }
+
+    protected void unlockBuffer(final long address)
+    {
+        m_Callbacks.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.bufferUnlockCallback(address);
+                }
+            }
+        });
+    }
+
+    protected void fireStartCallback(final ErrorCode result)
+    {
+        m_Callbacks.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.startCallback(result);
+                }
+            }
+        });
+    }
+
+    protected void fireStopCallback(final ErrorCode result)
+    {
+        m_Callbacks.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                IStreamCallbacks callbacks = getStreamCallbacks();
+                if (callbacks != null)
+                {
+                    callbacks.stopCallback(result);
+                }
+            }
+        });
+    }
+
+    protected void setRTMPState(RTMPState state, long now)
+    {
+        m_RTMPState = state;
+        m_StateChangeTime = now;
+    }
+
+    protected int getServerUplinkKbps(String serverUrl)
+    {
+        Integer kbps = serverUrl == null ? null : m_ServerUplinkKbps.get(serverUrl);
+        return kbps == null ? m_UplinkKbps : kbps;
+    }
+
+    protected float getSendBacklogMilliseconds()
+    {
+        return (float)(m_SendBacklogBytes * 8 / Math.max(1, m_ActiveUplinkKbps));
+    }
+
+    /**
+     * Advances the simulation to the given time, queueing the callbacks which are due.
+     */
+    protected void simulate(long now)
+    {
+        advanceRTMPState(now);
+        advanceEncoder(now);
+        advanceSend(now);
+
+        Iterator<ScheduledCallback> iter = m_Scheduled.iterator();
+        while (iter.hasNext())
+        {
+            ScheduledCallback scheduled = iter.next();
+            if (scheduled.dueTime - now <= 0)
+            {
+                m_Callbacks.add(scheduled.callback);
+                iter.remove();
+            }
+        }
+    }
+
+    protected void advanceRTMPState(long now)
+    {
+        long interval = m_RTMPStateIntervalMilliseconds * 1000000L;
+
+        while (now - m_StateChangeTime >= interval)
+        {
+            long changeTime = m_StateChangeTime + interval;
+
+            switch (m_RTMPState)
+            {
+            case Initialize:
+            case Handshake:
+            case Connect:
+            case CreateStream:
+            {
+                setRTMPState(RTMPState.values()[m_RTMPState.ordinal() + 1], changeTime);
+                break;
+            }
+            case Publish:
+            {
+                if (m_StartError != null)
+                {
+                    ErrorCode err = m_StartError;
+                    m_StartError = null;
+                    setRTMPState(RTMPState.Error, changeTime);
+
+                    if (m_StartAsync)
+                    {
+                        fireStartCallback(err);
+                    }
+                }
+                else
+                {
+                    setRTMPState(RTMPState.SendVideo, changeTime);
+                    m_LastSendTime = changeTime;
+
+                    if (m_StartAsync)
+                    {
+                        fireStartCallback(ErrorCode.TTV_EC_SUCCESS);
+                    }
+                }
+                break;
+            }
+            case Shutdown:
+            {
+                setRTMPState(RTMPState.Idle, changeTime);
+                fireStopCallback(ErrorCode.TTV_EC_SUCCESS);
+                break;
+            }
+            default:
+            {
+                return;
+            }
+            }
+        }
+    }
+
+    protected void advanceEncoder(long now)
+    {
+        double bytesPerFrame = m_VideoParams == null ? 0 : m_VideoParams.maxKbps * 1000.0 / 8 / Math.max(1, m_VideoParams.targetFps);
+        double maxBacklogBytes = m_MaxSendBacklogMilliseconds * m_ActiveUplinkKbps / 8.0;
+
+        while (!m_EncodeQueue.isEmpty() && m_EncodeQueue.peekFirst().readyTime - now <= 0)
+        {
+            PendingFrame frame = m_EncodeQueue.removeFirst();
+            unlockBuffer(frame.address);
+
+            // send the data which could have gone out before this frame was ready first
+            advanceSend(frame.readyTime);
+
+            if (m_SendBacklogBytes + bytesPerFrame > maxBacklogBytes)
+            {
+                m_NumFramesDropped++;
+            }
+            else
+            {
+                m_SendBacklogBytes += bytesPerFrame;
+                m_NumFramesEncoded++;
+            }
+        }
+    }
+
+    protected void advanceSend(long now)
+    {
+        if (m_RTMPState != RTMPState.SendVideo)
+        {
+            m_LastSendTime = now;
+            return;
+        }
+
+        long elapsed = now - m_LastSendTime;
+        if (elapsed <= 0)
+        {
+            return;
+        }
+
+        double capacity = elapsed * m_ActiveUplinkKbps / 8000000.0;
+        double sent = Math.min(capacity, m_SendBacklogBytes);
+
+        m_SendBacklogBytes -= sent;
+        m_TotalBytesSent += sent;
+        m_LastSendTime = now;
+    }
+
+    protected static IngestServer createIngestServer(String name, String url, boolean isDefault)
+    {
+        IngestServer server = new IngestServer();
+        server.serverName = name;
+        server.serverUrl = url;
+        server.defaultServer = isDefault;
+
+        return server;
+    }
+
+    //endregion
+}
@@ -0,0 +1,323 @@
+package tv.twitch.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tv.twitch.SimulatedCoreAPI;
+import tv.twitch.bench.Benchmark;
+
+
+/**
+ * Benchmarks of the chat event handling, run by feeding the channel listener directly.  The controller is connected through the
+ * SimulatedChatAPI with message generation turned off so only the events created by the benchmarks are handled.
+ */
+public final class ChatBenchmarks
+{
+    protected static final String CHANNEL_NAME = "benchmark";
+    protected static final int FLUSH_INTERVAL_MILLISECONDS = 500;
+
+    /**
+     * Base class for the benchmarks which need a connected channel.
+     */
+    public abstract static class ChannelBenchmark extends Benchmark
+    {
+        protected ChatController m_Controller;
+        protected ChatController.ChatChannelListener m_Channel;
+        protected SimulatedChatAPI m_Generator = new SimulatedChatAPI();   //!< Only used to make up users and messages.
+
+        protected ChannelBenchmark(String name, int itemsPerRun)
+        {
+            super(name, itemsPerRun);
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            m_Controller = connect();
+            m_Channel = m_Controller.getChannel(CHANNEL_NAME);
+        }
+
+        @Override
+        public void teardown() throws Exception
+        {
+            disconnect(m_Controller);
+        }
+    }
+
+    /**
+     * The messages received in one flush interval at the given rate, delivered both raw and tokenized.
+     */
+    public static class MessageIngestion extends ChannelBenchmark
+    {
+        protected ChatRawMessage[] m_RawMessages;
+        protected ChatTokenizedMessage[] m_TokenizedMessages;
+
+        public MessageIngestion(int messagesPerSecond)
+        {
+            super(String.format("chat.ingest-%d-per-sec", messagesPerSecond), messagesPerSecond * FLUSH_INTERVAL_MILLISECONDS / 1000);
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            super.setup();
+
+            ChatUserInfo[] users = createUsers(m_Generator, 1000);
+
+            m_RawMessages = new ChatRawMessage[getItemsPerRun()];
+            m_TokenizedMessages = new ChatTokenizedMessage[getItemsPerRun()];
+            for (int i = 0; i < m_RawMessages.length; ++i)
+            {
+                m_RawMessages[i] = m_Generator.createRawMessage(users[i % users.length], m_Generator.createMessageText());
+                m_TokenizedMessages[i] = m_Generator.tokenize(m_RawMessages[i]);
+            }
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            m_Channel.chatChannelRawMessageCallback(CHANNEL_NAME, m_RawMessages);
+            m_Channel.chatChannelTokenizedMessageCallback(CHANNEL_NAME, m_TokenizedMessages);
+
+            return m_Channel.getRawMessageHistory().size();
+        }
+    }
+
+    /**
+     * A user change event on a channel with a large roster, where some users leave and as many new ones join.
+     */
+    public static class UserChurn extends ChannelBenchmark
+    {
+        protected final int m_RosterSize;
+        protected final int m_Changes;
+        protected ChatUserInfo[] m_Users;
+        protected ChatUserInfo[] m_Spares;
+        protected ChatUserInfo[] m_Empty = new ChatUserInfo[0];
+        protected int m_Next = 0;
+
+        public UserChurn(int rosterSize, int changes)
+        {
+            super(String.format("chat.user-churn-%d-of-%d", changes, rosterSize), changes * 2);
+            m_RosterSize = rosterSize;
+            m_Changes = changes;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            super.setup();
+
+            m_Users = createUsers(m_Generator, m_RosterSize);
+            m_Spares = createUsers(m_Generator, m_Changes);
+            m_Channel.chatChannelUserChangeCallback(CHANNEL_NAME, m_Users, m_Empty, m_Empty);
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            // swap a block of the roster with the spares so the roster size stays the same
+            ChatUserInfo[] leaving = new ChatUserInfo[m_Changes];
+            System.arraycopy(m_Users, m_Next, leaving, 0, m_Changes);
+            System.arraycopy(m_Spares, 0, m_Users, m_Next, m_Changes);
+
+            m_Channel.chatChannelUserChangeCallback(CHANNEL_NAME, m_Spares, leaving, m_Empty);
+
+            m_Spares = leaving;
+            m_Next = (m_Next + m_Changes) % (m_RosterSize - m_Changes + 1);
+
+            return m_Channel.getUsers().size();
+        }
+    }
+
+    /**
+     * A whole roster joining a channel and then leaving it.
+     */
+    public static class RosterJoinLeave extends ChannelBenchmark
+    {
+        protected final int m_RosterSize;
+        protected ChatUserInfo[] m_Users;
+        protected ChatUserInfo[] m_Empty = new ChatUserInfo[0];
+
+        public RosterJoinLeave(int rosterSize)
+        {
+            super(String.format("chat.roster-join-leave-%d", rosterSize), rosterSize * 2);
+            m_RosterSize = rosterSize;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            super.setup();
+            m_Users = createUsers(m_Generator, m_RosterSize);
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            m_Channel.chatChannelUserChangeCallback(CHANNEL_NAME, m_Users, m_Empty, m_Empty);
+            int count = m_Channel.getUsers().size();
+            m_Channel.chatChannelUserChangeCallback(CHANNEL_NAME, m_Empty, m_Users, m_Empty);
+
+            return count;
+        }
+    }
+
+    /**
+     * Clearing one user's messages from a full history.  Each run first adds a few messages from the user being cleared, so the
+     * time includes adding them.
+     */
+    public static class ClearUser extends ChannelBenchmark
+    {
+        protected final int m_HistorySize;
+        protected ChatUserInfo[] m_Users;
+        protected ChatRawMessage[][] m_RawMessages;
+        protected ChatTokenizedMessage[][] m_TokenizedMessages;
+        protected int m_Next = 0;
+
+        public ClearUser(int historySize)
+        {
+            super(String.format("chat.clear-user-history-%d", historySize), 1);
+            m_HistorySize = historySize;
+        }
+
+        @Override
+        public void setup() throws Exception
+        {
+            super.setup();
+
+            m_Controller.setMessageHistorySize(CHANNEL_NAME, m_HistorySize);
+
+            // fill the history with other users
+            ChatUserInfo[] others = createUsers(m_Generator, 500);
+            ChatRawMessage[] raw = new ChatRawMessage[m_HistorySize];
+            ChatTokenizedMessage[] tokenized = new ChatTokenizedMessage[m_HistorySize];
+            for (int i = 0; i < raw.length; ++i)
+            {
+                raw[i] = m_Generator.createRawMessage(others[i % others.length], m_Generator.createMessageText());
+                tokenized[i] = m_Generator.tokenize(raw[i]);
+            }
+            m_Channel.chatChannelRawMessageCallback(CHANNEL_NAME, raw);
+            m_Channel.chatChannelTokenizedMessageCallback(CHANNEL_NAME, tokenized);
+
+            // the users who are cleared each post a few messages
+            m_Users = createUsers(m_Generator, 64);
+            m_RawMessages = new ChatRawMessage[m_Users.length][];
+            m_TokenizedMessages = new ChatTokenizedMessage[m_Users.length][];
+            for (int u = 0; u < m_Users.length; ++u)
+            {
+                m_RawMessages[u] = new ChatRawMessage[4];
+                m_TokenizedMessages[u] = new ChatTokenizedMessage[4];
+                for (int i = 0; i < 4; ++i)
+                {
+                    m_RawMessages[u][i] = m_Generator.createRawMessage(m_Users[u], m_Generator.createMessageText());
+                    m_TokenizedMessages[u][i] = m_Generator.tokenize(m_RawMessages[u][i]);
+                }
+            }
+        }
+
+        @Override
+        public long run() throws Exception
+        {
+            int u = m_Next;
+            m_Next = (m_Next + 1) % m_Users.length;
+
+            m_Channel.chatChannelRawMessageCallback(CHANNEL_NAME, m_RawMessages[u]);
+            m_Channel.chatChannelTokenizedMessageCallback(CHANNEL_NAME, m_TokenizedMessages[u]);
+            m_Channel.clearMessages(m_Users[u].displayName);
+
+            return m_Channel.getRawMessageHistory().getNumRemoved();
+        }
+    }
+
+    private ChatBenchmarks()
+    {
+    }
+
+    public static List<Benchmark> createAll()
+    {
+        List<Benchmark> list = new ArrayList<Benchmark>();
+        list.add(new MessageIngestion(1000));
+        list.add(new MessageIngestion(10000));
+        list.add(new UserChurn(50000, 500));
+        list.add(new RosterJoinLeave(50000));
+        list.add(new ClearUser(1024));
+        list.add(new ClearUser(16384));
+
+        return list;
+    }
+
+    protected static ChatUserInfo[] createUsers(SimulatedChatAPI generator, int count)
+    {
+        ChatUserInfo[] users = new ChatUserInfo[count];
+        for (int i = 0; i < count; ++i)
+        {
+            users[i] = generator.createUser(null);
+        }
+
+        return users;
+    }
+
+    /**
+     * Brings up a controller connected to a quiet simulated channel.
+     */
+    protected static ChatController connect() throws InterruptedException
+    {
+        SimulatedChatAPI api = new SimulatedChatAPI();
+        api.setApiLatencyMilliseconds(0);
+        api.setConnectLatencyMilliseconds(0);
+        api.setMessagesPerSecond(0);
+        api.setUserChurnPerSecond(0);
+        api.setUsersPerChannel(0);
+
+        ChatController controller = new ChatController(new SimulatedCoreAPI(), api);
+        controller.setClientId("benchmark");
+
+        if (!controller.initialize())
+        {
+            throw new IllegalStateException("Unable to initialize the chat controller");
+        }
+        waitFor(controller, ChatController.ChatState.Initialized);
+
+        controller.connectAnonymous(CHANNEL_NAME);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (controller.getChannelState(CHANNEL_NAME) != ChatController.ChannelState.Connected)
+        {
+            if (System.currentTimeMillis() > end)
+            {
+                throw new IllegalStateException("Timed out connecting to the channel");
+            }
+
+            controller.update();
+            Thread.sleep(1);
+        }
+
+        return controller;
+    }
+
+    protected static void disconnect(ChatController controller) throws InterruptedException
+    {
+        if (controller == null)
+        {
+            return;
+        }
+
+        controller.shutdown();
+        waitFor(controller, ChatController.ChatState.Uninitialized);
+    }
+
+    protected static void waitFor(ChatController controller, ChatController.ChatState state) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (controller.getCurrentState() != state)
+        {
+            if (System.currentTimeMillis() > end)
+            {
+                throw new IllegalStateException(String.format("Timed out waiting for %s, the controller is %s", state, controller.getCurrentState()));
+            }
+
+            controller.update();
+            Thread.sleep(1);
+        }
+    }
+}
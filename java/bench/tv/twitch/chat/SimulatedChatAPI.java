@@ -0,0 +1,860 @@
+package tv.twitch.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import tv.twitch.ErrorCode;
+
+
+/**
+ * A pure Java stand in for the native chat API so the ChatController can be load tested without the SDK library or a connection to the
+ * chat servers.  Each connected channel is populated with made up users who join, leave and send messages at configurable rates.  The
+ * events are delivered from flushEvents() in batches at the message flush and user change intervals like the real SDK.  Messages sent
+ * through the API are echoed back to the channel and can be made to fail at random to exercise retries.
+ *
+ * The randomness is seeded so runs are repeatable.  flushEvents() may be called from a different thread to the other methods, as it is
+ * with the ChatEventPump, and the callbacks are fired without holding the simulator's lock.
+ */
+public class SimulatedChatAPI extends ChatAPI
+{
+    protected static class ScheduledAction
+    {
+        public final long dueTime;
+        public final Runnable action;
+
+        public ScheduledAction(long dueTime, Runnable action)
+        {
+            this.dueTime = dueTime;
+            this.action = action;
+        }
+    }
+
+    protected class SimulatedChannel
+    {
+        public final String name;
+        public final String userName;
+        public final IChatChannelListener listener;
+        public boolean joined = false;
+        public boolean leaving = false;
+
+        public ArrayList<ChatUserInfo> users = new ArrayList<ChatUserInfo>();
+        public ArrayList<ChatUserInfo> pendingJoins = new ArrayList<ChatUserInfo>();
+        public ArrayList<ChatUserInfo> pendingLeaves = new ArrayList<ChatUserInfo>();
+        public ArrayList<ChatRawMessage> pendingEchoes = new ArrayList<ChatRawMessage>();
+        public double pendingMessages = 0;
+        public double pendingChurn = 0;
+        public long lastSimulateTime = 0;
+        public long lastMessageFlushTime = 0;
+        public long lastUserChangeTime = 0;
+
+        public SimulatedChannel(String name, String userName, IChatChannelListener listener)
+        {
+            this.name = name;
+            this.userName = userName;
+            this.listener = listener;
+        }
+    }
+
+    protected static final String[] s_Words =
+    {
+        "gg", "wp", "lol", "nice", "what", "was", "that", "play", "again", "hype", "kappa", "the", "boss", "is", "so", "hard", "go", "left",
+        "right", "jump", "no", "yes", "pog", "clutch", "rip", "first", "time", "chat", "run", "speed",
+    };
+
+    protected static final String EMOTICON_WORD = "kappa";
+
+    protected IChatAPIListener m_Listener = null;
+    protected HashSet<ChatTokenizationOption> m_TokenizationOptions = new HashSet<ChatTokenizationOption>();
+    protected boolean m_Initialized = false;
+    protected boolean m_EmoticonDataReady = false;
+
+    protected long m_ApiLatencyMilliseconds = 100;
+    protected long m_ConnectLatencyMilliseconds = 300;
+    protected float m_MessagesPerSecond = 5;
+    protected HashMap<String, Float> m_ChannelMessagesPerSecond = new HashMap<String, Float>();   //!< Rate overrides by channel.
+    protected int m_UsersPerChannel = 50;
+    protected float m_UserChurnPerSecond = 1;
+    protected int m_MaxMessageWords = 12;
+    protected float m_SendErrorRate = 0;
+    protected Random m_Random = new Random(0);
+
+    protected int m_MessageFlushInterval = 500;
+    protected int m_UserChangeEventInterval = 2000;
+
+    protected LinkedHashMap<String, SimulatedChannel> m_Channels = new LinkedHashMap<String, SimulatedChannel>();
+    protected ArrayList<ScheduledAction> m_Scheduled = new ArrayList<ScheduledAction>();
+    protected ArrayList<Runnable> m_Callbacks = new ArrayList<Runnable>();
+    protected int m_NextUserId = 1;
+
+    protected long m_NumMessagesGenerated = 0;
+    protected long m_NumMessagesSent = 0;
+    protected long m_NumSendErrors = 0;
+
+    public SimulatedChatAPI()
+    {
+    }
+
+    //#region Properties
+
+    /**
+     * The time taken by initialization, shutdown and the emoticon and badge downloads.
+     */
+    public synchronized long getApiLatencyMilliseconds()
+    {
+        return m_ApiLatencyMilliseconds;
+    }
+    public synchronized void setApiLatencyMilliseconds(long value)
+    {
+        m_ApiLatencyMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The time from connecting to a channel to joining it.
+     */
+    public synchronized long getConnectLatencyMilliseconds()
+    {
+        return m_ConnectLatencyMilliseconds;
+    }
+    public synchronized void setConnectLatencyMilliseconds(long value)
+    {
+        m_ConnectLatencyMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The rate messages are generated at in channels without their own rate.
+     */
+    public synchronized float getMessagesPerSecond()
+    {
+        return m_MessagesPerSecond;
+    }
+    public synchronized void setMessagesPerSecond(float value)
+    {
+        m_MessagesPerSecond = Math.max(0, value);
+    }
+
+    /**
+     * Sets the rate messages are generated at in one channel.  This takes effect immediately so it can be used to simulate bursts.
+     * @param channelName The channel
+     * @param value The rate or a negative value to use the default
+     */
+    public synchronized void setMessagesPerSecond(String channelName, float value)
+    {
+        if (value < 0)
+        {
+            m_ChannelMessagesPerSecond.remove(channelName);
+        }
+        else
+        {
+            m_ChannelMessagesPerSecond.put(channelName, value);
+        }
+    }
+
+    /**
+     * The number of users in a channel when it's joined.
+     */
+    public synchronized int getUsersPerChannel()
+    {
+        return m_UsersPerChannel;
+    }
+    public synchronized void setUsersPerChannel(int value)
+    {
+        m_UsersPerChannel = Math.max(0, value);
+    }
+
+    /**
+     * The rate users join and leave each channel.  Half of the changes are joins and half are leaves.
+     */
+    public synchronized float getUserChurnPerSecond()
+    {
+        return m_UserChurnPerSecond;
+    }
+    public synchronized void setUserChurnPerSecond(float value)
+    {
+        m_UserChurnPerSecond = Math.max(0, value);
+    }
+
+    public synchronized int getMaxMessageWords()
+    {
+        return m_MaxMessageWords;
+    }
+    public synchronized void setMaxMessageWords(int value)
+    {
+        m_MaxMessageWords = Math.max(1, value);
+    }
+
+    /**
+     * The fraction of sent messages which fail with TTV_EC_CHAT_TOO_MANY_REQUESTS.
+     */
+    public synchronized float getSendErrorRate()
+    {
+        return m_SendErrorRate;
+    }
+    public synchronized void setSendErrorRate(float value)
+    {
+        m_SendErrorRate = Math.max(0, Math.min(1, value));
+    }
+
+    /**
+     * Reseeds the generator used for the made up users and messages.
+     */
+    public synchronized void setSeed(long seed)
+    {
+        m_Random.setSeed(seed);
+    }
+
+    public synchronized long getNumMessagesGenerated()
+    {
+        return m_NumMessagesGenerated;
+    }
+
+    public synchronized long getNumMessagesSent()
+    {
+        return m_NumMessagesSent;
+    }
+
+    public synchronized long getNumSendErrors()
+    {
+        return m_NumSendErrors;
+    }
+
+    //#endregion
+
+    //#region ChatAPI
+
+    @Override
+    public synchronized ErrorCode initialize(HashSet<ChatTokenizationOption> tokenizationOptions, IChatAPIListener listener)
+    {
+        if (m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_ALREADY_INITIALIZED;
+        }
+
+        m_Listener = listener;
+        m_TokenizationOptions = new HashSet<ChatTokenizationOption>(tokenizationOptions);
+        m_Initialized = true;
+
+        final IChatAPIListener target = listener;
+        schedule(m_ApiLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                post(new Runnable() { @Override public void run() { target.chatInitializationCallback(ErrorCode.TTV_EC_SUCCESS); } });
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode shutdown()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        m_Initialized = false;
+        m_EmoticonDataReady = false;
+
+        // leave all the channels
+        for (SimulatedChannel channel : m_Channels.values())
+        {
+            postMembership(channel, ChatEvent.TTV_CHAT_LEFT_CHANNEL);
+        }
+        m_Channels.clear();
+
+        final IChatAPIListener target = m_Listener;
+        schedule(m_ApiLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                post(new Runnable() { @Override public void run() { target.chatShutdownCallback(ErrorCode.TTV_EC_SUCCESS); } });
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode connect(String channelName, String userName, String authToken, IChatChannelListener listener)
+    {
+        if (authToken == null || authToken.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_LOGIN;
+        }
+
+        return connectChannel(channelName, userName, listener);
+    }
+
+    @Override
+    public synchronized ErrorCode connectAnonymous(String channelName, IChatChannelListener listener)
+    {
+        return connectChannel(channelName, null, listener);
+    }
+
+    @Override
+    public synchronized ErrorCode disconnect(String channelName)
+    {
+        final SimulatedChannel channel = m_Channels.get(channelName);
+        if (channel == null || channel.leaving)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_IN_CHANNEL;
+        }
+
+        channel.leaving = true;
+
+        schedule(m_ApiLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (m_Channels.get(channel.name) == channel)
+                {
+                    m_Channels.remove(channel.name);
+                    postMembership(channel, ChatEvent.TTV_CHAT_LEFT_CHANNEL);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode sendMessage(String channelName, String message)
+    {
+        SimulatedChannel channel = m_Channels.get(channelName);
+        if (channel == null || !channel.joined || channel.leaving)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_IN_CHANNEL;
+        }
+        else if (channel.userName == null)
+        {
+            return ErrorCode.TTV_EC_CHAT_ANON_DENIED;
+        }
+        else if (message == null || message.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_MESSAGE;
+        }
+
+        if (m_SendErrorRate > 0 && m_Random.nextFloat() < m_SendErrorRate)
+        {
+            m_NumSendErrors++;
+            return ErrorCode.TTV_EC_CHAT_TOO_MANY_REQUESTS;
+        }
+
+        ChatRawMessage echo = createRawMessage(createUser(channel.userName), message);
+        channel.pendingEchoes.add(echo);
+        m_NumMessagesSent++;
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public ErrorCode flushEvents()
+    {
+        List<Runnable> callbacks;
+        synchronized (this)
+        {
+            simulate(System.nanoTime());
+
+            callbacks = m_Callbacks;
+            m_Callbacks = new ArrayList<Runnable>();
+        }
+
+        // callbacks may call back into the API so they are fired without holding the lock
+        for (Runnable callback : callbacks)
+        {
+            callback.run();
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode downloadEmoticonData()
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+
+        final IChatAPIListener target = m_Listener;
+        schedule(m_ApiLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                m_EmoticonDataReady = true;
+                post(new Runnable() { @Override public void run() { target.chatEmoticonDataDownloadCallback(ErrorCode.TTV_EC_SUCCESS); } });
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getEmoticonData(ChatEmoticonData data)
+    {
+        if (!m_EmoticonDataReady)
+        {
+            return ErrorCode.TTV_EC_CHAT_EMOTICON_DATA_NOT_READY;
+        }
+
+        data.textures = getUseTextures() ? new ChatTextureSheet[] { createTextureSheet(0, 64, 0x4b) } : new ChatTextureSheet[0];
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode clearEmoticonData()
+    {
+        m_EmoticonDataReady = false;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode downloadBadgeData(String channelName)
+    {
+        final SimulatedChannel channel = m_Channels.get(channelName);
+        if (channel == null)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_IN_CHANNEL;
+        }
+
+        schedule(m_ApiLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                post(new Runnable() { @Override public void run() { channel.listener.chatBadgeDataDownloadCallback(channel.name, ErrorCode.TTV_EC_SUCCESS); } });
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode getBadgeData(String channelName, ChatBadgeData data)
+    {
+        data.channelName = channelName;
+
+        // the badge art is the same in every channel
+        if (getUseTextures())
+        {
+            data.textures = new ChatTextureSheet[] { createTextureSheet(0, 32, 0x62) };
+            data.turboIcon = createImageToken(0);
+            data.channelSubscriberIcon = createImageToken(1);
+            data.broadcasterIcon = createImageToken(2);
+            data.staffIcon = createImageToken(3);
+            data.adminIcon = createImageToken(4);
+            data.moderatorIcon = createImageToken(5);
+        }
+        else
+        {
+            data.textures = new ChatTextureSheet[0];
+        }
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized ErrorCode clearBadgeData(String channelName)
+    {
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized int getMessageFlushInterval()
+    {
+        return m_MessageFlushInterval;
+    }
+
+    @Override
+    public synchronized ErrorCode setMessageFlushInterval(int messageFlushInterval)
+    {
+        if (messageFlushInterval <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_ARG;
+        }
+
+        m_MessageFlushInterval = messageFlushInterval;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    @Override
+    public synchronized int getUserChangeEventInterval()
+    {
+        return m_UserChangeEventInterval;
+    }
+
+    @Override
+    public synchronized ErrorCode setUserChangeEventInterval(int userChangeEventInterval)
+    {
+        if (userChangeEventInterval <= 0)
+        {
+            return ErrorCode.TTV_EC_INVALID_ARG;
+        }
+
+        m_UserChangeEventInterval = userChangeEventInterval;
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    //#endregion
+
+    //#region Simulation
+
+    protected ErrorCode connectChannel(String channelName, String userName, IChatChannelListener listener)
+    {
+        if (!m_Initialized)
+        {
+            return ErrorCode.TTV_EC_CHAT_NOT_INITIALIZED;
+        }
+        else if (channelName == null || channelName.length() == 0)
+        {
+            return ErrorCode.TTV_EC_CHAT_INVALID_CHANNEL;
+        }
+        else if (m_Channels.containsKey(channelName))
+        {
+            return ErrorCode.TTV_EC_CHAT_ALREADY_IN_CHANNEL;
+        }
+
+        final SimulatedChannel channel = new SimulatedChannel(channelName, userName, listener);
+        m_Channels.put(channelName, channel);
+
+        schedule(m_ConnectLatencyMilliseconds, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (m_Channels.get(channel.name) == channel && !channel.leaving)
+                {
+                    joinChannel(channel);
+                }
+            }
+        });
+
+        return ErrorCode.TTV_EC_SUCCESS;
+    }
+
+    protected void joinChannel(final SimulatedChannel channel)
+    {
+        long now = System.nanoTime();
+
+        channel.joined = true;
+        channel.lastSimulateTime = now;
+        channel.lastMessageFlushTime = now;
+        channel.lastUserChangeTime = now;
+
+        post(new Runnable() { @Override public void run() { channel.listener.chatStatusCallback(channel.name, ErrorCode.TTV_EC_SUCCESS); } });
+        postMembership(channel, ChatEvent.TTV_CHAT_JOINED_CHANNEL);
+
+        for (int i = 0; i < m_UsersPerChannel; ++i)
+        {
+            ChatUserInfo user = createUser(null);
+            channel.users.add(user);
+            channel.pendingJoins.add(user);
+        }
+
+        // the initial user list arrives straight away
+        postUserChanges(channel);
+    }
+
+    protected boolean getUseTextures()
+    {
+        return m_TokenizationOptions.contains(ChatTokenizationOption.TTV_CHAT_TOKENIZATION_OPTION_EMOTICON_TEXTURES);
+    }
+
+    protected boolean getUseTokenization()
+    {
+        return !m_TokenizationOptions.isEmpty() && !m_TokenizationOptions.contains(ChatTokenizationOption.TTV_CHAT_TOKENIZATION_OPTION_NONE);
+    }
+
+    protected void schedule(long delayMilliseconds, Runnable action)
+    {
+        m_Scheduled.add(new ScheduledAction(System.nanoTime() + delayMilliseconds * 1000000L, action));
+    }
+
+    /**
+     * Queues a callback to be fired once the lock is released.
+     */
+    protected void post(Runnable callback)
+    {
+        m_Callbacks.add(callback);
+    }
+
+    protected void postMembership(final SimulatedChannel channel, final ChatEvent evt)
+    {
+        final ChatChannelInfo info = new ChatChannelInfo();
+        info.name = channel.name;
+        info.broadcasterUserInfo = createUser(channel.name);
+        info.broadcasterUserInfo.modes.add(ChatUserMode.TTV_CHAT_USERMODE_BROADCASTER);
+
+        post(new Runnable() { @Override public void run() { channel.listener.chatChannelMembershipCallback(channel.name, evt, info); } });
+    }
+
+    protected void postUserChanges(final SimulatedChannel channel)
+    {
+        if (channel.pendingJoins.isEmpty() && channel.pendingLeaves.isEmpty())
+        {
+            return;
+        }
+
+        final ChatUserInfo[] joins = channel.pendingJoins.toArray(new ChatUserInfo[channel.pendingJoins.size()]);
+        final ChatUserInfo[] leaves = channel.pendingLeaves.toArray(new ChatUserInfo[channel.pendingLeaves.size()]);
+        channel.pendingJoins.clear();
+        channel.pendingLeaves.clear();
+
+        post(new Runnable() { @Override public void run() { channel.listener.chatChannelUserChangeCallback(channel.name, joins, leaves, new ChatUserInfo[0]); } });
+    }
+
+    /**
+     * Advances the simulation to the given time, queueing the callbacks which are due.
+     */
+    protected void simulate(long now)
+    {
+        // run the due actions in the order they were scheduled, including any they schedule themselves
+        for (int i = 0; i < m_Scheduled.size(); )
+        {
+            ScheduledAction scheduled = m_Scheduled.get(i);
+            if (scheduled.dueTime - now <= 0)
+            {
+                m_Scheduled.remove(i);
+                scheduled.action.run();
+            }
+            else
+            {
+                ++i;
+            }
+        }
+
+        Iterator<SimulatedChannel> iter = m_Channels.values().iterator();
+        while (iter.hasNext())
+        {
+            SimulatedChannel channel = iter.next();
+            if (channel.joined && !channel.leaving)
+            {
+                simulateChannel(channel, now);
+            }
+        }
+    }
+
+    protected void simulateChannel(final SimulatedChannel channel, long now)
+    {
+        double seconds = (now - channel.lastSimulateTime) / 1000000000.0;
+        channel.lastSimulateTime = now;
+
+        Float channelRate = m_ChannelMessagesPerSecond.get(channel.name);
+        channel.pendingMessages += seconds * (channelRate != null ? channelRate : m_MessagesPerSecond);
+        channel.pendingChurn += seconds * m_UserChurnPerSecond;
+
+        // users come and go
+        while (channel.pendingChurn >= 1)
+        {
+            channel.pendingChurn -= 1;
+
+            if (channel.users.isEmpty() || m_Random.nextBoolean())
+            {
+                ChatUserInfo user = createUser(null);
+                channel.users.add(user);
+                channel.pendingJoins.add(user);
+            }
+            else
+            {
+                ChatUserInfo user = channel.users.remove(m_Random.nextInt(channel.users.size()));
+                channel.pendingLeaves.add(user);
+            }
+        }
+
+        if (now - channel.lastUserChangeTime >= m_UserChangeEventInterval * 1000000L)
+        {
+            channel.lastUserChangeTime = now;
+            postUserChanges(channel);
+        }
+
+        if (now - channel.lastMessageFlushTime < m_MessageFlushInterval * 1000000L)
+        {
+            return;
+        }
+        channel.lastMessageFlushTime = now;
+
+        int count = (int)channel.pendingMessages;
+        channel.pendingMessages -= count;
+
+        if (count == 0 && channel.pendingEchoes.isEmpty())
+        {
+            return;
+        }
+
+        ArrayList<ChatRawMessage> raw = new ArrayList<ChatRawMessage>(count + channel.pendingEchoes.size());
+        for (int i = 0; i < count; ++i)
+        {
+            ChatUserInfo user = channel.users.isEmpty() ? createUser(null) : channel.users.get(m_Random.nextInt(channel.users.size()));
+            raw.add(createRawMessage(user, createMessageText()));
+        }
+        raw.addAll(channel.pendingEchoes);
+        channel.pendingEchoes.clear();
+
+        m_NumMessagesGenerated += count;
+
+        final ChatRawMessage[] rawList = raw.toArray(new ChatRawMessage[raw.size()]);
+        post(new Runnable() { @Override public void run() { channel.listener.chatChannelRawMessageCallback(channel.name, rawList); } });
+
+        if (getUseTokenization())
+        {
+            final ChatTokenizedMessage[] tokenizedList = new ChatTokenizedMessage[rawList.length];
+            for (int i = 0; i < rawList.length; ++i)
+            {
+                tokenizedList[i] = tokenize(rawList[i]);
+            }
+
+            post(new Runnable() { @Override public void run() { channel.listener.chatChannelTokenizedMessageCallback(channel.name, tokenizedList); } });
+        }
+    }
+
+    protected ChatUserInfo createUser(String displayName)
+    {
+        ChatUserInfo user = new ChatUserInfo();
+        user.displayName = displayName != null ? displayName : String.format("user%d", m_NextUserId++);
+        user.modes = new HashSet<ChatUserMode>();
+        user.subscriptions = new HashSet<ChatUserSubscription>();
+        user.nameColorARGB = 0xFF000000 | m_Random.nextInt(0x1000000);
+
+        // roughly the mix of a busy channel
+        int roll = m_Random.nextInt(100);
+        user.modes.add(roll < 3 ? ChatUserMode.TTV_CHAT_USERMODE_MODERATOR : ChatUserMode.TTV_CHAT_USERMODE_VIEWER);
+        user.subscriptions.add(roll % 5 == 0 ? ChatUserSubscription.TTV_CHAT_USERSUB_SUBSCRIBER : ChatUserSubscription.TTV_CHAT_USERSUB_NONE);
+
+        return user;
+    }
+
+    protected ChatRawMessage createRawMessage(ChatUserInfo user, String text)
+    {
+        ChatRawMessage message = new ChatRawMessage();
+        message.userName = user.displayName;
+        message.message = text;
+        message.modes = user.modes;
+        message.subscriptions = user.subscriptions;
+        message.nameColorARGB = user.nameColorARGB;
+        message.action = false;
+
+        return message;
+    }
+
+    protected String createMessageText()
+    {
+        int numWords = 1 + m_Random.nextInt(m_MaxMessageWords);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numWords; ++i)
+        {
+            if (i > 0)
+            {
+                sb.append(' ');
+            }
+            sb.append(s_Words[m_Random.nextInt(s_Words.length)]);
+        }
+
+        return sb.toString();
+    }
+
+    protected ChatTokenizedMessage tokenize(ChatRawMessage raw)
+    {
+        ChatTokenizedMessage message = new ChatTokenizedMessage();
+        message.displayName = raw.userName;
+        message.modes = raw.modes;
+        message.subscriptions = raw.subscriptions;
+        message.nameColorARGB = raw.nameColorARGB;
+        message.action = raw.action;
+
+        // the emoticon word becomes an image, everything else is text
+        ArrayList<ChatMessageToken> tokens = new ArrayList<ChatMessageToken>();
+        StringBuilder text = new StringBuilder();
+
+        for (String word : raw.message.split(" "))
+        {
+            if (word.equals(EMOTICON_WORD))
+            {
+                if (text.length() > 0)
+                {
+                    tokens.add(createTextToken(text.toString()));
+                    text.setLength(0);
+                }
+
+                if (getUseTextures())
+                {
+                    tokens.add(createImageToken(0));
+                }
+                else
+                {
+                    ChatUrlImageMessageToken token = new ChatUrlImageMessageToken();
+                    token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_URL_IMAGE;
+                    token.url = "http://static.simulated/emoticons/kappa.png";
+                    token.width = 25;
+                    token.height = 28;
+                    tokens.add(token);
+                }
+            }
+            else
+            {
+                text.append(word).append(' ');
+            }
+        }
+
+        if (text.length() > 0)
+        {
+            tokens.add(createTextToken(text.toString()));
+        }
+
+        message.tokenList = tokens.toArray(new ChatMessageToken[tokens.size()]);
+        return message;
+    }
+
+    protected static ChatTextMessageToken createTextToken(String text)
+    {
+        ChatTextMessageToken token = new ChatTextMessageToken();
+        token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_TEXT;
+        token.text = text;
+
+        return token;
+    }
+
+    protected static ChatTextureImageMessageToken createImageToken(int index)
+    {
+        ChatTextureImageMessageToken token = new ChatTextureImageMessageToken();
+        token.type = ChatMessageTokenType.TTV_CHAT_MSGTOKEN_TEXTURE_IMAGE;
+        token.sheetIndex = 0;
+        token.x1 = (short)(index * 16 % 64);
+        token.y1 = (short)(index * 16 / 64 * 16);
+        token.x2 = (short)(token.x1 + 16);
+        token.y2 = (short)(token.y1 + 16);
+
+        return token;
+    }
+
+    /**
+     * Creates a square RGBA sheet with a fixed pattern so the same sheet always has the same contents.
+     */
+    protected static ChatTextureSheet createTextureSheet(int sheetIndex, int size, int seed)
+    {
+        ChatTextureSheet sheet = new ChatTextureSheet();
+        sheet.sheetIndex = sheetIndex;
+        sheet.width = size;
+        sheet.height = size;
+        sheet.buffer = new byte[size * size * 4];
+
+        for (int i = 0; i < sheet.buffer.length; ++i)
+        {
+            sheet.buffer[i] = (byte)(i * seed);
+        }
+
+        return sheet;
+    }
+
+    //#endregion
+}
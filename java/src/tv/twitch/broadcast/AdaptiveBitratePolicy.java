@@ -0,0 +1,21 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * Decides which quality rung the AdaptiveBitrateController should encode at.  The controller calls the policy after each statistics poll
+ * once the minimum time between switches has passed.
+ */
+public interface AdaptiveBitratePolicy
+{
+    /**
+     * Clears any state kept between decisions.  Called when broadcasting starts.
+     */
+    void reset();
+
+    /**
+     * Chooses the rung to encode at.
+     * @param controller The controller which provides the rungs and the current measurements
+     * @return The index of the rung where 0 is the highest bitrate
+     */
+    int selectRung(AdaptiveBitrateController controller);
+}
@@ -1,6 +1,7 @@
 package tv.twitch.broadcast;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import tv.twitch.*;
 
@@ -132,7 +133,6 @@ public class BroadcastController
     //region Constants
     
     protected final int s_StreamInfoUpdateInterval = 30; 	//!< Update the stream info every 30 seconds.
-    protected final int s_NumSdkBuffers = 3; 				//!< The number of buffers required to submit to the SDK.
     
     //endregion
     
@@ -148,8 +148,17 @@ public class BroadcastController
 
     protected Core m_Core = null;
     protected Stream m_Stream = null;
-    protected List<FrameBuffer> m_CaptureBuffers = new ArrayList<FrameBuffer>();
-    protected List<FrameBuffer> m_FreeBufferList = new ArrayList<FrameBuffer>();
+    protected volatile FrameBufferPool m_BufferPool = null;  //!< The capture buffers.  Buffers are released from whichever thread the SDK unlocks them on.
+    protected FrameBufferPoolPolicy m_BufferPoolPolicy = new FrameBufferPoolPolicy();
+    protected boolean m_OutOfBuffers = false;                 //!< The last attempt to get a buffer failed, so the warning isn't repeated every frame.
+    protected PixelBufferCapture m_PixelBufferCapture = null;  //!< The asynchronous capture used by captureFrame(), if any.
+    protected FrameSubmitter m_FrameSubmitter = null;          //!< The thread frames are submitted on, if any.
+    protected FrameCompositor m_FrameCompositor = null;        //!< The overlays drawn into each submitted frame, if any.
+    protected FramePacer m_FramePacer = new FramePacer();
+    protected StreamStatistics m_Statistics = new StreamStatistics();
+    protected LatencyStatistics m_Latencies = new LatencyStatistics();
+    protected AdaptiveBitrateController m_AdaptiveBitrate = null;  //!< Chooses the bitrate from the uplink throughput, if any.
+    protected boolean m_RestartForAdaptiveBitrate = false;         //!< Restart the broadcast when the adaptive bitrate changes rung.
 
     protected boolean m_SdkInitialized = false;    //!< Has Stream.Initialize() been called?
     protected boolean m_LoggedIn = false;          //!< The AuthToken as been validated and can be used for calls to the server.
@@ -159,6 +168,9 @@ public class BroadcastController
 
     protected String m_UserName = null;
     protected VideoParams m_VideoParams = null;         //!< The VideoParams currently in use.
+    protected VideoParams m_BaseVideoParams = null;     //!< The VideoParams the broadcast was started with before any adaptive bitrate changes.
+    protected VideoParams m_PendingRestartParams = null;  //!< The VideoParams to start with once the broadcast being restarted has stopped.
+    protected boolean m_RestartingBroadcast = false;    //!< The broadcast is being started again after a restart.
     protected AudioParams m_AudioParams = null;         //!< The AudioParams currently in use.
 
     protected IngestList m_IngestList = new IngestList( new IngestServer[0] );
@@ -171,6 +183,7 @@ public class BroadcastController
 
     protected long m_LastStreamInfoUpdateTime = 0;
     protected IngestTester m_IngestTester = null;
+    protected IngestResultCache m_IngestResultCache = null;
     private ErrorCode initializationError;
 
     //endregion
@@ -251,6 +264,9 @@ public class BroadcastController
 	
 	            // assume we're going to use the default ingest server unless overridden by the client
 	            m_IngestServer = m_IngestList.getDefaultServer();
+	            
+	            // use the results of previous ingest tests if there are any
+	            applyIngestResultCache();
 	
 	            setBroadcastState(BroadcastState.ReceivedIngestServers);
 	
@@ -371,10 +387,13 @@ public class BroadcastController
 	    @Override
 	    public void bufferUnlockCallback(long address)
 	    {
-	    	FrameBuffer buffer = FrameBuffer.lookupBuffer(address);
-	
+	    	FrameBufferPool pool = m_BufferPool;
+
 	        // Put back on the free list
-	        m_FreeBufferList.add(buffer);
+	    	if (pool != null)
+	    	{
+	    		pool.release(address);
+	    	}
 	    }
 	
 	    @Override
@@ -497,6 +516,30 @@ public class BroadcastController
 	    @Override
 	    public void statCallback(StatType type, long data)
 	    {
+	    	m_Statistics.onStat(type, data);
+	    }
+    };
+
+    protected FrameSubmitter.Target m_SubmitterTarget = new FrameSubmitter.Target()
+    {
+	    @Override
+	    public ErrorCode submitFrame(FrameBuffer buffer)
+	    {
+	    	long start = System.nanoTime();
+	    	ErrorCode ret = m_Stream.submitVideoFrame(buffer);
+	    	m_Latencies.getSubmit().recordSince(start);
+	    	
+		    return ret;
+	    }
+
+	    @Override
+	    public void discardFrame(FrameBuffer buffer)
+	    {
+	    	FrameBufferPool pool = m_BufferPool;
+	    	if (pool != null)
+	    	{
+	    		pool.release(buffer);
+	    	}
 	    }
     };
 
@@ -664,6 +707,155 @@ public class BroadcastController
     	m_Stream.setVolume(AudioDeviceType.TTV_PLAYBACK_DEVICE, value);
     }
     
+    /**
+     * The pool of capture buffers used while broadcasting.  This will be null when not broadcasting.
+     */
+    public FrameBufferPool getFrameBufferPool()
+    {
+    	return m_BufferPool;
+    }
+    
+    /**
+     * The policy which determines how many capture buffers are allocated.  Changes to the minimum and maximum take effect the next time 
+     * broadcasting starts.
+     */
+    public FrameBufferPoolPolicy getFrameBufferPoolPolicy()
+    {
+    	return m_BufferPoolPolicy;
+    }
+    public void setFrameBufferPoolPolicy(FrameBufferPoolPolicy value)
+    {
+    	if (value != null)
+    	{
+    		m_BufferPoolPolicy = value;
+    	}
+    }
+    
+    /**
+     * The asynchronous pixel buffer capture used by captureFrame().  When null captureFrame() falls back to a synchronous glReadPixels.
+     * The pixel buffers are created on the first capture after broadcasting starts and released when broadcasting stops so this
+     * should only be changed while not broadcasting.
+     */
+    public PixelBufferCapture getPixelBufferCapture()
+    {
+    	return m_PixelBufferCapture;
+    }
+    public void setPixelBufferCapture(PixelBufferCapture value)
+    {
+    	if (m_PixelBufferCapture != null && m_PixelBufferCapture != value)
+    	{
+    		m_PixelBufferCapture.shutdown();
+    	}
+    	
+    	m_PixelBufferCapture = value;
+    }
+    
+    /**
+     * The optional thread used to submit frames.  When set, submitFrame() queues the frame and returns immediately and the frame is handed
+     * to the SDK on the submitter's thread.  Problems with the submission are reported via onFrameSubmissionIssue during update().
+     * This should only be changed while not broadcasting.
+     */
+    public FrameSubmitter getFrameSubmitter()
+    {
+    	return m_FrameSubmitter;
+    }
+    public void setFrameSubmitter(FrameSubmitter value)
+    {
+    	if (m_FrameSubmitter != null && m_FrameSubmitter != value)
+    	{
+    		m_FrameSubmitter.stop();
+    	}
+    	
+    	m_FrameSubmitter = value;
+    }
+    
+    /**
+     * The optional overlays blended into every frame passed to submitFrame(), so they're seen on the broadcast but not on the screen.
+     * The layers are drawn on the thread calling submitFrame() before the frame is handed to the submitter.
+     */
+    public FrameCompositor getFrameCompositor()
+    {
+    	return m_FrameCompositor;
+    }
+    public void setFrameCompositor(FrameCompositor value)
+    {
+    	if (m_FrameCompositor != null && m_FrameCompositor != value)
+    	{
+    		m_FrameCompositor.shutdown();
+    	}
+    	
+    	m_FrameCompositor = value;
+    }
+    
+    /**
+     * The pacer which decides when to capture.  Its statistics show how closely captures are tracking the broadcast framerate.
+     */
+    public FramePacer getFramePacer()
+    {
+    	return m_FramePacer;
+    }
+    
+    /**
+     * The statistics reported by the SDK while broadcasting such as the upload bitrate.  The snapshots can be read from any thread.
+     */
+    public StreamStatistics getStreamStatistics()
+    {
+    	return m_Statistics;
+    }
+    
+    /**
+     * The latency distributions of capturing, submitting, polling the SDK and waiting for capture buffers.
+     */
+    public LatencyStatistics getLatencyStatistics()
+    {
+    	return m_Latencies;
+    }
+    
+    /**
+     * The cache of ingest test results from previous sessions.  When set, cached bitrates are filled into the ingest list when it's received
+     * and the best server is selected without testing.  Results of ingest tests are added to the cache and saved.  The cache should be 
+     * loaded before logging in.
+     */
+    public IngestResultCache getIngestResultCache()
+    {
+    	return m_IngestResultCache;
+    }
+    public void setIngestResultCache(IngestResultCache value)
+    {
+    	m_IngestResultCache = value;
+    }
+    
+    /**
+     * The controller which picks the bitrate from the measured upload throughput while broadcasting.  Its rungs are built from the 
+     * maxKbps passed to startBroadcasting.  Use getAdaptiveVideoParams() to get the params for the rung it has chosen.
+     */
+    public AdaptiveBitrateController getAdaptiveBitrateController()
+    {
+    	return m_AdaptiveBitrate;
+    }
+    public void setAdaptiveBitrateController(AdaptiveBitrateController value)
+    {
+    	m_AdaptiveBitrate = value;
+    }
+    
+    /**
+     * Whether or not to restart the broadcast with the new params when the adaptive bitrate controller changes rung.  The SDK can't change
+     * the bitrate of a running broadcast so this briefly interrupts the stream and fires onBroadcastStopped and onBroadcastStarted.
+     * When disabled the game can apply the change itself by listening to the controller.
+     *
+     * Each restart reconnects to the ingest server and viewers see the stream drop for several seconds, so a restart is only worth it for
+     * a change which will last.  When enabling this, hold each rung for a long time with the controller's
+     * setMinSwitchIntervalMilliseconds, a few minutes rather than the default few seconds, and give the policy a long increase interval.
+     */
+    public boolean getRestartForAdaptiveBitrate()
+    {
+    	return m_RestartForAdaptiveBitrate;
+    }
+    public void setRestartForAdaptiveBitrate(boolean value)
+    {
+    	m_RestartForAdaptiveBitrate = value;
+    }
+    
     /**
      * The IngestTester instance currently being used to run the ingest test. This will only be non-null while the state is IngestTesting.
      */
@@ -703,15 +895,26 @@ public class BroadcastController
     //endregion
 
     public BroadcastController()
+    {
+    	this(null, new DesktopStreamAPI());
+    }
+    
+    /**
+     * Creates a controller which uses the given API implementations, such as the simulated APIs in the bench tree for running without
+     * the SDK library.
+     * @param coreAPI The core API to use if the Core hasn't been created yet or null to use the SDK's
+     * @param streamAPI The stream API to use
+     */
+    public BroadcastController(CoreAPI coreAPI, StreamAPI streamAPI)
     {
     	m_Core = Core.getInstance();
     	
     	if (Core.getInstance() == null)
     	{
-    		m_Core = new Core( new StandardCoreAPI() );
+    		m_Core = new Core( coreAPI != null ? coreAPI : new StandardCoreAPI() );
     	}
     	
-    	m_Stream = new Stream(new DesktopStreamAPI());
+    	m_Stream = new Stream(streamAPI);
     }
     
     protected PixelFormat determinePixelFormat()
@@ -736,11 +939,13 @@ public class BroadcastController
         }
         
         m_Stream.setStreamCallbacks(streamCallbacks);
+        m_Stream.setStatCallbacks(statCallbacks);
         
         ErrorCode err = m_Core.initialize(m_ClientId, dllPath);
         if (!checkError(err))
         {
         	m_Stream.setStreamCallbacks(null);
+        	m_Stream.setStatCallbacks(null);
             initializationError = err;
         	return false;
         }
@@ -749,6 +954,7 @@ public class BroadcastController
         if (!checkError(err))
         {
         	m_Stream.setStreamCallbacks(null);
+        	m_Stream.setStatCallbacks(null);
         	m_Core.shutdown();
             initializationError = err;
         	return false;
@@ -1075,6 +1281,35 @@ public class BroadcastController
     	return videoParams;
     }
     
+    /**
+     * Returns the VideoParams for the rung the adaptive bitrate controller has chosen.  The resolution is scaled down along with the
+     * bitrate so the bits per pixel of the original params are kept.
+     * @return The VideoParams or null if not broadcasting with an adaptive bitrate controller
+     */
+    public VideoParams getAdaptiveVideoParams()
+    {
+    	if (m_AdaptiveBitrate == null || m_BaseVideoParams == null || m_AdaptiveBitrate.getRungCount() == 0)
+    	{
+    		return null;
+    	}
+    	
+    	VideoParams base = m_BaseVideoParams;
+    	VideoParams videoParams = base.clone();
+    	videoParams.maxKbps = m_AdaptiveBitrate.getCurrentKbps();
+    	
+    	if (videoParams.maxKbps < base.maxKbps)
+    	{
+        	float bitsPerPixel = base.maxKbps * 1000.0f / ((float)base.outputWidth * base.outputHeight * base.targetFps);
+        	float aspectRatio = (float)base.outputWidth / (float)base.outputHeight;
+        	
+        	int[] resolution = m_Stream.getMaxResolution(videoParams.maxKbps, base.targetFps, bitsPerPixel, aspectRatio);
+        	videoParams.outputWidth = Math.min(resolution[0], base.outputWidth);
+        	videoParams.outputHeight = Math.min(resolution[1], base.outputHeight);
+    	}
+    	
+    	return videoParams;
+    }
+    
     /**
      * Begins broadcast using the given VideoParams.
      * @param videoParams The video params
@@ -1117,6 +1352,23 @@ public class BroadcastController
             return false;
         }
 
+        startFrameSubmitter();
+
+        m_FramePacer.reset(m_VideoParams.targetFps);
+        m_Statistics.reset();
+        m_Latencies.reset();
+
+        // keep the rung chosen before a restart
+        if (!m_RestartingBroadcast)
+        {
+        	m_BaseVideoParams = m_VideoParams.clone();
+        	
+        	if (m_AdaptiveBitrate != null)
+        	{
+        		m_AdaptiveBitrate.reset(m_VideoParams.maxKbps);
+        	}
+        }
+
         setBroadcastState(BroadcastState.Starting);
 
         return true;
@@ -1133,11 +1385,16 @@ public class BroadcastController
             return false;
         }
 
+        // the submitter mustn't be inside the SDK while the stream stops, its queued frames go back to the pool
+        stopFrameSubmitter();
+
         ErrorCode ret = m_Stream.stop(true);
         if (ErrorCode.failed(ret))
         {
             String err = ErrorCode.getString(ret);
             reportError(String.format("Error while stopping the broadcast: %s", err));
+
+            startFrameSubmitter();
             return false;
         }
 		
@@ -1145,6 +1402,22 @@ public class BroadcastController
         
 		return ErrorCode.succeeded(ret);
     }
+    
+    /**
+     * Stops the broadcast and starts it again with the given VideoParams once it has stopped.  The restart happens during update().
+     * @param videoParams The video params to restart with
+     * @return Whether or not the broadcast is being stopped
+     */
+    public boolean restartBroadcasting(VideoParams videoParams)
+    {
+    	if (videoParams == null || !stopBroadcasting())
+    	{
+    		return false;
+    	}
+    	
+    	m_PendingRestartParams = videoParams.clone();
+    	return true;
+    }
 	
     /**
      * Pauses the current broadcast and displays the default pause screen.
@@ -1157,6 +1430,9 @@ public class BroadcastController
 		    return false;
 	    }
 
+	    // the submitter mustn't be inside the SDK while the video pauses, it's restarted on resume
+	    stopFrameSubmitter();
+
         ErrorCode ret = m_Stream.pauseVideo();
 	    if ( ErrorCode.failed(ret) )
 	    {
@@ -1168,6 +1444,7 @@ public class BroadcastController
 	    }
 	    else
 	    {
+	    	m_FramePacer.restart();
 	    	setBroadcastState(BroadcastState.Paused);
 	    }
 
@@ -1185,6 +1462,9 @@ public class BroadcastController
 		    return false;
 	    }
 		
+		// the time spent paused shouldn't count as missed captures
+		m_FramePacer.restart();
+		startFrameSubmitter();
 		setBroadcastState(BroadcastState.Broadcasting);
 		
 		return true;
@@ -1307,9 +1587,21 @@ public class BroadcastController
     		return;
     	}
     	
+        long start = System.nanoTime();
         ErrorCode ret = m_Stream.pollTasks();
+        m_Latencies.getPollTasks().recordSince(start);
         checkError(ret);
 
+        // report any problems the submitter thread had
+        if (m_FrameSubmitter != null)
+        {
+        	ErrorCode result;
+        	while ((result = m_FrameSubmitter.pollResult()) != null)
+        	{
+        		handleFrameSubmissionResult(result);
+        	}
+        }
+
         // update the ingest tester
         if (getIsIngestTesting())
         {
@@ -1318,11 +1610,26 @@ public class BroadcastController
             // all done testing
             if (m_IngestTester.getIsDone())
             {
+            	storeIngestResults(m_IngestTester);
                 m_IngestTester = null;
                 setBroadcastState(BroadcastState.ReadyToBroadcast);
             }
         }        
         
+        // start the broadcast again once it has stopped
+        if (m_PendingRestartParams != null && m_BroadcastState != BroadcastState.Stopping)
+        {
+        	VideoParams videoParams = m_PendingRestartParams;
+        	m_PendingRestartParams = null;
+        	
+        	if (getIsReadyToBroadcast())
+        	{
+        		m_RestartingBroadcast = true;
+        		startBroadcasting(videoParams);
+        		m_RestartingBroadcast = false;
+        	}
+        }
+        
 	    switch (m_BroadcastState)
 	    {
 		    // Kick off an authentication request
@@ -1396,6 +1703,8 @@ public class BroadcastController
 		    case Broadcasting:
 			{
 				updateStreamInfo();
+				updateStatistics();
+				updateBufferPool();
 				break;
 			}
 		    default:
@@ -1405,6 +1714,35 @@ public class BroadcastController
 	    }
     }
 
+    protected void updateStatistics()
+    {
+    	long now = System.nanoTime();
+    	
+    	// only poll every so often
+    	if (!m_Statistics.getIsPollDue(now))
+    	{
+    		return;
+    	}
+    	
+    	// the stat callbacks are fired during the poll
+    	ErrorCode ret = m_Stream.pollStats();
+    	if (ErrorCode.failed(ret))
+    	{
+            String err = ErrorCode.getString(ret);
+            reportError(String.format("Error in TTV_PollStats: %s", err));
+    	}
+    	
+    	m_Statistics.onPolled(now);
+    	
+    	if (m_AdaptiveBitrate != null && m_AdaptiveBitrate.update(m_Statistics.getSnapshot()))
+    	{
+    		if (m_RestartForAdaptiveBitrate && m_BroadcastState == BroadcastState.Broadcasting)
+    		{
+    			restartBroadcasting(getAdaptiveVideoParams());
+    		}
+    	}
+    }
+
     protected void updateStreamInfo()
     {
     	long now = System.nanoTime();
@@ -1435,7 +1773,50 @@ public class BroadcastController
      */
     public IngestTester startIngestTest()
     {
-        if (!getIsReadyToBroadcast() || m_IngestList == null)
+    	return startIngestTest(0);
+    }
+
+    /**
+     * If the user is logged in and ready to broadcast this will kick off an asynchronous ingest test.  All the servers are first probed at 
+     * once for their connect latency and only the closest ones get the full bandwidth test which is much faster than testing every server.
+     * Servers which aren't tested are left with a bitrate of 0.
+     * @param maxServersToTest The number of servers to run the bandwidth test on or 0 to test them all
+     * @return The IngestTester instance that is valid during the test.
+     */
+    public IngestTester startIngestTest(int maxServersToTest)
+    {
+    	return startIngestTest(m_IngestList, maxServersToTest);
+    }
+
+    /**
+     * Starts an ingest test of only the servers which don't have a fresh result in the ingest result cache.  If there is no cache this
+     * is the same as startIngestTest.
+     *
+     * This is not a background test.  The SDK measures bandwidth by streaming to each server so, like startIngestTest, the controller is
+     * in the IngestTesting state and can't start broadcasting until the test finishes or is cancelled.  Testing only the stale servers
+     * keeps it short but it should be started when the user isn't about to go live, such as from a settings screen.
+     * @param maxServersToTest The number of servers to run the bandwidth test on or 0 to test them all
+     * @return The IngestTester instance that is valid during the test or null if all the results are fresh
+     */
+    public IngestTester startStaleIngestTest(int maxServersToTest)
+    {
+    	if (m_IngestResultCache == null || m_IngestList == null)
+    	{
+    		return startIngestTest(maxServersToTest);
+    	}
+    	
+    	IngestServer[] stale = m_IngestResultCache.getStaleServers(m_IngestList);
+    	if (stale.length == 0)
+    	{
+    		return null;
+    	}
+    	
+    	return startIngestTest(new IngestList(stale), maxServersToTest);
+    }
+
+    protected IngestTester startIngestTest(IngestList list, int maxServersToTest)
+    {
+        if (!getIsReadyToBroadcast() || list == null)
         {
             return null;
         }
@@ -1445,7 +1826,8 @@ public class BroadcastController
             return null;
         }
 
-        m_IngestTester = new IngestTester(m_Stream, m_IngestList);
+        m_IngestTester = new IngestTester(m_Stream, list);
+        m_IngestTester.setMaxServersToTest(maxServersToTest);
         m_IngestTester.start();
 
         setBroadcastState(BroadcastState.IngestTesting);
@@ -1464,58 +1846,343 @@ public class BroadcastController
         }
     }
 
+    /**
+     * Fills in the cached bitrates and selects the best server if any results are fresh.
+     */
+    protected void applyIngestResultCache()
+    {
+    	if (m_IngestResultCache == null || m_IngestList == null)
+    	{
+    		return;
+    	}
+    	
+    	if (m_IngestResultCache.apply(m_IngestList) > 0)
+    	{
+    		IngestServer best = m_IngestList.getBestServer();
+    		if (best != null && best.bitrateKbps > 0)
+    		{
+    			m_IngestServer = best;
+    		}
+    	}
+    }
+    
+    /**
+     * Adds the results of a finished ingest test to the cache and selects the best server.
+     */
+    protected void storeIngestResults(IngestTester tester)
+    {
+    	if (m_IngestResultCache == null)
+    	{
+    		return;
+    	}
+    	
+    	List<IngestTestResult> results = tester.getResults();
+    	for (int i = 0; i < results.size(); ++i)
+    	{
+    		m_IngestResultCache.put(results.get(i));
+    	}
+    	
+    	results = tester.getProbeResults();
+    	for (int i = 0; i < results.size(); ++i)
+    	{
+    		m_IngestResultCache.putConnectMilliseconds(results.get(i));
+    	}
+    	
+    	if (!m_IngestResultCache.save())
+    	{
+    		reportWarning(String.format("Unable to save the ingest test results to %s", m_IngestResultCache.getFile().getPath()));
+    	}
+    	
+    	applyIngestResultCache();
+    }
+
     //#endregion    
     
     protected boolean allocateBuffers()
     {
-        // Allocate exactly 3 buffers to use as the capture destination while streaming.
-        // These buffers are passed to the SDK.
-        for (int i = 0; i < s_NumSdkBuffers; ++i)
+        // Allocate the minimum number of buffers to use as the capture destination while streaming.  The pool can grow up to the 
+    	// maximum if the SDK holds on to all of them.  These buffers are passed to the SDK.
+    	FrameBufferPool pool = new FrameBufferPool(m_BufferPoolPolicy.getMaxBuffers());
+    	
+        for (int i = 0; i < m_BufferPoolPolicy.getMinBuffers(); ++i)
         {
-        	FrameBuffer buffer = m_Stream.allocateFrameBuffer(m_VideoParams.outputWidth * m_VideoParams.outputHeight * 4);
-            if (!buffer.getIsValid())
+            if (!allocateBuffer(pool))
             {
-                reportError(String.format("Error while allocating frame buffer"));
+                pool.freeAll();
                 return false;
             }
+        }
+
+        m_BufferPoolPolicy.reset(pool);
+        m_BufferPool = pool;
+        m_OutOfBuffers = false;
+
+        return true;
+    }
 
-            m_CaptureBuffers.add(buffer);
-            m_FreeBufferList.add(buffer);
+    protected boolean allocateBuffer(FrameBufferPool pool)
+    {
+    	// pooled buffers are found by slot and freed by the pool rather than the finalizer
+    	FrameBuffer buffer = new PooledFrameBuffer(m_Stream.m_StreamAPI, m_VideoParams.outputWidth * m_VideoParams.outputHeight * 4);
+        if (!buffer.getIsValid())
+        {
+            reportError(String.format("Error while allocating frame buffer"));
+            return false;
+        }
+
+        if (pool.add(buffer) < 0)
+        {
+        	buffer.free();
+        	return false;
         }
 
         return true;
     }
     
+    /**
+     * Gives a spare buffer back if the pool has not needed it for a while.
+     */
+    protected void updateBufferPool()
+    {
+    	FrameBufferPool pool = m_BufferPool;
+    	if (pool == null)
+    	{
+    		return;
+    	}
+    	
+    	if (m_BufferPoolPolicy.shouldShrink(pool))
+    	{
+    		pool.freeOne();
+    	}
+    }
+    
+    protected void startFrameSubmitter()
+    {
+    	if (m_FrameSubmitter != null)
+    	{
+    		m_FrameSubmitter.start(m_SubmitterTarget);
+    	}
+    }
+    
+    /**
+     * Waits for the submitter to leave the SDK and discards any frames it still has queued.  Called before any other call which changes
+     * the state of the stream since nothing else keeps the submitter thread's SDK calls apart from the game thread's.
+     */
+    protected void stopFrameSubmitter()
+    {
+    	if (m_FrameSubmitter != null)
+    	{
+    		m_FrameSubmitter.stop();
+    	}
+    }
+    
     protected void cleanupBuffers()
     {
+    	// the submitter may be inside the SDK with one of the buffers so wait for it to finish first
+    	stopFrameSubmitter();
+    	
         // Delete the capture buffers
-        for (int i = 0; i < m_CaptureBuffers.size(); ++i)
-        {
-        	FrameBuffer buffer = m_CaptureBuffers.get(i);
-            buffer.free();
-        }
+    	FrameBufferPool pool = m_BufferPool;
+    	m_BufferPool = null;
 
-        m_FreeBufferList.clear();
-        m_CaptureBuffers.clear();
+    	if (pool != null)
+    	{
+    		pool.freeAll();
+    	}
+    	
+    	// any readbacks still in flight are discarded
+    	if (m_PixelBufferCapture != null)
+    	{
+    		m_PixelBufferCapture.shutdown();
+    	}
+    	
+    	if (m_FrameCompositor != null)
+    	{
+    		m_FrameCompositor.shutdown();
+    	}
     }
 
+    /**
+     * Retrieves a free buffer to capture into without waiting.  Frames rendered in Java can be written directly into the buffer with
+     * PooledFrameBuffer.setPixels() or write().
+     * @return The buffer or null if all the buffers are currently in use by the SDK
+     */
     public FrameBuffer getNextFreeBuffer()
     {
-        if (m_FreeBufferList.size() == 0)
+    	FrameBufferPool pool = m_BufferPool;
+    	if (pool == null)
+    	{
+    		return null;
+    	}
+
+    	long start = System.nanoTime();
+    	FrameBuffer buffer = pool.acquire();
+    	
+    	// the SDK is holding on to all the buffers so make another one if allowed
+    	if (buffer == null && m_BufferPoolPolicy.shouldGrow(pool) && allocateBuffer(pool))
+    	{
+    		buffer = pool.acquire();
+    	}
+    	
+    	// failed attempts are recorded too since starvation is what the histogram is meant to show
+    	m_Latencies.getBufferWait().recordSince(start);
+    	
+        if (buffer == null)
         {
-            reportError(String.format("Out of free buffers, this should never happen"));
+            // only report running out, FrameBufferPool.getEmptyAcquireCount() counts every failed attempt
+            if (!m_OutOfBuffers)
+            {
+                m_OutOfBuffers = true;
+                reportWarning(String.format("Out of free buffers"));
+            }
             return null;
         }
 
-        FrameBuffer buffer = m_FreeBufferList.get(m_FreeBufferList.size() - 1);
-        m_FreeBufferList.remove(m_FreeBufferList.size() - 1);
+        m_OutOfBuffers = false;
+        m_BufferPoolPolicy.onBufferAcquired(pool);
+        
+        return buffer;
+    }
+
+    /**
+     * Retrieves a free buffer to capture into, waiting up to the given time for the SDK to release one.
+     * @param timeoutMilliseconds The maximum time to wait
+     * @return The buffer or null if none was released in time
+     */
+    public FrameBuffer getNextFreeBuffer(long timeoutMilliseconds)
+    {
+    	FrameBufferPool pool = m_BufferPool;
+    	if (pool == null)
+    	{
+    		return null;
+    	}
 
+    	long start = System.nanoTime();
+    	FrameBuffer buffer = pool.acquire();
+    	
+    	// prefer growing the pool over waiting
+    	if (buffer == null && m_BufferPoolPolicy.shouldGrow(pool) && allocateBuffer(pool))
+    	{
+    		buffer = pool.acquire();
+    	}
+    	
+    	if (buffer == null)
+    	{
+    		buffer = pool.acquire(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+    	}
+    	
+    	m_Latencies.getBufferWait().recordSince(start);
+    	
+        if (buffer == null)
+        {
+            if (!m_OutOfBuffers)
+            {
+                m_OutOfBuffers = true;
+                reportWarning(String.format("Timed out waiting for a free buffer"));
+            }
+            return null;
+        }
+
+        m_OutOfBuffers = false;
+        m_BufferPoolPolicy.onBufferAcquired(pool);
+        
         return buffer;
     }
     
+    /**
+     * Determines whether or not the frame being rendered should be captured so that frames are submitted at the broadcast framerate.
+     * Call this exactly once per rendered frame and only capture and submit the frame if it returns true.  Returns false while not 
+     * broadcasting or paused.
+     */
+    public boolean shouldCaptureThisFrame()
+    {
+        if (!this.getIsBroadcasting() || this.getIsPaused())
+        {
+            return false;
+        }
+
+        return m_FramePacer.shouldCapture(System.nanoTime());
+    }
+    
     public void captureFrameBuffer_ReadPixels(FrameBuffer buffer)
     {
+    	long start = System.nanoTime();
     	m_Stream.captureFrameBuffer_ReadPixels(buffer);
+    	m_Latencies.getCapture().recordSince(start);
+    }
+    
+    /**
+     * Captures the current contents of the framebuffer and submits it to the stream.  Must be called on the thread which owns the GL context.
+     * 
+     * If a PixelBufferCapture has been set the framebuffer is read back asynchronously and the frame captured getLatencyFrames() calls 
+     * earlier is submitted instead, so the render thread never waits on the readback.  Otherwise this is the same as capturing with 
+     * captureFrameBuffer_ReadPixels() and calling submitFrame().
+     * @return The result of submitting the frame or TTV_WRN_NOTENOUGHDATA if no frame was submitted this time
+     */
+    public ErrorCode captureFrame()
+    {
+        if (!this.getIsBroadcasting() && !this.getIsPaused())
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+    	PixelBufferCapture capture = m_PixelBufferCapture;
+    	
+    	if (capture != null && !capture.getIsInitialized())
+    	{
+    		if (!capture.initialize(m_VideoParams.outputWidth, m_VideoParams.outputHeight))
+    		{
+    			reportWarning(String.format("Unable to create the pixel buffers, falling back to glReadPixels"));
+    			m_PixelBufferCapture = null;
+    			capture = null;
+    		}
+    	}
+    	
+    	if (capture == null)
+    	{
+            // all the buffers are still in use by the SDK so skip this capture
+    		FrameBuffer buffer = getNextFreeBuffer();
+    		if (buffer == null)
+    		{
+    			return ErrorCode.TTV_WRN_NOTENOUGHDATA;
+    		}
+    		
+    		captureFrameBuffer_ReadPixels(buffer);
+    		return submitFrame(buffer);
+    	}
+    	
+    	// start reading this frame back and then hand over the oldest readback which should have finished by now
+    	long start = System.nanoTime();
+    	capture.readPixels();
+    	long readbackNanos = System.nanoTime() - start;
+    	
+    	if (!capture.getHasCompletedFrame())
+    	{
+    		return ErrorCode.TTV_WRN_NOTENOUGHDATA;
+    	}
+    	
+    	// if the SDK is holding on to all the buffers the readback is left in place and will be dropped by a later capture
+    	FrameBuffer buffer = getNextFreeBuffer();
+    	if (buffer == null)
+    	{
+    		return ErrorCode.TTV_WRN_NOTENOUGHDATA;
+    	}
+    	
+    	start = System.nanoTime();
+    	boolean copied = capture.copyCompletedFrame(buffer);
+    	m_Latencies.getCapture().record(readbackNanos + System.nanoTime() - start);
+    	
+    	if (!copied)
+    	{
+    		FrameBufferPool pool = m_BufferPool;
+    		if (pool != null)
+    		{
+    			pool.release(buffer);
+    		}
+    		return ErrorCode.TTV_WRN_NOTENOUGHDATA;
+    	}
+    	
+    	return submitFrame(buffer);
     }
     
     public ErrorCode submitFrame(FrameBuffer bgraFrame)
@@ -1529,8 +2196,46 @@ public class BroadcastController
             return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
         }
 
+        // draw the overlays before the frame leaves this thread
+        FrameCompositor compositor = m_FrameCompositor;
+        if (compositor != null)
+        {
+        	long start = System.nanoTime();
+        	if (!compositor.composite(bgraFrame, m_VideoParams) && !PooledFrameBuffer.getCanAccessPixels())
+        	{
+        		// frames can't be written from Java on this JVM so there's no point trying again
+        		reportWarning(String.format("Unable to draw the overlays into the frame, disabling the compositor"));
+        		setFrameCompositor(null);
+        	}
+        	// otherwise only this frame couldn't be written, such as one which doesn't match the video size, so it goes out without the overlays
+        	m_Latencies.getComposite().recordSince(start);
+        }
+
+        // hand the frame off to the submitter thread if there is one
+        FrameSubmitter submitter = m_FrameSubmitter;
+        if (submitter != null && submitter.getIsRunning())
+        {
+        	ErrorCode ret = submitter.enqueue(bgraFrame);
+
+        	// a frame dropped because the queue is full means the encoder is falling behind, which is only a warning
+        	if (ret == ErrorCode.TTV_WRN_FRAMES_QUEUEING || ret == ErrorCode.TTV_EC_FRAME_QUEUE_FULL)
+        	{
+        		handleFrameSubmissionResult(ErrorCode.TTV_WRN_FRAMES_QUEUEING);
+        	}
+
+        	return ret;
+        }
+
+        long start = System.nanoTime();
         ErrorCode ret = m_Stream.submitVideoFrame(bgraFrame);
+        m_Latencies.getSubmit().recordSince(start);
+        handleFrameSubmissionResult(ret);
         
+        return ret;
+    }
+    
+    protected void handleFrameSubmissionResult(ErrorCode ret)
+    {
         // if there is a problem when submitting a frame let the client know
         if (ret != ErrorCode.TTV_EC_SUCCESS)
         {
@@ -1547,13 +2252,16 @@ public class BroadcastController
                 stopBroadcasting();
             }
 
+            if (m_AdaptiveBitrate != null)
+            {
+            	m_AdaptiveBitrate.onFrameSubmissionIssue(ret);
+            }
+
             if (m_Listener != null)
             {
             	m_Listener.onFrameSubmissionIssue(ret);
             }
         }
-        
-        return ret;
     }
     
     protected boolean checkError(ErrorCode err)
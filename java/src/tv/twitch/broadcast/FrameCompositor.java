@@ -0,0 +1,690 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Blends overlays such as chat, a webcam or alerts into each captured frame before it's submitted, so they appear on the broadcast but
+ * not on the player's screen.  Set the instance on the BroadcastController with setFrameCompositor() and the layers are drawn, in the
+ * order they were added, into every frame passed to submitFrame().
+ *
+ * Layers are given in ARGB and converted to the frame's pixel format with premultiplied alpha when they change.  Only the changed area of
+ * a layer is converted and each changed row is split into runs of transparent pixels, which are skipped, opaque pixels, which are copied,
+ * and translucent pixels, which are blended.  Blending works on two colour channels at a time within an int.  A mostly static overlay
+ * therefore costs a copy of its visible pixels per frame and nothing else.  Large frames can be split into bands of rows blended on
+ * several threads.
+ *
+ * The compositor and its layers aren't thread safe.  Update the layers on the thread which submits frames.
+ */
+public class FrameCompositor
+{
+    protected static final int RUN_COPY = 0;        //!< Every pixel in the run is opaque.
+    protected static final int RUN_BLEND = 1;       //!< The run has translucent pixels.
+    protected static final int RUN_SKIP = 2;        //!< Every pixel in the run is transparent.  These runs aren't stored.
+    protected static final int MIN_RUN_LENGTH = 16; //!< Shorter opaque or transparent spans are blended with their neighbours.
+    protected static final int[] NO_RUNS = new int[0];
+
+    /**
+     * An image drawn over the frame at a fixed position.
+     */
+    public static class Layer
+    {
+        protected final int m_Width;
+        protected final int m_Height;
+        protected final int[] m_Pixels;         //!< The ARGB pixels as given.
+        protected final int[] m_Prepared;       //!< The pixels premultiplied and in the frame's layout.
+        protected final int[][] m_Runs;         //!< The start, length and type of each run of visible pixels in each row.
+
+        protected int m_X = 0;
+        protected int m_Y = 0;
+        protected boolean m_Visible = true;
+
+        protected int m_Layout = -1;            //!< The layout the pixels were prepared for.
+        protected int m_DirtyLeft = 0;
+        protected int m_DirtyTop = 0;
+        protected int m_DirtyRight = 0;         //!< Exclusive.
+        protected int m_DirtyBottom = 0;        //!< Exclusive.
+
+        public Layer(int width, int height)
+        {
+            if (width <= 0 || height <= 0)
+            {
+                throw new IllegalArgumentException("width and height must be positive");
+            }
+
+            m_Width = width;
+            m_Height = height;
+            m_Pixels = new int[width * height];
+            m_Prepared = new int[width * height];
+            m_Runs = new int[height][];
+
+            for (int y = 0; y < height; ++y)
+            {
+                m_Runs[y] = NO_RUNS;
+            }
+        }
+
+        //region Properties
+
+        public int getWidth()
+        {
+            return m_Width;
+        }
+
+        public int getHeight()
+        {
+            return m_Height;
+        }
+
+        /**
+         * The position of the top left corner of the layer in the frame.  The layer may be partly or entirely outside the frame.
+         */
+        public int getX()
+        {
+            return m_X;
+        }
+        public int getY()
+        {
+            return m_Y;
+        }
+        public void setPosition(int x, int y)
+        {
+            m_X = x;
+            m_Y = y;
+        }
+
+        public boolean getVisible()
+        {
+            return m_Visible;
+        }
+        public void setVisible(boolean visible)
+        {
+            m_Visible = visible;
+        }
+
+        //endregion
+
+        /**
+         * Replaces all the pixels of the layer.
+         * @param argb The pixels in ARGB, not premultiplied
+         * @param offset The index of the top left pixel
+         * @param stride The number of pixels between the starts of each row
+         */
+        public void setPixels(int[] argb, int offset, int stride)
+        {
+            setPixels(0, 0, m_Width, m_Height, argb, offset, stride);
+        }
+
+        /**
+         * Replaces the pixels in a rectangle of the layer.  Only the rectangle is converted before the next frame.
+         * @param argb The pixels in ARGB, not premultiplied
+         * @param offset The index of the pixel to place at (x, y)
+         * @param stride The number of pixels between the starts of each row
+         */
+        public void setPixels(int x, int y, int width, int height, int[] argb, int offset, int stride)
+        {
+            if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > m_Width || y + height > m_Height)
+            {
+                throw new IndexOutOfBoundsException("rectangle is outside the layer");
+            }
+
+            for (int row = 0; row < height; ++row)
+            {
+                System.arraycopy(argb, offset + row * stride, m_Pixels, (y + row) * m_Width + x, width);
+            }
+
+            markDirty(x, y, width, height);
+        }
+
+        /**
+         * Makes the whole layer transparent.
+         */
+        public void clear()
+        {
+            Arrays.fill(m_Pixels, 0);
+            markDirty(0, 0, m_Width, m_Height);
+        }
+
+        protected void markDirty(int x, int y, int width, int height)
+        {
+            if (width == 0 || height == 0)
+            {
+                return;
+            }
+
+            if (m_DirtyRight == m_DirtyLeft || m_DirtyBottom == m_DirtyTop)
+            {
+                m_DirtyLeft = x;
+                m_DirtyTop = y;
+                m_DirtyRight = x + width;
+                m_DirtyBottom = y + height;
+            }
+            else
+            {
+                m_DirtyLeft = Math.min(m_DirtyLeft, x);
+                m_DirtyTop = Math.min(m_DirtyTop, y);
+                m_DirtyRight = Math.max(m_DirtyRight, x + width);
+                m_DirtyBottom = Math.max(m_DirtyBottom, y + height);
+            }
+        }
+
+        /**
+         * Converts the dirty rectangle for the given layout and rebuilds the runs of the rows it covers.
+         */
+        protected void prepare(int layout, int alphaShift, int redShift, int greenShift, int blueShift)
+        {
+            if (layout != m_Layout)
+            {
+                m_Layout = layout;
+                markDirty(0, 0, m_Width, m_Height);
+            }
+
+            if (m_DirtyRight == m_DirtyLeft || m_DirtyBottom == m_DirtyTop)
+            {
+                return;
+            }
+
+            for (int y = m_DirtyTop; y < m_DirtyBottom; ++y)
+            {
+                int row = y * m_Width;
+                for (int i = row + m_DirtyLeft; i < row + m_DirtyRight; ++i)
+                {
+                    int argb = m_Pixels[i];
+                    int a = argb >>> 24;
+
+                    int r = premultiply((argb >> 16) & 0xFF, a);
+                    int g = premultiply((argb >> 8) & 0xFF, a);
+                    int b = premultiply(argb & 0xFF, a);
+
+                    m_Prepared[i] = (a << alphaShift) | (r << redShift) | (g << greenShift) | (b << blueShift);
+                }
+
+                m_Runs[y] = findRuns(m_Pixels, row, m_Width);
+            }
+
+            m_DirtyLeft = m_DirtyTop = m_DirtyRight = m_DirtyBottom = 0;
+        }
+
+        protected static int premultiply(int c, int a)
+        {
+            int t = c * a + 128;
+            return (t + (t >> 8)) >> 8;
+        }
+
+        protected static int[] findRuns(int[] argb, int offset, int width)
+        {
+            int[] runs = new int[3 * 4];
+            int count = 0;
+
+            int x = 0;
+            while (x < width)
+            {
+                int start = x;
+                int type = getRunType(argb[offset + x]);
+                while (x < width && getRunType(argb[offset + x]) == type)
+                {
+                    x++;
+                }
+
+                // blending gives the same result for opaque and transparent pixels so short spans of them are folded into a blended
+                // run rather than paying the overhead of a run of their own
+                if (x - start < MIN_RUN_LENGTH)
+                {
+                    type = RUN_BLEND;
+                }
+
+                if (count > 0 && runs[count - 1] == type && runs[count - 3] + runs[count - 2] == start)
+                {
+                    runs[count - 2] += x - start;
+                }
+                else if (type != RUN_SKIP)
+                {
+                    if (count + 3 > runs.length)
+                    {
+                        runs = Arrays.copyOf(runs, runs.length * 2);
+                    }
+
+                    runs[count++] = start;
+                    runs[count++] = x - start;
+                    runs[count++] = type;
+                }
+            }
+
+            return count == 0 ? NO_RUNS : Arrays.copyOf(runs, count);
+        }
+
+        protected static int getRunType(int argb)
+        {
+            int a = argb >>> 24;
+            return a == 0 ? RUN_SKIP : a == 255 ? RUN_COPY : RUN_BLEND;
+        }
+    }
+
+    /**
+     * The pixels of the frame being composited into, addressed by pixel.  Each band of rows gets its own target from forBand().
+     */
+    protected interface Target
+    {
+        void get(int index, int[] dst, int offset, int count);
+        void put(int index, int[] src, int offset, int count);
+        Target forBand();
+    }
+
+    protected static class BufferTarget implements Target
+    {
+        protected final IntBuffer m_Pixels;
+
+        public BufferTarget(IntBuffer pixels)
+        {
+            m_Pixels = pixels;
+        }
+
+        public void get(int index, int[] dst, int offset, int count)
+        {
+            m_Pixels.position(index);
+            m_Pixels.get(dst, offset, count);
+        }
+
+        public void put(int index, int[] src, int offset, int count)
+        {
+            m_Pixels.position(index);
+            m_Pixels.put(src, offset, count);
+        }
+
+        public Target forBand()
+        {
+            // buffers have a position so each thread needs its own
+            return new BufferTarget(m_Pixels.duplicate());
+        }
+    }
+
+    protected static class FrameBufferTarget implements Target
+    {
+        protected final PooledFrameBuffer m_Buffer;
+
+        public FrameBufferTarget(PooledFrameBuffer buffer)
+        {
+            m_Buffer = buffer;
+        }
+
+        public void get(int index, int[] dst, int offset, int count)
+        {
+            m_Buffer.getPixels(index, dst, offset, count);
+        }
+
+        public void put(int index, int[] src, int offset, int count)
+        {
+            m_Buffer.setPixels(index, src, offset, count);
+        }
+
+        public Target forBand()
+        {
+            return this;
+        }
+    }
+
+    protected final ArrayList<Layer> m_Layers = new ArrayList<Layer>();
+    protected int m_NumThreads = 1;
+    protected int m_MinRowsPerThread = 64;
+    protected ExecutorService m_Executor = null;
+    protected int m_ExecutorThreads = 0;
+    protected int[][] m_Scratch = new int[0][];     //!< A row of pixels to blend in for each band.
+
+    protected int m_Layout = -1;
+    protected int m_AlphaShift = 0;
+    protected int m_RedShift = 0;
+    protected int m_GreenShift = 0;
+    protected int m_BlueShift = 0;
+
+    protected long m_NumFramesComposited = 0;
+
+    public FrameCompositor()
+    {
+    }
+
+    //region Properties
+
+    /**
+     * The layers in the order they're drawn.
+     */
+    public List<Layer> getLayers()
+    {
+        return Collections.unmodifiableList(m_Layers);
+    }
+
+    /**
+     * The maximum number of threads to blend on, including the thread calling composite().
+     */
+    public int getNumThreads()
+    {
+        return m_NumThreads;
+    }
+    public void setNumThreads(int value)
+    {
+        m_NumThreads = Math.max(1, value);
+    }
+
+    /**
+     * The fewest rows worth handing to another thread.  Frames with fewer than twice this many rows are blended on one thread.
+     */
+    public int getMinRowsPerThread()
+    {
+        return m_MinRowsPerThread;
+    }
+    public void setMinRowsPerThread(int value)
+    {
+        m_MinRowsPerThread = Math.max(1, value);
+    }
+
+    public long getNumFramesComposited()
+    {
+        return m_NumFramesComposited;
+    }
+
+    //endregion
+
+    /**
+     * Adds a layer on top of the existing layers.
+     */
+    public void addLayer(Layer layer)
+    {
+        if (layer != null && !m_Layers.contains(layer))
+        {
+            m_Layers.add(layer);
+        }
+    }
+
+    public boolean removeLayer(Layer layer)
+    {
+        return m_Layers.remove(layer);
+    }
+
+    /**
+     * Blends the layers into a frame.  Only PooledFrameBuffers, such as the ones handed out by the BroadcastController, can be written.
+     * @return Whether or not the frame could be written to
+     */
+    public boolean composite(FrameBuffer buffer, VideoParams videoParams)
+    {
+        // only pooled buffers guard their memory against being freed while it's written
+        if (!(buffer instanceof PooledFrameBuffer) || !PooledFrameBuffer.getCanAccessPixels() || !buffer.getIsValid())
+        {
+            return false;
+        }
+
+        int width = videoParams.outputWidth;
+        int height = videoParams.outputHeight;
+        if (width <= 0 || height <= 0 || buffer.getSize() < width * height * 4)
+        {
+            return false;
+        }
+
+        composite(new FrameBufferTarget((PooledFrameBuffer)buffer), width, height, videoParams.pixelFormat, videoParams.verticalFlip);
+        return true;
+    }
+
+    /**
+     * Blends the layers into a frame held in a buffer.
+     * @param frame The pixels of the frame, starting at the beginning of the buffer whatever its position
+     * @param verticalFlip Whether or not the rows of the frame are stored bottom up
+     * @return Whether or not the frame could be written to
+     */
+    public boolean composite(ByteBuffer frame, int width, int height, PixelFormat format, boolean verticalFlip)
+    {
+        if (width <= 0 || height <= 0 || frame.capacity() < width * height * 4)
+        {
+            return false;
+        }
+
+        // the shifts are worked out for native order so the frame has to be read the same way
+        ByteBuffer view = frame.duplicate();
+        view.clear();
+
+        composite(new BufferTarget(view.order(ByteOrder.nativeOrder()).asIntBuffer()), width, height, format, verticalFlip);
+        return true;
+    }
+
+    protected void composite(Target frame, int width, int height, PixelFormat format, boolean verticalFlip)
+    {
+        if (!hasVisibleLayers())
+        {
+            return;
+        }
+
+        setLayout(format);
+
+        for (Layer layer : m_Layers)
+        {
+            layer.prepare(m_Layout, m_AlphaShift, m_RedShift, m_GreenShift, m_BlueShift);
+        }
+
+        int bands = Math.max(1, Math.min(m_NumThreads, height / m_MinRowsPerThread));
+        if (m_Scratch.length < bands || m_Scratch[0].length < width)
+        {
+            m_Scratch = new int[bands][width];
+        }
+
+        if (bands == 1)
+        {
+            compositeRows(frame, width, height, verticalFlip, 0, height, m_Scratch[0]);
+        }
+        else
+        {
+            compositeBands(frame, width, height, verticalFlip, bands);
+        }
+
+        m_NumFramesComposited++;
+    }
+
+    /**
+     * Stops the blending threads.  They're started again if needed by the next composite().
+     */
+    public void shutdown()
+    {
+        if (m_Executor != null)
+        {
+            m_Executor.shutdown();
+            m_Executor = null;
+            m_ExecutorThreads = 0;
+        }
+    }
+
+    protected boolean hasVisibleLayers()
+    {
+        for (Layer layer : m_Layers)
+        {
+            if (layer.getVisible())
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    protected void compositeBands(final Target frame, final int width, final int height, final boolean verticalFlip, int bands)
+    {
+        if (m_Executor == null || m_ExecutorThreads != bands - 1)
+        {
+            shutdown();
+
+            m_ExecutorThreads = bands - 1;
+            m_Executor = Executors.newFixedThreadPool(m_ExecutorThreads, new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Twitch Frame Compositor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        // the calling thread takes the first band itself
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(bands - 1);
+        for (int i = 1; i < bands; ++i)
+        {
+            final int top = height * i / bands;
+            final int bottom = height * (i + 1) / bands;
+            final int[] scratch = m_Scratch[i];
+
+            futures.add(m_Executor.submit(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    compositeRows(frame.forBand(), width, height, verticalFlip, top, bottom, scratch);
+                    return null;
+                }
+            }));
+        }
+
+        compositeRows(frame, width, height, verticalFlip, 0, height / bands, m_Scratch[0]);
+
+        boolean interrupted = false;
+        for (Future<Void> future : futures)
+        {
+            while (true)
+            {
+                try
+                {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException x)
+                {
+                    // the frame can't be handed on while other threads are still writing to it
+                    interrupted = true;
+                }
+                catch (ExecutionException x)
+                {
+                    throw new RuntimeException(x.getCause());
+                }
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blends the layers into the frame rows [top, bottom), counted from the top of the image.
+     */
+    protected void compositeRows(Target frame, int width, int height, boolean verticalFlip, int top, int bottom, int[] scratch)
+    {
+        int alphaShift = m_AlphaShift;
+
+        for (Layer layer : m_Layers)
+        {
+            if (!layer.getVisible())
+            {
+                continue;
+            }
+
+            int layerTop = Math.max(top, layer.m_Y);
+            int layerBottom = Math.min(bottom, layer.m_Y + layer.m_Height);
+            int left = Math.max(0, layer.m_X);
+            int right = Math.min(width, layer.m_X + layer.m_Width);
+            if (layerTop >= layerBottom || left >= right)
+            {
+                continue;
+            }
+
+            int[] prepared = layer.m_Prepared;
+
+            for (int y = layerTop; y < layerBottom; ++y)
+            {
+                int row = y - layer.m_Y;
+                int[] runs = layer.m_Runs[row];
+                if (runs.length == 0)
+                {
+                    continue;
+                }
+
+                int frameRow = (verticalFlip ? height - 1 - y : y) * width;
+
+                for (int r = 0; r < runs.length; r += 3)
+                {
+                    // clip the run to the frame
+                    int start = Math.max(left, layer.m_X + runs[r]);
+                    int end = Math.min(right, layer.m_X + runs[r] + runs[r + 1]);
+                    if (start >= end)
+                    {
+                        continue;
+                    }
+
+                    int src = row * layer.m_Width + (start - layer.m_X);
+                    int count = end - start;
+
+                    if (runs[r + 2] == RUN_COPY)
+                    {
+                        frame.put(frameRow + start, prepared, src, count);
+                    }
+                    else
+                    {
+                        frame.get(frameRow + start, scratch, 0, count);
+                        blend(prepared, src, scratch, count, alphaShift);
+                        frame.put(frameRow + start, scratch, 0, count);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws premultiplied pixels over the destination pixels.  The channels are split into two pairs so each multiply scales two of them.
+     */
+    protected static void blend(int[] src, int srcOffset, int[] dst, int count, int alphaShift)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            int s = src[srcOffset + i];
+            int inverse = 255 - ((s >>> alphaShift) & 0xFF);
+            int d = dst[i];
+
+            // d * inverse / 255 for the even and odd bytes, rounded
+            int even = (d & 0x00FF00FF) * inverse + 0x00800080;
+            int odd = ((d >>> 8) & 0x00FF00FF) * inverse + 0x00800080;
+            even = ((even + ((even >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+            odd = (odd + ((odd >>> 8) & 0x00FF00FF)) & 0xFF00FF00;
+
+            dst[i] = s + (even | odd);
+        }
+    }
+
+    /**
+     * Works out where each channel sits in an int read from the frame in native byte order.
+     */
+    protected void setLayout(PixelFormat format)
+    {
+        // the byte offsets of alpha, red, green and blue in memory
+        int a, r, g, b;
+        switch (format)
+        {
+            case TTV_PF_RGBA: a = 3; r = 0; g = 1; b = 2; break;
+            case TTV_PF_ABGR: a = 0; r = 3; g = 2; b = 1; break;
+            case TTV_PF_ARGB: a = 0; r = 1; g = 2; b = 3; break;
+            case TTV_PF_BGRA:
+            default:          a = 3; r = 2; g = 1; b = 0; break;
+        }
+
+        boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        m_AlphaShift = little ? a * 8 : (3 - a) * 8;
+        m_RedShift = little ? r * 8 : (3 - r) * 8;
+        m_GreenShift = little ? g * 8 : (3 - g) * 8;
+        m_BlueShift = little ? b * 8 : (3 - b) * 8;
+        m_Layout = (m_AlphaShift << 24) | (m_RedShift << 16) | (m_GreenShift << 8) | m_BlueShift;
+    }
+}
@@ -0,0 +1,380 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import tv.twitch.ErrorCode;
+
+
+/**
+ * Moves frame submission off the render thread.  The render thread enqueues each captured FrameBuffer into a bounded queue and returns
+ * immediately while a dedicated thread hands the frames to the SDK.  When the encoder falls behind and the queue fills up the
+ * QueueFullPolicy decides whether the render thread drops a frame or waits.
+ *
+ * The queue has a single producer, the thread calling enqueue(), and a single consumer, the submitter thread.  Frames which are dropped
+ * are given back through Target.discardFrame() so they can be returned to the pool.  Results of submissions which weren't successful are
+ * queued up to be handled on the thread driving the BroadcastController via pollResult().
+ */
+public class FrameSubmitter
+{
+    public enum QueueFullPolicy
+    {
+        DropOldest,     //!< Discard the oldest queued frame to make room for the new one.
+        DropNewest,     //!< Discard the new frame.
+        Block,          //!< Wait on the render thread until there is room.
+    }
+
+    /**
+     * The destination of the frames.
+     */
+    public interface Target
+    {
+        /**
+         * Submits the frame to the SDK.  Called on the submitter thread.
+         */
+        ErrorCode submitFrame(FrameBuffer buffer);
+
+        /**
+         * Gives back a frame which will not be submitted.  Called on either thread.
+         */
+        void discardFrame(FrameBuffer buffer);
+    }
+
+    public static final int DEFAULT_CAPACITY = 2;
+
+    protected final int m_Capacity;
+    protected QueueFullPolicy m_QueueFullPolicy = QueueFullPolicy.DropOldest;
+
+    protected final AtomicReferenceArray<FrameBuffer> m_Queue;
+    protected final AtomicLong m_Head = new AtomicLong(0);      //!< The next frame to submit.  Advanced by the consumer and by the producer when dropping the oldest frame.
+    protected final AtomicLong m_Tail = new AtomicLong(0);      //!< The next free position.  Only advanced by the producer.
+
+    protected final ConcurrentLinkedQueue<ErrorCode> m_Results = new ConcurrentLinkedQueue<ErrorCode>();
+
+    protected volatile Target m_Target = null;
+    protected volatile Thread m_Thread = null;
+    protected volatile Thread m_BlockedProducer = null;
+    protected volatile boolean m_Running = false;
+
+    protected final AtomicLong m_NumSubmitted = new AtomicLong(0);
+    protected final AtomicLong m_NumDropped = new AtomicLong(0);
+    protected final AtomicLong m_TotalBlockedNanos = new AtomicLong(0);
+
+    public FrameSubmitter()
+    {
+        this(DEFAULT_CAPACITY, QueueFullPolicy.DropOldest);
+    }
+
+    public FrameSubmitter(int capacity, QueueFullPolicy policy)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        m_Capacity = capacity;
+        m_Queue = new AtomicReferenceArray<FrameBuffer>(capacity);
+
+        setQueueFullPolicy(policy);
+    }
+
+    //region Properties
+
+    public int getCapacity()
+    {
+        return m_Capacity;
+    }
+
+    /**
+     * What happens when a frame is enqueued while the queue is full.
+     */
+    public QueueFullPolicy getQueueFullPolicy()
+    {
+        return m_QueueFullPolicy;
+    }
+    public void setQueueFullPolicy(QueueFullPolicy value)
+    {
+        if (value != null)
+        {
+            m_QueueFullPolicy = value;
+        }
+    }
+
+    public boolean getIsRunning()
+    {
+        return m_Running;
+    }
+
+    /**
+     * The number of frames currently waiting to be submitted.
+     */
+    public int getQueuedCount()
+    {
+        return (int)Math.max(0, m_Tail.get() - m_Head.get());
+    }
+
+    /**
+     * The number of frames handed to the SDK since the submitter was started.
+     */
+    public long getSubmittedCount()
+    {
+        return m_NumSubmitted.get();
+    }
+
+    /**
+     * The number of frames discarded because the queue was full since the submitter was started.
+     */
+    public long getDroppedCount()
+    {
+        return m_NumDropped.get();
+    }
+
+    /**
+     * The total time in milliseconds the render thread has waited for room in the queue under the Block policy.
+     */
+    public long getTotalBlockedMilliseconds()
+    {
+        return m_TotalBlockedNanos.get() / 1000000;
+    }
+
+    //endregion
+
+    /**
+     * Starts the submitter thread.
+     * @return Whether or not started
+     */
+    public synchronized boolean start(Target target)
+    {
+        if (m_Running || target == null)
+        {
+            return false;
+        }
+
+        m_Target = target;
+        m_Head.set(0);
+        m_Tail.set(0);
+        m_Results.clear();
+        m_NumSubmitted.set(0);
+        m_NumDropped.set(0);
+        m_TotalBlockedNanos.set(0);
+        m_Running = true;
+
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                submitLoop();
+            }
+        }, "Twitch Frame Submitter");
+
+        thread.setDaemon(true);
+        m_Thread = thread;
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * Stops the submitter thread and waits for it to exit.  Any frames still queued are discarded.  Must be called before the
+     * queued frames are freed.
+     */
+    public synchronized void stop()
+    {
+        if (!m_Running)
+        {
+            return;
+        }
+
+        m_Running = false;
+
+        Thread thread = m_Thread;
+        LockSupport.unpark(thread);
+
+        Thread producer = m_BlockedProducer;
+        if (producer != null)
+        {
+            LockSupport.unpark(producer);
+        }
+
+        boolean interrupted = false;
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException x)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        m_Thread = null;
+
+        FrameBuffer buffer;
+        while ((buffer = poll()) != null)
+        {
+            m_Target.discardFrame(buffer);
+        }
+
+        m_Target = null;
+    }
+
+    /**
+     * Queues a captured frame for submission.  Must only be called from one thread at a time.
+     * @return TTV_EC_SUCCESS if queued, TTV_WRN_FRAMES_QUEUEING if queued but an older frame was dropped to make room,
+     *         TTV_EC_FRAME_QUEUE_FULL if the frame was dropped or TTV_EC_STREAM_NOT_STARTED if not running
+     */
+    public ErrorCode enqueue(FrameBuffer buffer)
+    {
+        Target target = m_Target;
+        if (!m_Running || target == null)
+        {
+            return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+        }
+
+        long tail = m_Tail.get();
+        ErrorCode ret = ErrorCode.TTV_EC_SUCCESS;
+
+        if (tail - m_Head.get() >= m_Capacity)
+        {
+            switch (m_QueueFullPolicy)
+            {
+                case DropNewest:
+                {
+                    m_NumDropped.incrementAndGet();
+                    target.discardFrame(buffer);
+                    return ErrorCode.TTV_EC_FRAME_QUEUE_FULL;
+                }
+                case DropOldest:
+                {
+                    // the submitter may take the oldest frame first in which case there is room anyway
+                    FrameBuffer oldest = poll();
+                    if (oldest != null)
+                    {
+                        m_NumDropped.incrementAndGet();
+                        target.discardFrame(oldest);
+                        ret = ErrorCode.TTV_WRN_FRAMES_QUEUEING;
+                    }
+                    break;
+                }
+                case Block:
+                {
+                    if (!waitForRoom(tail))
+                    {
+                        target.discardFrame(buffer);
+                        return ErrorCode.TTV_EC_STREAM_NOT_STARTED;
+                    }
+                    break;
+                }
+            }
+        }
+
+        m_Queue.set((int)(tail % m_Capacity), buffer);
+        m_Tail.set(tail + 1);
+
+        LockSupport.unpark(m_Thread);
+
+        return ret;
+    }
+
+    /**
+     * Retrieves the next result of a submission which was not successful.
+     * @return The result or null if there are none
+     */
+    public ErrorCode pollResult()
+    {
+        return m_Results.poll();
+    }
+
+    protected boolean waitForRoom(long tail)
+    {
+        long start = System.nanoTime();
+
+        m_BlockedProducer = Thread.currentThread();
+        try
+        {
+            while (tail - m_Head.get() >= m_Capacity)
+            {
+                if (!m_Running)
+                {
+                    return false;
+                }
+
+                LockSupport.park(this);
+            }
+        }
+        finally
+        {
+            m_BlockedProducer = null;
+            m_TotalBlockedNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        return true;
+    }
+
+    /**
+     * Takes the oldest frame off the queue.  Safe to call from both the producer and the consumer.
+     */
+    protected FrameBuffer poll()
+    {
+        while (true)
+        {
+            long head = m_Head.get();
+            if (head >= m_Tail.get())
+            {
+                return null;
+            }
+
+            // the slot can't be overwritten until the head moves past it so the read is valid if the CAS succeeds
+            FrameBuffer buffer = m_Queue.get((int)(head % m_Capacity));
+            if (m_Head.compareAndSet(head, head + 1))
+            {
+                return buffer;
+            }
+        }
+    }
+
+    protected void submitLoop()
+    {
+        while (m_Running)
+        {
+            FrameBuffer buffer = poll();
+            if (buffer == null)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+
+            Thread producer = m_BlockedProducer;
+            if (producer != null)
+            {
+                LockSupport.unpark(producer);
+            }
+
+            ErrorCode ret;
+            try
+            {
+                ret = m_Target.submitFrame(buffer);
+            }
+            catch (Exception x)
+            {
+                ret = ErrorCode.TTV_EC_UNKNOWN_ERROR;
+            }
+
+            m_NumSubmitted.incrementAndGet();
+
+            if (ret != ErrorCode.TTV_EC_SUCCESS)
+            {
+                m_Results.add(ret);
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package tv.twitch.broadcast;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+
+
+/**
+ * Remembers ingest test results between sessions so the best server and bitrate can be chosen at startup without running a test.
+ * Results are keyed by the server url and a fingerprint of the local network so that results measured on a different network, such as
+ * a laptop moved from home to work, aren't reused.  Results older than the time to live are considered stale and should be retested.
+ *
+ * Servers which were only probed for their connect latency are stored without a bitrate.  They still count as stale since they need a
+ * bandwidth test before they can be used.
+ *
+ * The cache is stored as a properties file, by default in the user's application data directory as given by getDefaultFile().  It
+ * isn't safe to use from multiple threads.
+ */
+public class IngestResultCache
+{
+    public static final long DEFAULT_TIME_TO_LIVE_MILLISECONDS = 24 * 60 * 60 * 1000L;
+    public static final String DEFAULT_FILE_NAME = "ingest_results.properties";
+
+    protected final File m_File;
+    protected long m_TimeToLiveMilliseconds = DEFAULT_TIME_TO_LIVE_MILLISECONDS;
+    protected String m_NetworkFingerprint = null;
+    protected Properties m_Entries = new Properties();
+
+    public IngestResultCache(File file)
+    {
+        m_File = file;
+    }
+
+    /**
+     * The per user location of the cache.  This is %APPDATA%\Twitch on Windows, ~/Library/Application Support/Twitch on macOS and
+     * $XDG_CACHE_HOME/twitch or ~/.cache/twitch elsewhere.
+     */
+    public static File getDefaultFile()
+    {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        String home = System.getProperty("user.home", ".");
+        File dir;
+
+        if (os.startsWith("windows"))
+        {
+            String appData = System.getenv("APPDATA");
+            dir = new File(appData != null ? appData : home, "Twitch");
+        }
+        else if (os.startsWith("mac"))
+        {
+            dir = new File(home, "Library/Application Support/Twitch");
+        }
+        else
+        {
+            String cacheHome = System.getenv("XDG_CACHE_HOME");
+            dir = cacheHome != null && cacheHome.length() > 0 ? new File(cacheHome, "twitch") : new File(home, ".cache/twitch");
+        }
+
+        return new File(dir, DEFAULT_FILE_NAME);
+    }
+
+    //region Properties
+
+    public File getFile()
+    {
+        return m_File;
+    }
+
+    /**
+     * How long a result may be used for before it should be retested.
+     */
+    public long getTimeToLiveMilliseconds()
+    {
+        return m_TimeToLiveMilliseconds;
+    }
+    public void setTimeToLiveMilliseconds(long value)
+    {
+        m_TimeToLiveMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * Identifies the network the machine is currently connected to.  This is computed once per instance.
+     */
+    public String getNetworkFingerprint()
+    {
+        if (m_NetworkFingerprint == null)
+        {
+            m_NetworkFingerprint = computeNetworkFingerprint();
+        }
+
+        return m_NetworkFingerprint;
+    }
+
+    //endregion
+
+    /**
+     * Reads the cache from disk.  A missing or unreadable file leaves the cache empty.
+     * @return Whether or not the file was read
+     */
+    public boolean load()
+    {
+        m_Entries = new Properties();
+
+        if (!m_File.exists())
+        {
+            return false;
+        }
+
+        InputStream stream = null;
+        try
+        {
+            stream = new FileInputStream(m_File);
+            m_Entries.load(stream);
+            return true;
+        }
+        catch (IOException x)
+        {
+            m_Entries = new Properties();
+            return false;
+        }
+        finally
+        {
+            close(stream);
+        }
+    }
+
+    /**
+     * Writes the cache to disk.  Expired entries are dropped.  The cache is written to a temporary file which is then swapped in so a
+     * crash while saving leaves the previous file intact.
+     * @return Whether or not the file was written
+     */
+    public boolean save()
+    {
+        removeExpired();
+
+        File dir = m_File.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists())
+        {
+            dir.mkdirs();
+        }
+
+        File temp = new File(m_File.getAbsoluteFile().getParentFile(), m_File.getName() + ".tmp");
+        FileOutputStream stream = null;
+        try
+        {
+            stream = new FileOutputStream(temp);
+            m_Entries.store(stream, "Twitch ingest test results");
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+
+            replace(temp, m_File);
+            return true;
+        }
+        catch (IOException x)
+        {
+            close(stream);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Stores a result measured on the current network.  Failed results aren't stored so the server will be retested.
+     */
+    public void put(IngestTestResult result)
+    {
+        String key = getKey(result.getServerUrl());
+
+        if (result.getBitrateKbps() <= 0)
+        {
+            m_Entries.remove(key);
+            return;
+        }
+
+        m_Entries.setProperty(key, format(result));
+    }
+
+    /**
+     * Stores the connect latency of a server which was probed but not bandwidth tested.  A bitrate already in the cache is kept.
+     */
+    public void putConnectMilliseconds(IngestTestResult result)
+    {
+        if (result.getConnectMilliseconds() < 0)
+        {
+            return;
+        }
+
+        IngestTestResult entry = get(result.getServerUrl());
+        if (entry == null || entry.getBitrateKbps() <= 0)
+        {
+            entry = new IngestTestResult(result.getServerUrl());
+            entry.m_TestedTimeMilliseconds = result.getTestedTimeMilliseconds();
+        }
+        entry.m_ConnectMilliseconds = result.getConnectMilliseconds();
+
+        m_Entries.setProperty(getKey(entry.getServerUrl()), format(entry));
+    }
+
+    /**
+     * Retrieves the result for the given server measured on the current network whether or not it's stale.
+     * @return The result or null if there isn't one
+     */
+    public IngestTestResult get(String serverUrl)
+    {
+        String value = m_Entries.getProperty(getKey(serverUrl));
+        if (value == null)
+        {
+            return null;
+        }
+
+        String[] fields = value.split(",");
+        if (fields.length < 7)
+        {
+            return null;
+        }
+
+        try
+        {
+            IngestTestResult result = new IngestTestResult(serverUrl);
+            result.m_TestedTimeMilliseconds = Long.parseLong(fields[0]);
+            result.m_BitrateKbps = Float.parseFloat(fields[1]);
+            result.m_BitrateVariance = Float.parseFloat(fields[2]);
+            result.m_ConnectMilliseconds = Long.parseLong(fields[3]);
+            result.m_NumSamples = Integer.parseInt(fields[4]);
+            result.m_DurationMilliseconds = Long.parseLong(fields[5]);
+            result.m_Converged = Boolean.parseBoolean(fields[6]);
+
+            return result;
+        }
+        catch (NumberFormatException x)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Whether or not the result is still within its time to live.
+     */
+    public boolean getIsFresh(IngestTestResult result)
+    {
+        if (result == null)
+        {
+            return false;
+        }
+
+        long age = System.currentTimeMillis() - result.getTestedTimeMilliseconds();
+        return age >= 0 && age < m_TimeToLiveMilliseconds;
+    }
+
+    /**
+     * Whether or not the result is fresh and has a measured bitrate.
+     */
+    public boolean getHasFreshBitrate(IngestTestResult result)
+    {
+        return getIsFresh(result) && result.getBitrateKbps() > 0;
+    }
+
+    /**
+     * Fills in the bitrateKbps of each server in the list which has a fresh result.
+     * @return The number of servers filled in
+     */
+    public int apply(IngestList list)
+    {
+        int count = 0;
+
+        IngestServer[] servers = list.getServers();
+        for (int i = 0; i < servers.length; ++i)
+        {
+            IngestTestResult result = get(servers[i].serverUrl);
+            if (getHasFreshBitrate(result))
+            {
+                servers[i].bitrateKbps = result.getBitrateKbps();
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Finds the servers in the list which don't have a fresh result.
+     */
+    public IngestServer[] getStaleServers(IngestList list)
+    {
+        List<IngestServer> stale = new ArrayList<IngestServer>();
+
+        IngestServer[] servers = list.getServers();
+        for (int i = 0; i < servers.length; ++i)
+        {
+            if (!getHasFreshBitrate(get(servers[i].serverUrl)))
+            {
+                stale.add(servers[i]);
+            }
+        }
+
+        return stale.toArray(new IngestServer[stale.size()]);
+    }
+
+    protected void removeExpired()
+    {
+        List<String> expired = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+
+        for (String key : m_Entries.stringPropertyNames())
+        {
+            String value = m_Entries.getProperty(key);
+            int comma = value.indexOf(',');
+
+            try
+            {
+                long time = Long.parseLong(comma < 0 ? value : value.substring(0, comma));
+                if (now - time >= m_TimeToLiveMilliseconds)
+                {
+                    expired.add(key);
+                }
+            }
+            catch (NumberFormatException x)
+            {
+                expired.add(key);
+            }
+        }
+
+        for (String key : expired)
+        {
+            m_Entries.remove(key);
+        }
+    }
+
+    protected static String format(IngestTestResult result)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(result.getTestedTimeMilliseconds()).append(',');
+        sb.append(result.getBitrateKbps()).append(',');
+        sb.append(result.getBitrateVariance()).append(',');
+        sb.append(result.getConnectMilliseconds()).append(',');
+        sb.append(result.getNumSamples()).append(',');
+        sb.append(result.getDurationMilliseconds()).append(',');
+        sb.append(result.getConverged());
+
+        return sb.toString();
+    }
+
+    protected String getKey(String serverUrl)
+    {
+        return getNetworkFingerprint() + "|" + serverUrl;
+    }
+
+    /**
+     * Hashes the network prefixes of the active network interfaces.  This changes when the machine joins a different network but not
+     * when it's given a new address on the same one, such as a new DHCP lease or IPv6 temporary address.  IPv6 networks are reduced to
+     * their /64 prefix since temporary addresses only vary below it.
+     */
+    protected static String computeNetworkFingerprint()
+    {
+        List<String> parts = new ArrayList<String>();
+
+        try
+        {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements())
+            {
+                NetworkInterface ni = interfaces.nextElement();
+                if (!ni.isUp() || ni.isLoopback() || ni.isVirtual())
+                {
+                    continue;
+                }
+
+                for (InterfaceAddress interfaceAddress : ni.getInterfaceAddresses())
+                {
+                    InetAddress address = interfaceAddress.getAddress();
+                    if (address == null || address.isLinkLocalAddress())
+                    {
+                        continue;
+                    }
+
+                    int prefixLength = interfaceAddress.getNetworkPrefixLength();
+                    if (address instanceof Inet6Address)
+                    {
+                        prefixLength = Math.min(prefixLength, 64);
+                    }
+
+                    parts.add(ni.getName() + "=" + getNetworkPrefix(address, prefixLength));
+                }
+            }
+        }
+        catch (Exception x)
+        {
+            // fall through with whatever was found
+        }
+
+        // interface enumeration order isn't guaranteed
+        Collections.sort(parts);
+
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts)
+        {
+            sb.append(part).append(';');
+        }
+
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(sb.toString().getBytes("UTF-8"));
+
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; ++i)
+            {
+                hex.append(String.format("%02x", digest[i] & 0xFF));
+            }
+
+            return hex.toString();
+        }
+        catch (Exception x)
+        {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    /**
+     * Formats the address with every bit after the prefix cleared, e.g. 192.168.1.0/24.
+     */
+    protected static String getNetworkPrefix(InetAddress address, int prefixLength)
+    {
+        byte[] bytes = address.getAddress();
+        prefixLength = Math.max(0, Math.min(prefixLength, bytes.length * 8));
+
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            int bits = prefixLength - i * 8;
+            if (bits <= 0)
+            {
+                bytes[i] = 0;
+            }
+            else if (bits < 8)
+            {
+                bytes[i] &= (byte)(0xFF << (8 - bits));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (bytes.length == 4)
+        {
+            for (int i = 0; i < 4; ++i)
+            {
+                sb.append(i > 0 ? "." : "").append(bytes[i] & 0xFF);
+            }
+        }
+        else
+        {
+            for (int i = 0; i < bytes.length; i += 2)
+            {
+                sb.append(i > 0 ? ":" : "").append(Integer.toHexString(((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF)));
+            }
+        }
+
+        return sb.append('/').append(prefixLength).toString();
+    }
+
+    /**
+     * Renames the file over the target so readers see either the old or the new contents.
+     */
+    protected static void replace(File source, File target) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException x)
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    protected static void close(java.io.Closeable stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException x)
+            {
+            }
+        }
+    }
+}
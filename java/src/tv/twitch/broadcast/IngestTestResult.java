@@ -0,0 +1,101 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * The outcome of testing a single ingest server.  The bitrate is also written to the bitrateKbps field of the IngestServer but this
+ * records how reliable that number is.
+ */
+public class IngestTestResult
+{
+    protected String m_ServerUrl = null;
+    protected float m_BitrateKbps = 0;
+    protected float m_BitrateVariance = 0;
+    protected int m_NumSamples = 0;
+    protected long m_DurationMilliseconds = 0;
+    protected long m_ConnectMilliseconds = -1;
+    protected boolean m_Converged = false;
+    protected long m_TestedTimeMilliseconds = 0;
+
+    public IngestTestResult(String serverUrl)
+    {
+        m_ServerUrl = serverUrl;
+    }
+
+    /**
+     * The url of the server which was tested.
+     */
+    public String getServerUrl()
+    {
+        return m_ServerUrl;
+    }
+
+    /**
+     * The measured bitrate or 0 if the test failed or was skipped.
+     */
+    public float getBitrateKbps()
+    {
+        return m_BitrateKbps;
+    }
+
+    /**
+     * The variance of the throughput samples in kbps squared.
+     */
+    public float getBitrateVariance()
+    {
+        return m_BitrateVariance;
+    }
+
+    /**
+     * The standard deviation of the throughput samples in kbps.
+     */
+    public float getBitrateStandardDeviation()
+    {
+        return (float)Math.sqrt(m_BitrateVariance);
+    }
+
+    /**
+     * The number of throughput samples the bitrate is based on.
+     */
+    public int getNumSamples()
+    {
+        return m_NumSamples;
+    }
+
+    /**
+     * How long the server was tested for.
+     */
+    public long getDurationMilliseconds()
+    {
+        return m_DurationMilliseconds;
+    }
+
+    /**
+     * The connect latency measured by the IngestProbe or -1 if the server wasn't probed or couldn't be reached.
+     */
+    public long getConnectMilliseconds()
+    {
+        return m_ConnectMilliseconds;
+    }
+
+    /**
+     * Whether or not the test ended early because the measurement had settled.
+     */
+    public boolean getConverged()
+    {
+        return m_Converged;
+    }
+
+    /**
+     * When the test finished as returned by System.currentTimeMillis().
+     */
+    public long getTestedTimeMilliseconds()
+    {
+        return m_TestedTimeMilliseconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %.0f kbps (stddev %.0f, %d samples, %d ms%s)", m_ServerUrl, m_BitrateKbps, getBitrateStandardDeviation(), m_NumSamples, m_DurationMilliseconds, m_Converged ? ", converged" : "");
+    }
+}
@@ -1,6 +1,9 @@
 ﻿package tv.twitch.broadcast;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import tv.twitch.AuthToken;
@@ -16,6 +19,7 @@ public class IngestTester
 	public enum TestState
 	{
 	    Uninitalized,
+	    ProbingServers,
 	    Starting,
 	    ConnectingToServer,
 	    TestingServer,
@@ -64,6 +68,33 @@ public class IngestTester
     protected boolean m_Broadcasting = false;
     protected boolean m_WaitingForStartCallback = false;
     protected boolean m_WaitingForStopCallback = false;
+    protected int m_MaxServersToTest = 0;
+    protected IngestProbe m_Probe = null;
+    protected IngestServer[] m_ServersToTest = null;
+    protected LinkedHashMap<IngestServer, IngestTestResult> m_Results = new LinkedHashMap<IngestServer, IngestTestResult>();
+    protected List<IngestTestResult> m_ProbeResults = new ArrayList<IngestTestResult>();
+
+    protected boolean m_UseAdaptiveDuration = false;
+    protected long m_MinTestDurationMilliseconds = 2000;
+    protected long m_SampleIntervalMilliseconds = 250;
+    protected float m_ConvergenceTolerance = 0.05f;
+    protected double[] m_Samples = new double[8];  //!< The most recent throughput samples in kbps.
+    protected int m_NumSamples = 0;
+    protected long m_LastSampleTime = 0;
+    protected long m_LastSampleSent = 0;
+    protected boolean m_Converged = false;
+
+    /**
+     * The two sided 95% critical values of Student's t distribution indexed by degrees of freedom.  The window is small so the normal
+     * value of 1.96 would make the confidence interval look narrower than it is.
+     */
+    protected static final double[] T_CRITICAL_95 =
+    {
+    	Double.POSITIVE_INFINITY,
+    	12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+    	2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+    	2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042,
+    };
 
     public void setListener(Listener listener)
     {
@@ -94,6 +125,110 @@ public class IngestTester
         return m_TestState == TestState.Finished || m_TestState == TestState.Cancelled || m_TestState == TestState.Failed;
     }
 
+    /**
+     * The number of servers to run the full bandwidth test on.  When this is less than the number of servers, all the servers are first
+     * probed at once for their connect latency and only the closest ones are tested.  Servers which aren't tested are left with a bitrate
+     * of 0.  A value of 0 tests every server.  This must be set before the test is started.
+     */
+    public int getMaxServersToTest()
+    {
+        return m_MaxServersToTest;
+    }
+    public void setMaxServersToTest(int value)
+    {
+        m_MaxServersToTest = Math.max(0, value);
+    }
+
+    /**
+     * The connect latency probe of all the servers.  This is null unless the number of servers to test has been limited.
+     */
+    public IngestProbe getIngestProbe()
+    {
+        return m_Probe;
+    }
+
+    /**
+     * The servers which will get the full bandwidth test.  This is only valid once the test has moved past the ProbingServers state.
+     */
+    public IngestServer[] getServersToTest()
+    {
+        return m_ServersToTest;
+    }
+
+    /**
+     * Whether or not each server's test ends as soon as the measured bitrate settles instead of always running for the full test 
+     * duration.  Throughput is sampled into a sliding window and the test ends once the 95% confidence interval of the window mean is 
+     * within the convergence tolerance, as long as the minimum duration has passed.  The test duration becomes the maximum.
+     */
+    public boolean getUseAdaptiveDuration()
+    {
+        return m_UseAdaptiveDuration;
+    }
+    public void setUseAdaptiveDuration(boolean value)
+    {
+        m_UseAdaptiveDuration = value;
+    }
+
+    /**
+     * The shortest time a server is tested for when using the adaptive duration.
+     */
+    public long getMinTestDurationMilliseconds()
+    {
+        return m_MinTestDurationMilliseconds;
+    }
+    public void setMinTestDurationMilliseconds(long value)
+    {
+        m_MinTestDurationMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * How far the confidence interval may extend either side of the mean as a fraction of the mean for the measurement to be considered settled.
+     */
+    public float getConvergenceTolerance()
+    {
+        return m_ConvergenceTolerance;
+    }
+    public void setConvergenceTolerance(float value)
+    {
+        m_ConvergenceTolerance = Math.max(0.001f, value);
+    }
+
+    /**
+     * The number of throughput samples in the sliding window.  Samples are taken every 250 ms.  This must be set before the test is started.
+     */
+    public int getSampleWindowSize()
+    {
+        return m_Samples.length;
+    }
+    public void setSampleWindowSize(int value)
+    {
+        m_Samples = new double[Math.max(2, value)];
+    }
+
+    /**
+     * The results of the servers tested so far in the order they were tested.
+     */
+    public List<IngestTestResult> getResults()
+    {
+        return new ArrayList<IngestTestResult>(m_Results.values());
+    }
+
+    /**
+     * The connect latency of each reachable server which was probed but not picked for the bandwidth test.  These results have no bitrate.
+     */
+    public List<IngestTestResult> getProbeResults()
+    {
+        return new ArrayList<IngestTestResult>(m_ProbeResults);
+    }
+
+    /**
+     * The result of testing the given server or null if it hasn't been tested.
+     */
+    public IngestTestResult getResult(IngestServer server)
+    {
+        return m_Results.get(server);
+    }
+
     public long getTestDurationMilliseconds()
     {
         return m_TestDurationMilliseconds;
@@ -277,6 +412,7 @@ public class IngestTester
         m_Broadcasting = false;
         m_WaitingForStartCallback = false;
         m_WaitingForStopCallback = false;
+        m_ServersToTest = m_IngestList.getServers();
         
         m_PreviousStatCallbacks = m_Stream.getStatCallbacks();
         m_Stream.setStatCallbacks(statCallbacks);
@@ -322,7 +458,18 @@ public class IngestTester
             m_Stream.randomizeFrameBuffer(buffer);
         }
 
-        setTestState(TestState.Starting);
+        // find the closest servers before doing any bandwidth tests
+        if (m_MaxServersToTest > 0 && m_MaxServersToTest < m_ServersToTest.length)
+        {
+        	m_Probe = new IngestProbe(m_ServersToTest);
+        	m_Probe.start();
+        	
+        	setTestState(TestState.ProbingServers);
+        }
+        else
+        {
+        	setTestState(TestState.Starting);
+        }
         
         m_StartTimeMilliseconds = System.currentTimeMillis();
     }
@@ -345,6 +492,20 @@ public class IngestTester
 
         switch (m_TestState)
         {
+            case ProbingServers:
+            {
+            	if (m_CancelTest)
+            	{
+            		m_Probe.cancel();
+            		setTestState(TestState.Cancelling);
+            	}
+            	else if (m_Probe.getIsDone())
+            	{
+            		selectServersToTest();
+            		setTestState(TestState.Starting);
+            	}
+            	break;
+            }
             case Starting:
             case DoneTestingServer:
             {
@@ -356,6 +517,8 @@ public class IngestTester
                         m_CurrentServer.bitrateKbps = 0;
                     }
 
+                    recordResult(m_CurrentServer);
+
                     stopServerTest(m_CurrentServer);
                 }
                 // start the next test
@@ -371,9 +534,9 @@ public class IngestTester
                     }
 
                     // start the next server test
-                    if (m_CurrentServerIndex < m_IngestList.getServers().length)
+                    if (m_CurrentServerIndex < m_ServersToTest.length)
                     {
-                        m_CurrentServer = m_IngestList.getServers()[m_CurrentServerIndex];
+                        m_CurrentServer = m_ServersToTest[m_CurrentServerIndex];
                         startServerTest(m_CurrentServer);
                     }
                     // done testing all servers
@@ -450,6 +613,73 @@ public class IngestTester
     	}
     }
 
+    /**
+     * Picks the servers with the lowest connect latency for the bandwidth test.  If none of them could be reached the probe is ignored
+     * and the first servers in the list are tested instead.
+     */
+    protected void selectServersToTest()
+    {
+    	final IngestServer[] servers = m_Probe.getServers();
+    	Integer[] order = new Integer[servers.length];
+    	for (int i = 0; i < order.length; ++i)
+    	{
+    		order[i] = i;
+    	}
+    	
+    	// unreachable servers go last
+    	Arrays.sort(order, new Comparator<Integer>()
+    	{
+    		public int compare(Integer a, Integer b)
+    		{
+    			long la = m_Probe.getConnectMilliseconds(a);
+    			long lb = m_Probe.getConnectMilliseconds(b);
+    			
+    			if (la < 0 || lb < 0)
+    			{
+    				return la < 0 ? (lb < 0 ? 0 : 1) : -1;
+    			}
+    			
+    			return la < lb ? -1 : (la > lb ? 1 : 0);
+    		}
+    	});
+    	
+    	int count = 0;
+    	while (count < order.length && count < m_MaxServersToTest && m_Probe.getConnectMilliseconds(order[count]) >= 0)
+    	{
+    		count++;
+    	}
+    	
+    	if (count == 0)
+    	{
+    		count = Math.min(m_MaxServersToTest, order.length);
+    	}
+    	
+    	long now = System.currentTimeMillis();
+    	
+    	m_ServersToTest = new IngestServer[count];
+    	for (int i = 0; i < order.length; ++i)
+    	{
+    		if (i < count)
+    		{
+    			m_ServersToTest[i] = servers[order[i]];
+    		}
+    		else
+    		{
+    			servers[order[i]].bitrateKbps = 0;
+    			
+    			// keep the latency so the probe isn't wasted
+    			long connect = m_Probe.getConnectMilliseconds(order[i]);
+    			if (connect >= 0)
+    			{
+    				IngestTestResult result = new IngestTestResult(servers[order[i]].serverUrl);
+    				result.m_ConnectMilliseconds = connect;
+    				result.m_TestedTimeMilliseconds = now;
+    				m_ProbeResults.add(result);
+    			}
+    		}
+    	}
+    }
+
     protected boolean startServerTest(IngestServer server)
     {
         // reset the test
@@ -457,6 +687,10 @@ public class IngestTester
         m_TotalSent = 0;
         m_RTMPState = RTMPState.Idle;
         m_CurrentServer = server;
+        m_NumSamples = 0;
+        m_LastSampleTime = 0;
+        m_LastSampleSent = 0;
+        m_Converged = false;
 
         // start the stream
         m_WaitingForStartCallback = true;
@@ -522,6 +756,11 @@ public class IngestTester
 
         switch (m_TestState)
         {
+            case ProbingServers:
+            {
+                m_ServerProgress = m_Probe.getProgress();
+                break;
+            }
             case Uninitalized:
             case Starting:
             case ConnectingToServer:
@@ -555,8 +794,8 @@ public class IngestTester
             }
             default:
             {
-                m_TotalProgress = (float)m_CurrentServerIndex / (float)m_IngestList.getServers().length;
-                m_TotalProgress += m_ServerProgress / m_IngestList.getServers().length;
+                m_TotalProgress = (float)m_CurrentServerIndex / (float)m_ServersToTest.length;
+                m_TotalProgress += m_ServerProgress / m_ServersToTest.length;
                 break;
             }
         }
@@ -598,11 +837,141 @@ public class IngestTester
             	server.bitrateKbps = (float)(m_TotalSent * 8) / (float)elapsedMilliseconds();
                 m_LastTotalSent = m_TotalSent;
             }
+
+            sampleThroughput();
+
+            if (m_UseAdaptiveDuration && m_NumSamples >= m_Samples.length)
+            {
+            	// the window average leaves out the connection ramp up
+            	server.bitrateKbps = (float)getSampleMean();
+            	
+            	if (elapsed >= m_MinTestDurationMilliseconds && getIsSampleMeanSettled())
+            	{
+            		m_Converged = true;
+            		setTestState(TestState.DoneTestingServer);
+            	}
+            }
         }
 
         return true;
     }
 
+    protected void sampleThroughput()
+    {
+    	long now = System.currentTimeMillis();
+    	
+    	// start sampling once video is flowing
+    	if (m_LastSampleTime == 0)
+    	{
+    		m_LastSampleTime = now;
+    		m_LastSampleSent = m_TotalSent;
+    		return;
+    	}
+    	
+    	long delta = now - m_LastSampleTime;
+    	if (delta < m_SampleIntervalMilliseconds)
+    	{
+    		return;
+    	}
+    	
+    	m_Samples[m_NumSamples % m_Samples.length] = (double)((m_TotalSent - m_LastSampleSent) * 8) / (double)delta;
+    	m_NumSamples++;
+    	
+    	m_LastSampleTime = now;
+    	m_LastSampleSent = m_TotalSent;
+    }
+    
+    protected double getSampleMean()
+    {
+    	int count = Math.min(m_NumSamples, m_Samples.length);
+    	if (count == 0)
+    	{
+    		return 0;
+    	}
+    	
+    	double sum = 0;
+    	for (int i = 0; i < count; ++i)
+    	{
+    		sum += m_Samples[i];
+    	}
+    	
+    	return sum / count;
+    }
+    
+    protected double getSampleVariance()
+    {
+    	int count = Math.min(m_NumSamples, m_Samples.length);
+    	if (count < 2)
+    	{
+    		return 0;
+    	}
+    	
+    	double mean = getSampleMean();
+    	double sum = 0;
+    	for (int i = 0; i < count; ++i)
+    	{
+    		double d = m_Samples[i] - mean;
+    		sum += d * d;
+    	}
+    	
+    	return sum / (count - 1);
+    }
+    
+    /**
+     * Whether or not the 95% confidence interval of the window mean is within the tolerance.
+     */
+    protected boolean getIsSampleMeanSettled()
+    {
+    	int count = Math.min(m_NumSamples, m_Samples.length);
+    	double mean = getSampleMean();
+    	if (count < 2 || mean <= 0)
+    	{
+    		return false;
+    	}
+    	
+    	double halfWidth = getCriticalValue(count - 1) * Math.sqrt(getSampleVariance() / count);
+    	
+    	return halfWidth <= m_ConvergenceTolerance * mean;
+    }
+    
+    protected static double getCriticalValue(int degreesOfFreedom)
+    {
+    	if (degreesOfFreedom < T_CRITICAL_95.length)
+    	{
+    		return T_CRITICAL_95[degreesOfFreedom];
+    	}
+    	
+    	// first order expansion of t around the normal value, which is within 0.005 beyond the table
+    	double z = 1.96;
+    	return z + (z * z * z + z) / (4.0 * degreesOfFreedom);
+    }
+    
+    protected void recordResult(IngestServer server)
+    {
+    	IngestTestResult result = new IngestTestResult(server.serverUrl);
+    	result.m_BitrateKbps = server.bitrateKbps;
+    	result.m_BitrateVariance = (float)getSampleVariance();
+    	result.m_NumSamples = Math.min(m_NumSamples, m_Samples.length);
+    	result.m_DurationMilliseconds = m_StartTimeMilliseconds > 0 ? elapsedMilliseconds() : 0;
+    	result.m_Converged = m_Converged;
+    	result.m_TestedTimeMilliseconds = System.currentTimeMillis();
+    	
+    	if (m_Probe != null)
+    	{
+    		IngestServer[] servers = m_Probe.getServers();
+    		for (int i = 0; i < servers.length; ++i)
+    		{
+    			if (servers[i] == server)
+    			{
+    				result.m_ConnectMilliseconds = m_Probe.getConnectMilliseconds(i);
+    				break;
+    			}
+    		}
+    	}
+    	
+    	m_Results.put(server, result);
+    }
+
     protected void cleanup()
     {
         m_CurrentServer = null;
@@ -0,0 +1,78 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * The latency distributions the BroadcastController records on its hot paths.  These show whether a stutter comes from reading the frame
+ * back, from the encoder accepting the frame or from callback dispatch in update().
+ */
+public class LatencyStatistics
+{
+    protected final LatencyHistogram m_Capture = new LatencyHistogram();
+    protected final LatencyHistogram m_Submit = new LatencyHistogram();
+    protected final LatencyHistogram m_PollTasks = new LatencyHistogram();
+    protected final LatencyHistogram m_BufferWait = new LatencyHistogram();
+    protected final LatencyHistogram m_Composite = new LatencyHistogram();
+
+    /**
+     * The time spent reading the framebuffer back into a FrameBuffer, either with glReadPixels or by mapping a pixel buffer.
+     */
+    public LatencyHistogram getCapture()
+    {
+        return m_Capture;
+    }
+
+    /**
+     * The time spent in Stream.submitVideoFrame.
+     */
+    public LatencyHistogram getSubmit()
+    {
+        return m_Submit;
+    }
+
+    /**
+     * The time spent in Stream.pollTasks during update(), which includes firing the SDK callbacks.
+     */
+    public LatencyHistogram getPollTasks()
+    {
+        return m_PollTasks;
+    }
+
+    /**
+     * The time spent getting a free capture buffer, including growing the pool or waiting for the SDK to release one.  Attempts which
+     * failed to get a buffer, including timed out waits, are recorded as well.
+     */
+    public LatencyHistogram getBufferWait()
+    {
+        return m_BufferWait;
+    }
+
+    /**
+     * The time spent blending the FrameCompositor's layers into each frame.
+     */
+    public LatencyHistogram getComposite()
+    {
+        return m_Composite;
+    }
+
+    public void reset()
+    {
+        m_Capture.reset();
+        m_Submit.reset();
+        m_PollTasks.reset();
+        m_BufferWait.reset();
+        m_Composite.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("capture: ").append(m_Capture.getSnapshot()).append("\n");
+        sb.append("submit: ").append(m_Submit.getSnapshot()).append("\n");
+        sb.append("pollTasks: ").append(m_PollTasks.getSnapshot()).append("\n");
+        sb.append("bufferWait: ").append(m_BufferWait.getSnapshot()).append("\n");
+        sb.append("composite: ").append(m_Composite.getSnapshot());
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,249 @@
+package tv.twitch.broadcast;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Raw memory access used to move pixels between Java buffers and the native memory behind a FrameBuffer without an intermediate copy.
+ *
+ * The SDK has no call to copy Java data into a FrameBuffer so this uses sun.misc.Unsafe, which is an internal JVM API.  It's off unless
+ * the application opts in by setting the system property tv.twitch.broadcast.nativeMemory to true before the broadcast classes are
+ * used, e.g. with -Dtv.twitch.broadcast.nativeMemory=true.  Unsafe is only reached through reflection so nothing references it at
+ * compile time.  When not enabled, or if the JVM doesn't have Unsafe, isAvailable() returns false and callers fall back to the SDK's
+ * own capture functions.
+ */
+final class NativeMemory
+{
+    public static final String ENABLE_PROPERTY = "tv.twitch.broadcast.nativeMemory";
+
+    private static final MethodHandle s_CopyMemory;      //!< (Object src, long srcOffset, Object dst, long dstOffset, long numBytes)
+    private static final MethodHandle s_SetMemory;       //!< (long address, long numBytes, byte value)
+    private static final MethodHandle s_AllocateMemory;  //!< (long numBytes) -> long
+    private static final MethodHandle s_FreeMemory;      //!< (long address)
+    private static final MethodHandle s_GetLong;         //!< (Object o, long offset) -> long
+    private static final long s_AddressOffset;
+    private static final long s_ByteArrayOffset;
+    private static final long s_IntArrayOffset;
+
+    static
+    {
+        MethodHandle copyMemory = null;
+        MethodHandle setMemory = null;
+        MethodHandle allocateMemory = null;
+        MethodHandle freeMemory = null;
+        MethodHandle getLong = null;
+        long addressOffset = -1;
+        long byteArrayOffset = -1;
+        long intArrayOffset = -1;
+
+        try
+        {
+            if (Boolean.parseBoolean(System.getProperty(ENABLE_PROPERTY)))
+            {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Object unsafe = field.get(null);
+
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                copyMemory = lookup.findVirtual(unsafeClass, "copyMemory",
+                    MethodType.methodType(void.class, Object.class, long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+                setMemory = lookup.findVirtual(unsafeClass, "setMemory", MethodType.methodType(void.class, long.class, long.class, byte.class)).bindTo(unsafe);
+                allocateMemory = lookup.findVirtual(unsafeClass, "allocateMemory", MethodType.methodType(long.class, long.class)).bindTo(unsafe);
+                freeMemory = lookup.findVirtual(unsafeClass, "freeMemory", MethodType.methodType(void.class, long.class)).bindTo(unsafe);
+                getLong = lookup.findVirtual(unsafeClass, "getLong", MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+
+                MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset", MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+                MethodHandle arrayBaseOffset = lookup.findVirtual(unsafeClass, "arrayBaseOffset", MethodType.methodType(int.class, Class.class)).bindTo(unsafe);
+
+                addressOffset = (long)objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+                byteArrayOffset = (int)arrayBaseOffset.invokeExact((Class<?>)byte[].class);
+                intArrayOffset = (int)arrayBaseOffset.invokeExact((Class<?>)int[].class);
+            }
+        }
+        catch (Throwable x)
+        {
+            copyMemory = null;
+        }
+
+        s_CopyMemory = copyMemory;
+        s_SetMemory = setMemory;
+        s_AllocateMemory = allocateMemory;
+        s_FreeMemory = freeMemory;
+        s_GetLong = getLong;
+        s_AddressOffset = addressOffset;
+        s_ByteArrayOffset = byteArrayOffset;
+        s_IntArrayOffset = intArrayOffset;
+    }
+
+    private NativeMemory()
+    {
+    }
+
+    /**
+     * Whether or not raw memory access has been enabled and is supported on this JVM.
+     */
+    static boolean isAvailable()
+    {
+        return s_CopyMemory != null;
+    }
+
+    /**
+     * Retrieves the native address of the first byte of a direct buffer.
+     */
+    static long getAddress(ByteBuffer buffer)
+    {
+        if (!buffer.isDirect())
+        {
+            throw new IllegalArgumentException("buffer must be direct");
+        }
+
+        try
+        {
+            return (long)s_GetLong.invokeExact((Object)buffer, s_AddressOffset);
+        }
+        catch (Throwable x)
+        {
+            throw rethrow(x);
+        }
+    }
+
+    /**
+     * Copies bytes from the current position of a buffer to native memory.  The position of the buffer is not changed.
+     */
+    static void copy(ByteBuffer src, long dstAddress, int numBytes)
+    {
+        if (numBytes > src.remaining())
+        {
+            throw new IndexOutOfBoundsException("not enough data in the source buffer");
+        }
+
+        if (src.isDirect())
+        {
+            copyMemory(null, getAddress(src) + src.position(), null, dstAddress, numBytes);
+        }
+        else if (src.hasArray())
+        {
+            copy(src.array(), src.arrayOffset() + src.position(), dstAddress, numBytes);
+        }
+        else
+        {
+            // read only heap buffers don't expose their array
+            byte[] bytes = new byte[numBytes];
+            src.duplicate().get(bytes);
+            copy(bytes, 0, dstAddress, numBytes);
+        }
+    }
+
+    /**
+     * Copies bytes from an array to native memory.
+     */
+    static void copy(byte[] src, int srcOffset, long dstAddress, int numBytes)
+    {
+        if (srcOffset < 0 || numBytes < 0 || srcOffset + numBytes > src.length)
+        {
+            throw new IndexOutOfBoundsException("not enough data in the source array");
+        }
+
+        copyMemory(src, s_ByteArrayOffset + srcOffset, null, dstAddress, numBytes);
+    }
+
+    /**
+     * Copies ints from an array to native memory in native byte order.
+     */
+    static void copy(int[] src, int srcOffset, long dstAddress, int count)
+    {
+        if (srcOffset < 0 || count < 0 || srcOffset + count > src.length)
+        {
+            throw new IndexOutOfBoundsException("not enough data in the source array");
+        }
+
+        copyMemory(src, s_IntArrayOffset + srcOffset * 4L, null, dstAddress, count * 4L);
+    }
+
+    /**
+     * Copies ints from native memory in native byte order to an array.
+     */
+    static void copy(long srcAddress, int[] dst, int dstOffset, int count)
+    {
+        if (dstOffset < 0 || count < 0 || dstOffset + count > dst.length)
+        {
+            throw new IndexOutOfBoundsException("not enough room in the destination array");
+        }
+
+        copyMemory(null, srcAddress, dst, s_IntArrayOffset + dstOffset * 4L, count * 4L);
+    }
+
+    /**
+     * Sets every byte of a block of native memory to the given value.
+     */
+    static void fill(long address, int numBytes, byte value)
+    {
+        try
+        {
+            s_SetMemory.invokeExact(address, (long)numBytes, value);
+        }
+        catch (Throwable x)
+        {
+            throw rethrow(x);
+        }
+    }
+
+    /**
+     * Allocates a block of native memory which must be released with free().
+     */
+    static long allocate(int numBytes)
+    {
+        try
+        {
+            return (long)s_AllocateMemory.invokeExact((long)numBytes);
+        }
+        catch (Throwable x)
+        {
+            throw rethrow(x);
+        }
+    }
+
+    static void free(long address)
+    {
+        try
+        {
+            s_FreeMemory.invokeExact(address);
+        }
+        catch (Throwable x)
+        {
+            throw rethrow(x);
+        }
+    }
+
+    private static void copyMemory(Object src, long srcOffset, Object dst, long dstOffset, long numBytes)
+    {
+        try
+        {
+            s_CopyMemory.invokeExact(src, srcOffset, dst, dstOffset, numBytes);
+        }
+        catch (Throwable x)
+        {
+            throw rethrow(x);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable x)
+    {
+        if (x instanceof RuntimeException)
+        {
+            throw (RuntimeException)x;
+        }
+        else if (x instanceof Error)
+        {
+            throw (Error)x;
+        }
+
+        throw new IllegalStateException(x);
+    }
+}
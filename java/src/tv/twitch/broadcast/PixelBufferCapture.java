@@ -0,0 +1,208 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * An asynchronous alternative to BroadcastController.captureFrameBuffer_ReadPixels.  Reading the framebuffer back with glReadPixels
+ * directly into client memory stalls the GL pipeline until every queued command has finished.  Instead, this class reads each frame
+ * into one of several pixel buffer objects in round-robin order and only maps a pixel buffer once it has had time to complete,
+ * typically while the following frames are being rendered.  The mapped memory is then copied into a FrameBuffer for submission.
+ *
+ * The SDK doesn't own a GL context so the actual GL calls are left to a subclass written against whichever GL binding the game uses.
+ * All methods must be called from the thread which owns the GL context.  Set the instance on the BroadcastController with
+ * setPixelBufferCapture() and call BroadcastController.captureFrame() once per broadcast frame.
+ *
+ * Copying the mapped memory into a FrameBuffer needs direct memory access, which is only enabled when the system property
+ * tv.twitch.broadcast.nativeMemory is true.  Otherwise initialize() fails and captureFrame() falls back to glReadPixels.
+ */
+public abstract class PixelBufferCapture
+{
+    protected final int m_NumPixelBuffers;
+
+    protected int m_Width = 0;
+    protected int m_Height = 0;
+    protected int m_Size = 0;
+    protected boolean m_Initialized = false;
+
+    protected long m_NumReadbacksIssued = 0;        //!< The total number of readbacks started.
+    protected long m_NumReadbacksConsumed = 0;      //!< The total number of readbacks copied out or dropped.
+    protected long m_NumReadbacksDropped = 0;       //!< The readbacks which were overwritten before they were copied out.
+
+    /**
+     * @param numPixelBuffers The number of pixel buffers to cycle through.  More buffers hide more latency but delay the broadcast by that many frames.
+     */
+    protected PixelBufferCapture(int numPixelBuffers)
+    {
+        m_NumPixelBuffers = Math.max(2, numPixelBuffers);
+    }
+
+    //region GL Hooks
+
+    /**
+     * Creates the pixel buffer objects, each able to hold size bytes.
+     * @return Whether or not successful
+     */
+    protected abstract boolean createPixelBuffers(int count, int size);
+
+    /**
+     * Deletes the pixel buffer objects.
+     */
+    protected abstract void deletePixelBuffers();
+
+    /**
+     * Starts an asynchronous read of the pixels in the rectangle (0, 0, width, height) of the current read buffer into the given pixel buffer.
+     * The pixels must be read in the pixel format of the VideoParams used to start the broadcast, BGRA by default.
+     */
+    protected abstract void beginReadback(int index, int width, int height);
+
+    /**
+     * Maps the given pixel buffer for reading.  This will block if the readback has not yet finished.
+     * @return The mapped memory which must be a direct buffer or null if mapping failed
+     */
+    protected abstract ByteBuffer mapPixelBuffer(int index, int size);
+
+    /**
+     * Unmaps the given pixel buffer so it can be used for the next readback.
+     */
+    protected abstract void unmapPixelBuffer(int index);
+
+    //endregion
+
+    //region Properties
+
+    public boolean getIsInitialized()
+    {
+        return m_Initialized;
+    }
+
+    public int getNumPixelBuffers()
+    {
+        return m_NumPixelBuffers;
+    }
+
+    /**
+     * The number of frames the broadcast is delayed by.
+     */
+    public int getLatencyFrames()
+    {
+        return m_NumPixelBuffers - 1;
+    }
+
+    /**
+     * The number of readbacks which were overwritten before a FrameBuffer was available to copy them into.
+     */
+    public long getNumDroppedFrames()
+    {
+        return m_NumReadbacksDropped;
+    }
+
+    /**
+     * Whether or not the oldest readback has had the full pipeline depth to complete and is ready to be copied out.
+     */
+    public boolean getHasCompletedFrame()
+    {
+        return m_Initialized && m_NumReadbacksIssued - m_NumReadbacksConsumed >= m_NumPixelBuffers;
+    }
+
+    //endregion
+
+    /**
+     * Creates the pixel buffers for frames of the given size.  Any previous pixel buffers are released.
+     * @return Whether or not successful
+     */
+    public boolean initialize(int width, int height)
+    {
+        shutdown();
+
+        if (width <= 0 || height <= 0 || !NativeMemory.isAvailable())
+        {
+            return false;
+        }
+
+        m_Width = width;
+        m_Height = height;
+        m_Size = width * height * 4;
+
+        if (!createPixelBuffers(m_NumPixelBuffers, m_Size))
+        {
+            deletePixelBuffers();
+            return false;
+        }
+
+        m_NumReadbacksIssued = 0;
+        m_NumReadbacksConsumed = 0;
+        m_NumReadbacksDropped = 0;
+        m_Initialized = true;
+
+        return true;
+    }
+
+    /**
+     * Releases the pixel buffers.  Any readbacks in flight are discarded.
+     */
+    public void shutdown()
+    {
+        if (!m_Initialized)
+        {
+            return;
+        }
+
+        deletePixelBuffers();
+
+        m_Initialized = false;
+    }
+
+    /**
+     * Starts reading the current frame back into the next pixel buffer.  If the oldest readback was never copied out it is dropped.
+     */
+    public void readPixels()
+    {
+        if (!m_Initialized)
+        {
+            return;
+        }
+
+        // the ring is full so the oldest frame gets overwritten
+        if (m_NumReadbacksIssued - m_NumReadbacksConsumed >= m_NumPixelBuffers)
+        {
+            m_NumReadbacksConsumed++;
+            m_NumReadbacksDropped++;
+        }
+
+        beginReadback((int)(m_NumReadbacksIssued % m_NumPixelBuffers), m_Width, m_Height);
+        m_NumReadbacksIssued++;
+    }
+
+    /**
+     * Copies the oldest completed readback into the given buffer and frees its pixel buffer for reuse.
+     * @return Whether or not the buffer was filled
+     */
+    public boolean copyCompletedFrame(FrameBuffer buffer)
+    {
+        if (!getHasCompletedFrame() || buffer == null || !buffer.getIsValid())
+        {
+            return false;
+        }
+
+        int index = (int)(m_NumReadbacksConsumed % m_NumPixelBuffers);
+        m_NumReadbacksConsumed++;
+
+        ByteBuffer pixels = mapPixelBuffer(index, m_Size);
+        if (pixels == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            NativeMemory.copy(pixels, buffer.getAddress(), Math.min(m_Size, buffer.getSize()));
+        }
+        finally
+        {
+            unmapPixelBuffer(index);
+        }
+
+        return true;
+    }
+}
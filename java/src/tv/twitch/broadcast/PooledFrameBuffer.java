@@ -0,0 +1,169 @@
+package tv.twitch.broadcast;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A FrameBuffer owned by a FrameBufferPool.  The buffer carries the index of its slot in the pool so handing it back is an array access
+ * rather than a search by address, and it stays out of the global registry behind FrameBuffer.lookupBuffer().
+ *
+ * Pooled buffers are never finalized.  The pool frees them explicitly when it shrinks or is cleaned up so the native memory is returned
+ * as soon as the pool is done with it rather than whenever the finalizer thread gets around to it.
+ *
+ * The pixels can be read and written from Java with getPixels(), setPixels() and write(), which copy straight between the caller's
+ * arrays or buffers and the native memory so software rendered frames and overlays don't need an intermediate copy.  Every access is
+ * bounds checked and excluded from free() by a lock so freed memory is never touched; once the buffer is freed they throw.  No view
+ * of the native memory is handed out since nothing could stop it being used after the memory is freed.
+ */
+public class PooledFrameBuffer extends FrameBuffer
+{
+    protected volatile int m_Slot = FrameBufferPool.INVALID_SLOT;     //!< The slot in the owning pool or -1 if not in a pool.
+    protected final ReentrantReadWriteLock m_Lock = new ReentrantReadWriteLock();  //!< Read locked by pixel access, write locked by free().
+
+    PooledFrameBuffer(StreamAPI api, int size)
+    {
+        super(api, size);
+
+        // the pool knows where to find the buffer so there's no need for the global registry
+        unregisterBuffer(this);
+    }
+
+    /**
+     * The index of the slot the buffer occupies in its pool, or -1 if it isn't in a pool.
+     */
+    public int getSlot()
+    {
+        return m_Slot;
+    }
+    void setSlot(int slot)
+    {
+        m_Slot = slot;
+    }
+
+    /**
+     * Whether or not the pixels can be accessed from Java.  This needs the system property tv.twitch.broadcast.nativeMemory set to true.
+     */
+    public static boolean getCanAccessPixels()
+    {
+        return NativeMemory.isAvailable();
+    }
+
+    /**
+     * Copies pixels out of the buffer.  Each pixel is read as an int in native byte order.
+     * @param index The first pixel to copy
+     */
+    public void getPixels(int index, int[] dst, int offset, int count)
+    {
+        checkRange(index, count, 4);
+        if (offset < 0 || offset + count > dst.length)
+        {
+            throw new IndexOutOfBoundsException("outside the destination array");
+        }
+
+        m_Lock.readLock().lock();
+        try
+        {
+            NativeMemory.copy(getValidAddress() + index * 4L, dst, offset, count);
+        }
+        finally
+        {
+            m_Lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies pixels into the buffer.  Each pixel is written as an int in native byte order.
+     * @param index The first pixel to replace
+     */
+    public void setPixels(int index, int[] src, int offset, int count)
+    {
+        checkRange(index, count, 4);
+        if (offset < 0 || offset + count > src.length)
+        {
+            throw new IndexOutOfBoundsException("outside the source array");
+        }
+
+        m_Lock.readLock().lock();
+        try
+        {
+            NativeMemory.copy(src, offset, getValidAddress() + index * 4L, count);
+        }
+        finally
+        {
+            m_Lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer into this one and advances the buffer's position past them.
+     * @param byteOffset Where to start writing in this buffer
+     */
+    public void write(int byteOffset, ByteBuffer src)
+    {
+        int count = src.remaining();
+        checkRange(byteOffset, count, 1);
+
+        m_Lock.readLock().lock();
+        try
+        {
+            NativeMemory.copy(src, getValidAddress() + byteOffset, count);
+        }
+        finally
+        {
+            m_Lock.readLock().unlock();
+        }
+
+        src.position(src.position() + count);
+    }
+
+    @Override
+    public void free()
+    {
+        // waits for any copies in progress to finish
+        m_Lock.writeLock().lock();
+        try
+        {
+            super.free();
+        }
+        finally
+        {
+            m_Lock.writeLock().unlock();
+        }
+    }
+
+    protected void checkRange(int index, int count, int elementSize)
+    {
+        if (!NativeMemory.isAvailable())
+        {
+            throw new UnsupportedOperationException("pixel access isn't enabled, see getCanAccessPixels()");
+        }
+
+        if (index < 0 || count < 0 || ((long)index + count) * elementSize > getSize())
+        {
+            throw new IndexOutOfBoundsException("outside the frame buffer");
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    protected long getValidAddress()
+    {
+        long address = getAddress();
+        if (address == 0)
+        {
+            throw new IllegalStateException("the frame buffer has been freed");
+        }
+
+        return address;
+    }
+
+    /**
+     * Intentionally empty so the JVM doesn't track pooled buffers for finalization.  The pool frees them.
+     */
+    @Override
+    protected void finalize()
+    {
+    }
+}
@@ -0,0 +1,274 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * Collects the statistics the SDK reports through IStatCallbacks while broadcasting.  The BroadcastController polls the SDK for them
+ * at the configured interval and after each poll a new immutable Snapshot is published.  getSnapshot() can be called from any thread
+ * without locking and always returns a consistent set of values.
+ */
+public class StreamStatistics
+{
+    /**
+     * An immutable view of the statistics at a point in time.
+     */
+    public static final class Snapshot
+    {
+        private final long m_TimeMilliseconds;
+        private final RTMPState m_RTMPState;
+        private final long m_TotalBytesSent;
+        private final long m_BytesSentDelta;
+        private final float m_AverageBitrateKbps;
+        private final float m_RollingBitrateKbps;
+        private final long m_CurrentStateMilliseconds;
+        private final long[] m_StateMilliseconds;
+
+        Snapshot(long timeMilliseconds, RTMPState state, long totalBytesSent, long bytesSentDelta, float averageBitrateKbps, float rollingBitrateKbps, long currentStateMilliseconds, long[] stateMilliseconds)
+        {
+            m_TimeMilliseconds = timeMilliseconds;
+            m_RTMPState = state;
+            m_TotalBytesSent = totalBytesSent;
+            m_BytesSentDelta = bytesSentDelta;
+            m_AverageBitrateKbps = averageBitrateKbps;
+            m_RollingBitrateKbps = rollingBitrateKbps;
+            m_CurrentStateMilliseconds = currentStateMilliseconds;
+            m_StateMilliseconds = stateMilliseconds;
+        }
+
+        /**
+         * The time since collection started when the snapshot was taken.
+         */
+        public long getTimeMilliseconds()
+        {
+            return m_TimeMilliseconds;
+        }
+
+        /**
+         * The most recently reported state of the connection to the ingest server.
+         */
+        public RTMPState getRTMPState()
+        {
+            return m_RTMPState;
+        }
+
+        /**
+         * The total number of bytes sent to the ingest server.
+         */
+        public long getTotalBytesSent()
+        {
+            return m_TotalBytesSent;
+        }
+
+        /**
+         * The number of bytes sent since the previous snapshot.
+         */
+        public long getBytesSentDelta()
+        {
+            return m_BytesSentDelta;
+        }
+
+        /**
+         * The upload bitrate since collection started.
+         */
+        public float getAverageBitrateKbps()
+        {
+            return m_AverageBitrateKbps;
+        }
+
+        /**
+         * The upload bitrate over the rolling window.
+         */
+        public float getRollingBitrateKbps()
+        {
+            return m_RollingBitrateKbps;
+        }
+
+        /**
+         * How long the connection has been in its current state.
+         */
+        public long getCurrentStateMilliseconds()
+        {
+            return m_CurrentStateMilliseconds;
+        }
+
+        /**
+         * The total time the connection has spent in the given state, including the current period.
+         */
+        public long getStateMilliseconds(RTMPState state)
+        {
+            return m_StateMilliseconds[state.ordinal()];
+        }
+    }
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLISECONDS = 1000;
+    public static final long DEFAULT_WINDOW_MILLISECONDS = 5000;
+
+    protected long m_PollIntervalMilliseconds = DEFAULT_POLL_INTERVAL_MILLISECONDS;
+    protected long m_WindowMilliseconds = DEFAULT_WINDOW_MILLISECONDS;
+
+    protected long m_StartTime = 0;                 //!< When collection started in nanoseconds.
+    protected long m_LastPollTime = 0;
+
+    protected RTMPState m_RTMPState = RTMPState.Invalid;
+    protected long m_StateEnteredTime = 0;
+    protected long[] m_StateNanos = new long[RTMPState.values().length];
+
+    protected long m_TotalBytesSent = 0;
+    protected long m_LastSnapshotBytesSent = 0;
+
+    protected long[] m_SampleTimes = null;          //!< The times of the samples in the rolling window.
+    protected long[] m_SampleBytes = null;          //!< The total bytes sent at each sample.
+    protected int m_NumSamples = 0;
+    protected int m_NextSample = 0;
+
+    protected volatile Snapshot m_Snapshot = null;
+
+    public StreamStatistics()
+    {
+        reset();
+    }
+
+    //region Properties
+
+    /**
+     * How often the SDK is polled for statistics.  Changes take effect on the next reset.
+     */
+    public long getPollIntervalMilliseconds()
+    {
+        return m_PollIntervalMilliseconds;
+    }
+    public void setPollIntervalMilliseconds(long value)
+    {
+        m_PollIntervalMilliseconds = Math.max(1, value);
+    }
+
+    /**
+     * The length of the window the rolling bitrate is measured over.  Changes take effect on the next reset.
+     */
+    public long getWindowMilliseconds()
+    {
+        return m_WindowMilliseconds;
+    }
+    public void setWindowMilliseconds(long value)
+    {
+        m_WindowMilliseconds = Math.max(1, value);
+    }
+
+    /**
+     * The most recently published statistics.  Safe to call from any thread.
+     */
+    public Snapshot getSnapshot()
+    {
+        return m_Snapshot;
+    }
+
+    //endregion
+
+    /**
+     * Clears all the statistics.  Called when broadcasting starts.
+     */
+    public void reset()
+    {
+        long now = System.nanoTime();
+
+        m_StartTime = now;
+        m_LastPollTime = 0;
+
+        m_RTMPState = RTMPState.Invalid;
+        m_StateEnteredTime = now;
+        m_StateNanos = new long[RTMPState.values().length];
+
+        m_TotalBytesSent = 0;
+        m_LastSnapshotBytesSent = 0;
+
+        int capacity = (int)(m_WindowMilliseconds / m_PollIntervalMilliseconds) + 2;
+        m_SampleTimes = new long[capacity];
+        m_SampleBytes = new long[capacity];
+        m_NumSamples = 0;
+        m_NextSample = 0;
+
+        m_Snapshot = new Snapshot(0, m_RTMPState, 0, 0, 0, 0, 0, new long[m_StateNanos.length]);
+    }
+
+    /**
+     * Whether or not it is time to poll the SDK again.
+     */
+    public boolean getIsPollDue(long now)
+    {
+        return m_LastPollTime == 0 || (now - m_LastPollTime) / 1000000 >= m_PollIntervalMilliseconds;
+    }
+
+    /**
+     * Records a statistic reported by the SDK.
+     */
+    public void onStat(StatType type, long data)
+    {
+        switch (type)
+        {
+            case TTV_ST_RTMPSTATE:
+            {
+                RTMPState state = RTMPState.lookupValue((int)data);
+                if (state != null && state != m_RTMPState)
+                {
+                    long now = System.nanoTime();
+                    m_StateNanos[m_RTMPState.ordinal()] += now - m_StateEnteredTime;
+                    m_StateEnteredTime = now;
+                    m_RTMPState = state;
+                }
+                break;
+            }
+            case TTV_ST_RTMPDATASENT:
+            {
+                m_TotalBytesSent = data;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a sample to the rolling window and publishes a new snapshot.  Called after the SDK has been polled.
+     */
+    public void onPolled(long now)
+    {
+        m_LastPollTime = now;
+
+        m_SampleTimes[m_NextSample] = now;
+        m_SampleBytes[m_NextSample] = m_TotalBytesSent;
+        m_NextSample = (m_NextSample + 1) % m_SampleTimes.length;
+        m_NumSamples = Math.min(m_NumSamples + 1, m_SampleTimes.length);
+
+        // find the oldest sample still inside the window
+        long windowNanos = m_WindowMilliseconds * 1000000;
+        int oldest = (m_NextSample - m_NumSamples + m_SampleTimes.length) % m_SampleTimes.length;
+        while (oldest != (m_NextSample - 1 + m_SampleTimes.length) % m_SampleTimes.length && now - m_SampleTimes[oldest] > windowNanos)
+        {
+            oldest = (oldest + 1) % m_SampleTimes.length;
+        }
+
+        float rollingKbps = 0;
+        long windowElapsed = now - m_SampleTimes[oldest];
+        if (windowElapsed > 0)
+        {
+            rollingKbps = (float)((m_TotalBytesSent - m_SampleBytes[oldest]) * 8 * 1000000.0 / windowElapsed);
+        }
+
+        float averageKbps = 0;
+        long elapsed = now - m_StartTime;
+        if (elapsed > 0)
+        {
+            averageKbps = (float)(m_TotalBytesSent * 8 * 1000000.0 / elapsed);
+        }
+
+        long currentStateNanos = now - m_StateEnteredTime;
+        long[] stateMilliseconds = new long[m_StateNanos.length];
+        for (int i = 0; i < stateMilliseconds.length; ++i)
+        {
+            stateMilliseconds[i] = m_StateNanos[i] / 1000000;
+        }
+        stateMilliseconds[m_RTMPState.ordinal()] += currentStateNanos / 1000000;
+
+        long delta = m_TotalBytesSent - m_LastSnapshotBytesSent;
+        m_LastSnapshotBytesSent = m_TotalBytesSent;
+
+        m_Snapshot = new Snapshot(elapsed / 1000000, m_RTMPState, m_TotalBytesSent, delta, averageKbps, rollingKbps, currentStateNanos / 1000000, stateMilliseconds);
+    }
+}
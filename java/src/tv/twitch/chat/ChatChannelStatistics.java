@@ -0,0 +1,180 @@
+package tv.twitch.chat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Counts the chat events received by one channel so the channels responsible for the load can be found.  The counters are updated on
+ * the game thread and may be read from any thread, although the values read together aren't guaranteed to be consistent.  The rates
+ * are measured over one second windows.
+ */
+public class ChatChannelStatistics
+{
+    protected static final long RATE_WINDOW_NANOS = 1000000000L;
+
+    protected final String m_ChannelName;
+
+    protected volatile long m_NumRawMessages = 0;
+    protected volatile long m_NumTokenizedMessages = 0;
+    protected volatile long m_NumUserJoins = 0;
+    protected volatile long m_NumUserLeaves = 0;
+    protected volatile long m_NumUserUpdates = 0;
+    protected volatile long m_NumClears = 0;
+    protected final AtomicInteger m_NumQueuedEvents = new AtomicInteger(0);
+
+    protected long m_WindowStart = System.nanoTime();
+    protected long m_WindowMessages = 0;
+    protected long m_WindowEvents = 0;
+    protected volatile float m_MessagesPerSecond = 0;
+    protected volatile float m_EventsPerSecond = 0;
+
+    public ChatChannelStatistics(String channelName)
+    {
+        m_ChannelName = channelName;
+    }
+
+    //#region Properties
+
+    public String getChannelName()
+    {
+        return m_ChannelName;
+    }
+
+    /**
+     * The number of messages received.  Messages delivered both raw and tokenized are only counted once.
+     */
+    public long getNumMessages()
+    {
+        return Math.max(m_NumRawMessages, m_NumTokenizedMessages);
+    }
+
+    public long getNumRawMessages()
+    {
+        return m_NumRawMessages;
+    }
+
+    public long getNumTokenizedMessages()
+    {
+        return m_NumTokenizedMessages;
+    }
+
+    public long getNumUserJoins()
+    {
+        return m_NumUserJoins;
+    }
+
+    public long getNumUserLeaves()
+    {
+        return m_NumUserLeaves;
+    }
+
+    public long getNumUserUpdates()
+    {
+        return m_NumUserUpdates;
+    }
+
+    public long getNumClears()
+    {
+        return m_NumClears;
+    }
+
+    /**
+     * The number of events received by the event pump which are waiting to be fired.  This is always 0 without the pump.
+     */
+    public int getNumQueuedEvents()
+    {
+        return Math.max(0, m_NumQueuedEvents.get());
+    }
+
+    /**
+     * The messages received per second over the last complete window.
+     */
+    public float getMessagesPerSecond()
+    {
+        return m_MessagesPerSecond;
+    }
+
+    /**
+     * The callbacks fired per second over the last complete window.
+     */
+    public float getEventsPerSecond()
+    {
+        return m_EventsPerSecond;
+    }
+
+    //#endregion
+
+    public void onRawMessages(int count)
+    {
+        m_NumRawMessages += count;
+        m_WindowEvents++;
+
+        // tokenized messages are the same messages when both are delivered
+        if (m_NumRawMessages > m_NumTokenizedMessages)
+        {
+            m_WindowMessages += Math.min(count, m_NumRawMessages - m_NumTokenizedMessages);
+        }
+    }
+
+    public void onTokenizedMessages(int count)
+    {
+        m_NumTokenizedMessages += count;
+        m_WindowEvents++;
+
+        if (m_NumTokenizedMessages > m_NumRawMessages)
+        {
+            m_WindowMessages += Math.min(count, m_NumTokenizedMessages - m_NumRawMessages);
+        }
+    }
+
+    public void onUsersChanged(int joins, int leaves, int updates)
+    {
+        m_NumUserJoins += joins;
+        m_NumUserLeaves += leaves;
+        m_NumUserUpdates += updates;
+        m_WindowEvents++;
+    }
+
+    public void onCleared()
+    {
+        m_NumClears++;
+        m_WindowEvents++;
+    }
+
+    public void onEventQueued()
+    {
+        m_NumQueuedEvents.incrementAndGet();
+    }
+
+    public void onQueuedEventFired()
+    {
+        m_NumQueuedEvents.decrementAndGet();
+    }
+
+    /**
+     * Closes the current rate window if it has elapsed.  Called from ChatController.update().
+     */
+    public void update(long now)
+    {
+        long elapsed = now - m_WindowStart;
+        if (elapsed < RATE_WINDOW_NANOS)
+        {
+            return;
+        }
+
+        float seconds = elapsed / 1000000000.0f;
+        m_MessagesPerSecond = m_WindowMessages / seconds;
+        m_EventsPerSecond = m_WindowEvents / seconds;
+
+        m_WindowStart = now;
+        m_WindowMessages = 0;
+        m_WindowEvents = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %.1f msg/s, %.1f events/s, %d messages, %d joins, %d leaves, %d queued",
+            m_ChannelName, m_MessagesPerSecond, m_EventsPerSecond, getNumMessages(), m_NumUserJoins, m_NumUserLeaves, getNumQueuedEvents());
+    }
+}
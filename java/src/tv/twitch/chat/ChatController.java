@@ -1,6 +1,8 @@
 ﻿package tv.twitch.chat;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import tv.twitch.*;
 
@@ -149,31 +151,53 @@ public class ChatController
         void onBadgeDataExpired(String channelName);
     }
 
+    /**
+     * The listener interface for receiving all the chat events from an update at once.
+     */
+    public interface BatchListener
+    {
+        /**
+         * Fired at the end of update() when any chat events were received.  The batch is reused so it's only valid during the callback.
+         */
+        void onChatEventsReceived(ChatEventBatch batch);
+    }
+
     //#endregion
 
     //#region Memeber Variables
 
     protected Listener m_Listener = null;
+    protected BatchListener m_BatchListener = null;
+    protected ChatEventBatch m_EventBatch = new ChatEventBatch();
 
     protected String m_UserName = "";
     protected String m_ClientId = "";
     protected String m_ClientSecret = "";
     protected Core m_Core = null;
     protected Chat m_Chat = null;
+    protected final ReentrantLock m_ChatLock = new ReentrantLock();   //!< Held for every call into m_Chat since the event pump flushes from its own thread.
 
     protected ChatState m_ChatState = ChatState.Uninitialized;
     protected AuthToken m_AuthToken = new AuthToken();
 
-    protected HashMap<String, ChatChannelListener> m_Channels = new HashMap<String, ChatChannelListener>();
+    protected ConcurrentHashMap<String, ChatChannelListener> m_Channels = new ConcurrentHashMap<String, ChatChannelListener>();  //!< The channels by name.  This may be read from any thread.
 
     protected int m_MessageHistorySize = 128;
     protected EmoticonMode m_EmoticonMode = EmoticonMode.None;
     protected EmoticonMode m_ActiveEmoticonMode = EmoticonMode.None; 
     protected ChatEmoticonData m_EmoticonData = null;
+    protected EmoticonTextureCache m_EmoticonCache = null;     //!< Holds the texture sheets off the heap, if set.
+    protected boolean m_ReleaseEmoticonHeapBuffers = false;    //!< Whether the sheets' heap buffers are dropped once cached.
+    protected ChatBadgeCache m_BadgeCache = null;              //!< Shares badge data between channels, if set.
+    protected ChatRateLimiter m_RateLimiter = new ChatRateLimiter(); //!< The server's message rate limit, shared by every channel's send queue.
 
     protected int m_MessageFlushInterval = 500;
     protected int m_UserChangeEventInterval = 2000;
 
+    protected boolean m_UseEventPump = false;
+    protected ChatEventPump m_EventPump = null;         //!< Flushes events on a background thread while initialized, if enabled.
+    protected long m_EventBudgetMicroseconds = 2000;    //!< The time update() may spend running events queued by the pump.
+
     //#endregion
 
     protected IChatAPIListener m_ChatAPIListener = new IChatAPIListener()
@@ -183,8 +207,16 @@ public class ChatController
         {
             if (ErrorCode.succeeded(result))
             {
-                m_Chat.setMessageFlushInterval(m_MessageFlushInterval);
-                m_Chat.setUserChangeEventInterval(m_UserChangeEventInterval);
+                m_ChatLock.lock();
+                try
+                {
+                    m_Chat.setMessageFlushInterval(m_MessageFlushInterval);
+                    m_Chat.setUserChangeEventInterval(m_UserChangeEventInterval);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
 
                 downloadEmoticonData();
 
@@ -192,6 +224,7 @@ public class ChatController
             }
             else
             {
+                stopEventPump();
                 setChatState(ChatState.Uninitialized);
             }
 
@@ -213,6 +246,14 @@ public class ChatController
         {
             if (ErrorCode.succeeded(result))
             {
+                stopEventPump();
+
+                // the badges depend on the emoticon mode which may change before the next session
+                if (m_BadgeCache != null)
+                {
+                    m_BadgeCache.clearRecentChannels();
+                }
+
                 ErrorCode ret = m_Core.shutdown();
                 if (ErrorCode.failed(ret))
                 {
@@ -253,21 +294,70 @@ public class ChatController
         }
     };
 
+    protected static final MessageHistory.KeySelector<ChatRawMessage> s_RawMessageUser = new MessageHistory.KeySelector<ChatRawMessage>()
+    {
+        @Override
+        public String getKey(ChatRawMessage message)
+        {
+            return message.userName;
+        }
+    };
+
+    protected static final MessageHistory.KeySelector<ChatTokenizedMessage> s_TokenizedMessageUser = new MessageHistory.KeySelector<ChatTokenizedMessage>()
+    {
+        @Override
+        public String getKey(ChatTokenizedMessage message)
+        {
+            return message.displayName;
+        }
+    };
+
     protected class ChatChannelListener implements IChatChannelListener
     {
         protected String m_ChannelName = null;
         protected boolean m_Anonymous = false;
         protected ChannelState m_ChannelState = ChannelState.Created;
 
-        protected List<ChatUserInfo> m_ChannelUsers = new ArrayList<ChatUserInfo>();
-        protected LinkedList<ChatRawMessage> m_RawMessages = new LinkedList<ChatRawMessage>();
-        protected LinkedList<ChatTokenizedMessage> m_TokenizedMessages = new LinkedList<ChatTokenizedMessage>();
+        protected ChatUserRoster m_ChannelUsers = new ChatUserRoster();
+        protected MessageHistory<ChatRawMessage> m_RawMessages = new MessageHistory<ChatRawMessage>(m_MessageHistorySize, s_RawMessageUser);
+        protected MessageHistory<ChatTokenizedMessage> m_TokenizedMessages = new MessageHistory<ChatTokenizedMessage>(m_MessageHistorySize, s_TokenizedMessageUser);
 
         protected ChatBadgeData m_BadgeData = null;
+        protected boolean m_BadgeDataDownloaded = false;    //!< Whether the SDK holds a copy of the badge data which needs to be cleared.
+        protected ChatChannelStatistics m_Statistics;
+        protected int m_ChannelMessageHistorySize = 0;      //!< The history size for this channel or 0 to use the controller's.
+        protected ChatSendQueue m_SendQueue = new ChatSendQueue(m_RateLimiter);
+
+        protected ChatSendQueue.Sender m_Sender = new ChatSendQueue.Sender()
+        {
+            @Override
+            public ErrorCode send(String message)
+            {
+                ErrorCode ret;
+                m_ChatLock.lock();
+                try
+                {
+                    ret = m_Chat.sendMessage(m_ChannelName, message);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
+
+                if (ErrorCode.failed(ret))
+                {
+                    String err = ErrorCode.getString(ret);
+                    reportError(String.format("Error sending chat message: %s", err));
+                }
+
+                return ret;
+            }
+        };
 
         public ChatChannelListener(String channelName)
         {
             m_ChannelName = channelName;
+            m_Statistics = new ChatChannelStatistics(channelName);
         }
 
         //#region Properties
@@ -297,11 +387,65 @@ public class ChatController
             return m_TokenizedMessages.iterator();
         }
 
+        public MessageHistory<ChatRawMessage> getRawMessageHistory()
+        {
+            return m_RawMessages;
+        }
+
+        public MessageHistory<ChatTokenizedMessage> getTokenizedMessageHistory()
+        {
+            return m_TokenizedMessages;
+        }
+
         public ChatBadgeData getBadgeData()
         {
             return m_BadgeData;
         }
 
+        public ChatUserRoster getUsers()
+        {
+            return m_ChannelUsers;
+        }
+
+        public ChatChannelStatistics getStatistics()
+        {
+            return m_Statistics;
+        }
+
+        public ChatSendQueue getSendQueue()
+        {
+            return m_SendQueue;
+        }
+
+        public int getMessageHistorySize()
+        {
+            return m_RawMessages.getCapacity();
+        }
+
+        /**
+         * Applies the controller's history size unless the channel has its own.
+         */
+        public void setDefaultMessageHistorySize(int value)
+        {
+            if (m_ChannelMessageHistorySize <= 0)
+            {
+                m_RawMessages.setCapacity(value);
+                m_TokenizedMessages.setCapacity(value);
+            }
+        }
+
+        /**
+         * Sets the history size for this channel only or 0 to go back to the controller's.
+         */
+        public void setChannelMessageHistorySize(int value)
+        {
+            m_ChannelMessageHistorySize = Math.max(0, value);
+
+            int size = m_ChannelMessageHistorySize > 0 ? m_ChannelMessageHistorySize : m_MessageHistorySize;
+            m_RawMessages.setCapacity(size);
+            m_TokenizedMessages.setCapacity(size);
+        }
+
         //#endregion
 
         public boolean connect(boolean anonymous)
@@ -311,13 +455,24 @@ public class ChatController
             ErrorCode ret = ErrorCode.TTV_EC_SUCCESS;
 
             // connect to the channel
-            if (anonymous)
+            // callbacks from the pump thread have to be handed over to the game thread
+            IChatChannelListener listener = m_EventPump != null ? m_EventPump.wrap(this, m_Statistics) : this;
+
+            m_ChatLock.lock();
+            try
             {
-                ret = m_Chat.connectAnonymous(m_ChannelName, this);
+                if (anonymous)
+                {
+                    ret = m_Chat.connectAnonymous(m_ChannelName, listener);
+                }
+                else
+                {
+                    ret = m_Chat.connect(m_ChannelName, m_UserName, m_AuthToken.data, listener);
+                }
             }
-            else
+            finally
             {
-                ret = m_Chat.connect(m_ChannelName, m_UserName, m_AuthToken.data, this);
+                m_ChatLock.unlock();
             }
 
             if (ErrorCode.failed(ret))
@@ -346,7 +501,17 @@ public class ChatController
             case Connecting:
             {
                 // kick off an async disconnect
-                ErrorCode ret = m_Chat.disconnect(m_ChannelName);
+                ErrorCode ret;
+                m_ChatLock.lock();
+                try
+                {
+                    ret = m_Chat.disconnect(m_ChannelName);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
+
                 if (ErrorCode.failed(ret))
                 {
                     String err = ErrorCode.getString(ret);
@@ -392,38 +557,23 @@ public class ChatController
 
         public void clearMessages(String username)
         {
-            if (m_ActiveEmoticonMode == EmoticonMode.None)
+            if (username == null || username.length() == 0)
             {
                 m_RawMessages.clear();
                 m_TokenizedMessages.clear();
             }
             else
             {
-                if (m_RawMessages.size() > 0)
-                {
-                    ListIterator<ChatRawMessage> iter = m_RawMessages.listIterator();
-                    while (iter.hasNext())
-                    {
-                        ChatRawMessage msg = iter.next();
-                        if (msg.userName.equals(username))
-                        {
-                            iter.remove();
-                        }
-                    }
-                }
+                // only the user's own messages are visited and they are tombstoned in place
+                m_RawMessages.removeKey(username);
+                m_TokenizedMessages.removeKey(username);
+            }
 
-                if (m_TokenizedMessages.size() > 0)
-                {
-                    ListIterator<ChatTokenizedMessage> iter = m_TokenizedMessages.listIterator();
-                    while (iter.hasNext())
-                    {
-                        ChatTokenizedMessage msg = iter.next();
-                        if (msg.displayName.equals(username))
-                        {
-                            iter.remove();
-                        }
-                    }
-                }
+            m_Statistics.onCleared();
+
+            if (m_BatchListener != null)
+            {
+                m_EventBatch.addMessagesCleared(m_ChannelName, username);
             }
 
             try
@@ -439,25 +589,49 @@ public class ChatController
             }
         }
 
-        public boolean sendChatMessage(String message)
+        public boolean sendChatMessage(String message, ChatSendQueue.Priority priority)
         {
             if (m_ChannelState != ChannelState.Connected)
             {
                 return false;
             }
 
-            ErrorCode ret = m_Chat.sendMessage(m_ChannelName, message);
-            if (ErrorCode.failed(ret))
+            if (!m_SendQueue.enqueue(message, priority))
             {
-                String err = ErrorCode.getString(ret);
-                reportError(String.format("Error sending chat message: %s", err));
-
+                reportError(String.format("Chat send queue full, dropping message for %s", m_ChannelName));
                 return false;
             }
 
+            // send straight away if the rate limit allows, unless the pump is flushing in which case update() sends it
+            if (m_ChatLock.tryLock())
+            {
+                try
+                {
+                    m_SendQueue.update(m_Sender);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
+            }
+
             return true;
         }
 
+        /**
+         * Sends up to the given number of messages from one lane.
+         * @return The number of messages sent
+         */
+        public int updateSendQueue(ChatSendQueue.Priority priority, int maxMessages)
+        {
+            if (m_ChannelState != ChannelState.Connected)
+            {
+                return 0;
+            }
+
+            return m_SendQueue.update(m_Sender, priority, maxMessages);
+        }
+
         //#region Badge Handling
 
         protected void downloadBadgeData()
@@ -470,7 +644,28 @@ public class ChatController
 
             if (m_BadgeData == null)
             {
-                ErrorCode ret = m_Chat.downloadBadgeData(m_ChannelName);
+                // reuse the badges if the channel was joined recently
+                if (m_BadgeCache != null)
+                {
+                    m_BadgeData = m_BadgeCache.acquire(m_ChannelName);
+                    if (m_BadgeData != null)
+                    {
+                        fireBadgeDataAvailable();
+                        return;
+                    }
+                }
+
+                ErrorCode ret;
+                m_ChatLock.lock();
+                try
+                {
+                    ret = m_Chat.downloadBadgeData(m_ChannelName);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
+
                 if (ErrorCode.failed(ret))
                 {
                     String err = ErrorCode.getString(ret);
@@ -487,24 +682,32 @@ public class ChatController
             }
 
             m_BadgeData = new ChatBadgeData();
-            ErrorCode ec = m_Chat.getBadgeData(m_ChannelName, m_BadgeData);
+            ErrorCode ec;
+            m_ChatLock.lock();
+            try
+            {
+                ec = m_Chat.getBadgeData(m_ChannelName, m_BadgeData);
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
 
             if (ErrorCode.succeeded(ec))
             {
-                try
-                {
-                    if (m_Listener != null)
-                    {
-                        m_Listener.onBadgeDataAvailable(m_ChannelName);
-                    }
-                }
-                catch (Exception x)
+                m_BadgeDataDownloaded = true;
+
+                if (m_BadgeCache != null)
                 {
-                    reportError(x.toString());
+                    m_BadgeData = m_BadgeCache.put(m_ChannelName, m_BadgeData);
                 }
+
+                fireBadgeDataAvailable();
             }
             else
             {
+                // the SDK has nothing to clear and a later download can set the badges up again
+                m_BadgeData = null;
                 reportError("Error preparing badge data: " + ErrorCode.getString(ec));
             }
         }
@@ -516,11 +719,30 @@ public class ChatController
                 return;
             }
 
-            ErrorCode ec = m_Chat.clearBadgeData(m_ChannelName);
+            // badges taken from the cache were never given to the SDK
+            ErrorCode ec = ErrorCode.TTV_EC_SUCCESS;
+            if (m_BadgeDataDownloaded)
+            {
+                m_ChatLock.lock();
+                try
+                {
+                    ec = m_Chat.clearBadgeData(m_ChannelName);
+                }
+                finally
+                {
+                    m_ChatLock.unlock();
+                }
+            }
 
             if (ErrorCode.succeeded(ec))
             {
+                if (m_BadgeCache != null)
+                {
+                    m_BadgeCache.release(m_ChannelName);
+                }
+
                 m_BadgeData = null;
+                m_BadgeDataDownloaded = false;
 
                 try
                 {
@@ -544,8 +766,28 @@ public class ChatController
 
         //#region Event Helpers
 
+        protected void fireBadgeDataAvailable()
+        {
+            try
+            {
+                if (m_Listener != null)
+                {
+                    m_Listener.onBadgeDataAvailable(m_ChannelName);
+                }
+            }
+            catch (Exception x)
+            {
+                reportError(x.toString());
+            }
+        }
+
         protected void fireConnected(String channelName)
         {
+            if (m_BatchListener != null)
+            {
+                m_EventBatch.addConnected(channelName);
+            }
+
             try
             {
                 if (m_Listener != null)
@@ -561,6 +803,11 @@ public class ChatController
 
         protected void fireDisconnected(String channelName)
         {
+            if (m_BatchListener != null)
+            {
+                m_EventBatch.addDisconnected(channelName);
+            }
+
             try
             {
                 if (m_Listener != null)
@@ -578,6 +825,8 @@ public class ChatController
 
         private void disconnectionComplete()
         {
+            m_SendQueue.clear();
+
             if (m_ChannelState != ChannelState.Disconnected)
             {
                 setChannelState(ChannelState.Disconnected);
@@ -630,28 +879,25 @@ public class ChatController
         {
             for (int i=0; i<leaveList.length; ++i)
             {
-                int index = m_ChannelUsers.indexOf(leaveList[i]);
-                if (index >= 0)
-                {
-                    m_ChannelUsers.remove(index);
-                }
+                m_ChannelUsers.remove(leaveList[i]);
             }
 
+            // this replaces the existing user with the same name
             for (int i=0; i<userInfoList.length; ++i)
             {
-                // this will find the existing user with the same name
-                int index = m_ChannelUsers.indexOf(userInfoList[i]);
-                if (index >= 0)
-                {
-                    m_ChannelUsers.remove(index);
-                }
-
-                m_ChannelUsers.add(userInfoList[i]);
+                m_ChannelUsers.put(userInfoList[i]);
             }
 
             for (int i=0; i<joinList.length; ++i)
             {
-                m_ChannelUsers.add(joinList[i]);
+                m_ChannelUsers.put(joinList[i]);
+            }
+
+            m_Statistics.onUsersChanged(joinList.length, leaveList.length, userInfoList.length);
+
+            if (m_BatchListener != null)
+            {
+                m_EventBatch.addUserChanges(m_ChannelName, joinList, leaveList, userInfoList);
             }
 
             try
@@ -670,9 +916,13 @@ public class ChatController
         @Override
         public void chatChannelRawMessageCallback(String channelName, ChatRawMessage[] messageList)
         {
-            for (int i = 0; i < messageList.length; ++i)
+            // the oldest messages are overwritten once the history is full
+            m_RawMessages.addAll(messageList);
+            m_Statistics.onRawMessages(messageList.length);
+
+            if (m_BatchListener != null)
             {
-                m_RawMessages.addLast(messageList[i]);
+                m_EventBatch.addRawMessages(m_ChannelName, messageList);
             }
 
             try
@@ -686,20 +936,18 @@ public class ChatController
             {
                 reportError(x.toString());
             }
-
-            // cap the number of messages cached
-            while (m_RawMessages.size() > m_MessageHistorySize)
-            {
-                m_RawMessages.removeFirst();
-            }
         }
 
         @Override
         public void chatChannelTokenizedMessageCallback(String channelName, ChatTokenizedMessage[] messageList)
         {
-            for (int i = 0; i < messageList.length; ++i)
+            // the oldest messages are overwritten once the history is full
+            m_TokenizedMessages.addAll(messageList);
+            m_Statistics.onTokenizedMessages(messageList.length);
+
+            if (m_BatchListener != null)
             {
-                m_TokenizedMessages.addLast(messageList[i]);
+                m_EventBatch.addTokenizedMessages(m_ChannelName, messageList);
             }
 
             try
@@ -713,12 +961,6 @@ public class ChatController
             {
                 reportError(x.toString());
             }
-
-            // cap the number of messages cached
-            while (m_TokenizedMessages.size() > m_MessageHistorySize)
-            {
-                m_TokenizedMessages.removeFirst();
-            }
         }
 
         @Override
@@ -750,6 +992,26 @@ public class ChatController
         m_Listener = listener;
     }
 
+    /**
+     * The listener which receives the events from each update coalesced into one batch.  The individual Listener events are still fired.
+     */
+    public BatchListener getBatchListener()
+    {
+        return m_BatchListener;
+    }
+    public void setBatchListener(BatchListener listener)
+    {
+        m_BatchListener = listener;
+    }
+
+    /**
+     * The batch the events from the current update are collected into.
+     */
+    public ChatEventBatch getEventBatch()
+    {
+        return m_EventBatch;
+    }
+
     /**
      * Returns the name of all active channels.
      * @return
@@ -876,13 +1138,55 @@ public class ChatController
         return m_EmoticonData;
     }
 
+    /**
+     * The cache which keeps the emoticon texture sheets in memory mapped files.  The pixels can be read from the cache as direct buffers
+     * ready to upload.  Sheets cached by the previous session are available from initialize() onwards.  Only used in the TextureAtlas mode.
+     */
+    public EmoticonTextureCache getEmoticonTextureCache()
+    {
+        return m_EmoticonCache;
+    }
+    public void setEmoticonTextureCache(EmoticonTextureCache value)
+    {
+        m_EmoticonCache = value;
+    }
+
+    /**
+     * Whether or not to release the sheets' heap buffers once the emoticon texture cache holds them, which saves tens of megabytes of
+     * heap.  This changes the emoticon data: every ChatTextureSheet.buffer in getEmoticonData() is null by the time
+     * onEmoticonDataAvailable fires.  Only enable it when everything reading the emoticon data takes the pixels from
+     * getEmoticonTextureCache() instead.  The buffers are kept if caching them failed.
+     */
+    public boolean getReleaseEmoticonHeapBuffers()
+    {
+        return m_ReleaseEmoticonHeapBuffers;
+    }
+    public void setReleaseEmoticonHeapBuffers(boolean value)
+    {
+        m_ReleaseEmoticonHeapBuffers = value;
+    }
+
+    /**
+     * The cache which shares badge data between channels and keeps the badges of channels left recently so rejoining them doesn't need
+     * a download.  When null, which is the default, the badges are downloaded for every channel.  Should only be changed while no
+     * channels are connected.
+     */
+    public ChatBadgeCache getBadgeCache()
+    {
+        return m_BadgeCache;
+    }
+    public void setBadgeCache(ChatBadgeCache value)
+    {
+        m_BadgeCache = value;
+    }
+
     /**
      * The maximum number of messages to be kept in the chat history.
      * @return
      */
     public int getMessageHistorySize()
     {
-        return getMessageHistorySize();
+        return m_MessageHistorySize;
     }
     /**
      * The maximum number of messages to be kept in the chat history.
@@ -891,6 +1195,11 @@ public class ChatController
     public void setMessageHistorySize(int value)
     {
         m_MessageHistorySize = value;
+
+        for (ChatChannelListener channel : m_Channels.values())
+        {
+            channel.setDefaultMessageHistorySize(value);
+        }
     }
 
     /**
@@ -911,29 +1220,93 @@ public class ChatController
 
         if (m_ChatState == ChatState.Initialized)
         {
-            m_Chat.setMessageFlushInterval(m_MessageFlushInterval);
+            m_ChatLock.lock();
+            try
+            {
+                m_Chat.setMessageFlushInterval(m_MessageFlushInterval);
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
+        }
+
+        if (m_EventPump != null)
+        {
+            m_EventPump.setIntervalMilliseconds(m_MessageFlushInterval);
         }
     }
 
     /**
-     * The number of milliseconds between events for user joins, leaves and changes in channels.
-     * @return
+     * Whether or not to flush chat events on a background thread.  The events are still fired from update() but the native work of
+     * receiving and parsing messages is moved off the game thread.  The SDK isn't thread safe so the controller's own calls into it
+     * wait for a flush in progress to finish.  Queued chat messages are held until the next update() rather than wait, but the direct
+     * calls such as connect(), disconnect() and the emoticon and badge downloads may block for the length of a flush.  This must be set
+     * before calling initialize().
      */
-    public int getUserChangeEventInterval()
+    public boolean getUseEventPump()
     {
-        return m_UserChangeEventInterval;
+        return m_UseEventPump;
     }
-    /**
-     * The number of milliseconds between events indicating changes in users in channels.
-     * @return
-     */
-    public void setUserChangeEventInterval(int milliseconds)
+    public void setUseEventPump(boolean value)
     {
-        m_UserChangeEventInterval = Math.min(MAX_INTERVAL_MS, Math.max(milliseconds, MIN_INTERVAL_MS));
-
-        if (m_ChatState == ChatState.Initialized)
+        if (m_ChatState != ChatState.Uninitialized)
         {
-            m_Chat.setUserChangeEventInterval(m_UserChangeEventInterval);
+            reportError("The event pump can only be changed before initializing");
+            return;
+        }
+
+        m_UseEventPump = value;
+    }
+
+    /**
+     * The maximum number of microseconds update() spends firing events received by the event pump.  Any events left over are fired 
+     * during the next update().
+     */
+    public long getEventBudgetMicroseconds()
+    {
+        return m_EventBudgetMicroseconds;
+    }
+    public void setEventBudgetMicroseconds(long value)
+    {
+        m_EventBudgetMicroseconds = Math.max(0, value);
+    }
+
+    /**
+     * The background event pump or null if not in use.
+     */
+    public ChatEventPump getEventPump()
+    {
+        return m_EventPump;
+    }
+
+    /**
+     * The number of milliseconds between events for user joins, leaves and changes in channels.
+     * @return
+     */
+    public int getUserChangeEventInterval()
+    {
+        return m_UserChangeEventInterval;
+    }
+    /**
+     * The number of milliseconds between events indicating changes in users in channels.
+     * @return
+     */
+    public void setUserChangeEventInterval(int milliseconds)
+    {
+        m_UserChangeEventInterval = Math.min(MAX_INTERVAL_MS, Math.max(milliseconds, MIN_INTERVAL_MS));
+
+        if (m_ChatState == ChatState.Initialized)
+        {
+            m_ChatLock.lock();
+            try
+            {
+                m_Chat.setUserChangeEventInterval(m_UserChangeEventInterval);
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
         }
     }
 
@@ -943,12 +1316,12 @@ public class ChatController
      */
     public boolean getIsConnected(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             return false;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getChannelState() == ChannelState.Connected;
     }
 
@@ -958,12 +1331,12 @@ public class ChatController
      */
     public ChannelState getChannelState(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             return ChannelState.Disconnected;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getChannelState();
     }
 
@@ -973,13 +1346,13 @@ public class ChatController
      */
     public boolean getIsAnonymous(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Unknown channel: " + channelName);
             return false;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getIsAnonymous();
     }
 
@@ -988,13 +1361,13 @@ public class ChatController
      */
     public Iterator<ChatRawMessage> getRawMessages(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Unknown channel: " + channelName);
             return null;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getRawMessages();
     }
 
@@ -1003,43 +1376,317 @@ public class ChatController
      */
     public Iterator<ChatTokenizedMessage> getTokenizedMessages(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Unknown channel: " + channelName);
             return null;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getTokenizedMessages();
     }
 
+    /**
+     * The raw chat message history.  Unlike getRawMessages() this includes messages which have been cleared so a UI can mark them as 
+     * removed by index instead of rebuilding.
+     */
+    public MessageHistory<ChatRawMessage> getRawMessageHistory(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getRawMessageHistory();
+    }
+
+    /**
+     * The tokenized chat message history.  Unlike getTokenizedMessages() this includes messages which have been cleared so a UI can mark 
+     * them as removed by index instead of rebuilding.
+     */
+    public MessageHistory<ChatTokenizedMessage> getTokenizedMessageHistory(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getTokenizedMessageHistory();
+    }
+
+    /**
+     * The number of users in the channel.
+     */
+    public int getUserCount(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return 0;
+        }
+
+        return channel.getUsers().size();
+    }
+
+    /**
+     * The number of users in the channel with the given mode, such as the number of moderators.
+     */
+    public int getUserCount(String channelName, ChatUserMode mode)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return 0;
+        }
+
+        return channel.getUsers().getNumUsers(mode);
+    }
+
+    /**
+     * The number of users in the channel with the given subscription, such as the number of subscribers.
+     */
+    public int getUserCount(String channelName, ChatUserSubscription subscription)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return 0;
+        }
+
+        return channel.getUsers().getNumUsers(subscription);
+    }
+
+    /**
+     * Retrieves the user in the channel with the given display name.
+     * @return The user or null if not in the channel
+     */
+    public ChatUserInfo getUser(String channelName, String displayName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getUsers().get(displayName);
+    }
+
+    /**
+     * An iterator for the users in the channel in the order they joined.
+     */
+    public Iterator<ChatUserInfo> getUsers(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getUsers().getUsers().iterator();
+    }
+
+    /**
+     * An iterator for the users in the channel with the given mode, such as the moderators.
+     */
+    public Iterator<ChatUserInfo> getUsers(String channelName, ChatUserMode mode)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getUsers().getUsers(mode).iterator();
+    }
+
+    /**
+     * An iterator for the users in the channel with the given subscription, such as the subscribers.
+     */
+    public Iterator<ChatUserInfo> getUsers(String channelName, ChatUserSubscription subscription)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getUsers().getUsers(subscription).iterator();
+    }
+
     /**
      * Retrieves the badge data that can be used to render icons.
      */
     public ChatBadgeData getBadgeData(String channelName)
     {
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Unknown channel: " + channelName);
             return null;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.getBadgeData();
     }
 
+    /**
+     * The maximum number of messages kept in the history of the given channel.
+     */
+    public int getMessageHistorySize(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return 0;
+        }
+
+        return channel.getMessageHistorySize();
+    }
+    /**
+     * Sets the maximum number of messages kept in the history of the given channel, such as a smaller budget for busy channels which
+     * are only shown in summary.  Pass 0 to use the controller's history size again.
+     */
+    public void setMessageHistorySize(String channelName, int value)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return;
+        }
+
+        channel.setChannelMessageHistorySize(value);
+    }
+
+    /**
+     * The counters and message rates of the given channel.  These can be read from any thread.
+     */
+    public ChatChannelStatistics getChannelStatistics(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getStatistics();
+    }
+
+    /**
+     * The statistics of all the channels in descending order of message rate so the busiest channels come first.
+     */
+    public ChatChannelStatistics[] getChannelStatistics()
+    {
+        ArrayList<ChatChannelStatistics> result = new ArrayList<ChatChannelStatistics>();
+        for (ChatChannelListener channel : m_Channels.values())
+        {
+            result.add(channel.getStatistics());
+        }
+
+        Collections.sort(result, new Comparator<ChatChannelStatistics>()
+        {
+            @Override
+            public int compare(ChatChannelStatistics a, ChatChannelStatistics b)
+            {
+                return Float.compare(b.getMessagesPerSecond(), a.getMessagesPerSecond());
+            }
+        });
+
+        return result.toArray(new ChatChannelStatistics[result.size()]);
+    }
+
+    /**
+     * The limit on messages sent to all channels together.  Use it to set the rate limit, such as the higher limit for moderators.
+     */
+    public ChatRateLimiter getRateLimiter()
+    {
+        return m_RateLimiter;
+    }
+
+    /**
+     * The outgoing message queue of the given channel.  Use it to read the queue depth and send latency.
+     */
+    public ChatSendQueue getSendQueue(String channelName)
+    {
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
+        {
+            reportError("Unknown channel: " + channelName);
+            return null;
+        }
+
+        return channel.getSendQueue();
+    }
+
+    /**
+     * The total messages received per second across all channels.
+     */
+    public float getMessagesPerSecond()
+    {
+        float total = 0;
+        for (ChatChannelListener channel : m_Channels.values())
+        {
+            total += channel.getStatistics().getMessagesPerSecond();
+        }
+
+        return total;
+    }
+
+    /**
+     * The number of events received by the event pump which are waiting to be fired.
+     */
+    public int getNumQueuedEvents()
+    {
+        ChatEventPump pump = m_EventPump;
+        return pump == null ? 0 : pump.getNumQueuedEvents();
+    }
+
     //#endregion
 
+    protected ChatChannelListener getChannel(String channelName)
+    {
+        // the concurrent map doesn't allow null keys
+        if (channelName == null)
+        {
+            return null;
+        }
+
+        return m_Channels.get(channelName);
+    }
+
     public ChatController()
+    {
+        this(null, new StandardChatAPI());
+    }
+
+    /**
+     * Creates a controller which uses the given API implementations, such as the simulated APIs in the bench tree for running without
+     * the SDK library.
+     * @param coreAPI The core API to use if the Core hasn't been created yet or null to use the SDK's
+     * @param chatAPI The chat API to use
+     */
+    public ChatController(CoreAPI coreAPI, ChatAPI chatAPI)
     {
         m_Core = Core.getInstance();
 
         if (m_Core == null)
         {
-            m_Core = new Core( new StandardCoreAPI() );
+            m_Core = new Core( coreAPI != null ? coreAPI : new StandardCoreAPI() );
         }
 
-        m_Chat = new Chat( new StandardChatAPI() );
+        m_Chat = new Chat( chatAPI );
     }
 
     public boolean initialize()
@@ -1065,6 +1712,12 @@ public class ChatController
         // initialize chat
         m_ActiveEmoticonMode = m_EmoticonMode;
 
+        // the sheets from the last session can be used until the download finishes
+        if (m_EmoticonCache != null && m_ActiveEmoticonMode == EmoticonMode.TextureAtlas)
+        {
+            m_EmoticonCache.load();
+        }
+
         HashSet<ChatTokenizationOption> tokenizationOptions = new HashSet<ChatTokenizationOption>();
         switch (m_EmoticonMode)
         {
@@ -1079,10 +1732,30 @@ public class ChatController
             break;
         }
 
+        // the pump has to be running before init so it can deliver the init callback
+        IChatAPIListener listener = m_ChatAPIListener;
+        if (m_UseEventPump)
+        {
+            m_EventPump = new ChatEventPump(m_Chat, m_ChatLock);
+            m_EventPump.setIntervalMilliseconds(m_MessageFlushInterval);
+            listener = m_EventPump.wrap(m_ChatAPIListener);
+        }
+
         // kick off the async init
-        ret = m_Chat.initialize(tokenizationOptions, m_ChatAPIListener);
+        m_ChatLock.lock();
+        try
+        {
+            ret = m_Chat.initialize(tokenizationOptions, listener);
+        }
+        finally
+        {
+            m_ChatLock.unlock();
+        }
+
         if (ErrorCode.failed(ret))
         {
+            m_EventPump = null;
+
             m_Core.shutdown();
             setChatState(ChatState.Uninitialized);
 
@@ -1093,6 +1766,11 @@ public class ChatController
         }
         else
         {
+            if (m_EventPump != null)
+            {
+                m_EventPump.start();
+            }
+
             setChatState(ChatState.Initialized);
             return true;
         }
@@ -1125,20 +1803,18 @@ public class ChatController
             return false;
         }
 
-        if (m_Channels.containsKey(channelName))
+        if (channelName == null || channelName.equals(""))
         {
-            reportError("Already in channel: " + channelName);
             return false;
         }
 
-        if (channelName == null || channelName.equals(""))
+        ChatChannelListener channel = new ChatChannelListener(channelName);
+        if (m_Channels.putIfAbsent(channelName, channel) != null)
         {
+            reportError("Already in channel: " + channelName);
             return false;
         }
 
-        ChatChannelListener channel = new ChatChannelListener(channelName);
-        m_Channels.put(channelName, channel);
-
         boolean result = channel.connect(anonymous);
 
         if (!result)
@@ -1160,13 +1836,13 @@ public class ChatController
             return false;
         }
 
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Not in channel: " + channelName);
             return false;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         return channel.disconnect();
     }
 
@@ -1179,7 +1855,17 @@ public class ChatController
         }
 
         // shutdown asynchronously
-        ErrorCode ret = m_Chat.shutdown();
+        ErrorCode ret;
+        m_ChatLock.lock();
+        try
+        {
+            ret = m_Chat.shutdown();
+        }
+        finally
+        {
+            m_ChatLock.unlock();
+        }
+
         if (ErrorCode.failed(ret))
         {
             String err = ErrorCode.getString(ret);
@@ -1232,35 +1918,155 @@ public class ChatController
             return;
         }
 
-        ErrorCode ret = m_Chat.flushEvents();
-        if (ErrorCode.failed(ret))
+        // the pump may be stopped by one of the events it runs
+        ChatEventPump pump = m_EventPump;
+
+        ErrorCode ret = null;
+        if (pump != null)
+        {
+            // run the events received on the pump thread
+            pump.drain(m_EventBudgetMicroseconds * 1000);
+            ret = pump.takeLastError();
+        }
+        else
+        {
+            m_ChatLock.lock();
+            try
+            {
+                ret = m_Chat.flushEvents();
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
+        }
+
+        if (ret != null && ErrorCode.failed(ret))
         {
             String err = ErrorCode.getString(ret);
             reportError(String.format("Error flushing chat events: %s", err));
         }
+
+        fireEventBatch();
+
+        // the queued messages wait for the next update rather than stall the frame while the pump is flushing
+        if (m_ChatLock.tryLock())
+        {
+            try
+            {
+                updateSendQueues();
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
+        }
+
+        long now = System.nanoTime();
+        for (ChatChannelListener channel : m_Channels.values())
+        {
+            channel.getStatistics().update(now);
+        }
+    }
+
+    /**
+     * Sends the queued messages of every channel which fit within the rate limit.  The rate limit is shared so every channel's moderation
+     * commands go before any regular chat and the channels take turns.
+     */
+    protected void updateSendQueues()
+    {
+        for (ChatSendQueue.Priority priority : ChatSendQueue.Priority.values())
+        {
+            boolean sent = true;
+            while (sent)
+            {
+                sent = false;
+                for (ChatChannelListener channel : m_Channels.values())
+                {
+                    if (channel.updateSendQueue(priority, 1) > 0)
+                    {
+                        sent = true;
+                    }
+                }
+            }
+        }
+    }
+
+    protected void stopEventPump()
+    {
+        if (m_EventPump != null)
+        {
+            m_EventPump.stop();
+            m_EventPump = null;
+        }
+    }
+
+    /**
+     * Hands the events collected during the update to the batch listener and empties the batch.
+     */
+    protected void fireEventBatch()
+    {
+        if (m_EventBatch.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            if (m_BatchListener != null)
+            {
+                m_BatchListener.onChatEventsReceived(m_EventBatch);
+            }
+        }
+        catch (Exception x)
+        {
+            reportError(x.toString());
+        }
+        finally
+        {
+            m_EventBatch.clear();
+        }
     }
 
     /**
-     * Sends a chat message to the channel.
+     * Sends a chat message to the channel.  Messages are queued and sent within the rate limit shared by all channels.  Moderation
+     * commands are sent ahead of regular messages.
      * @param channelName The channel to send the message on.
      * @param message The message to send.
      * @return Whether or not the attempt was valid.
      */
     public boolean sendChatMessage(String channelName, String message)
+    {
+        if (message == null)
+        {
+            return false;
+        }
+
+        return sendChatMessage(channelName, message, ChatSendQueue.classify(message));
+    }
+
+    /**
+     * Sends a chat message to the channel in the given priority lane.
+     * @param channelName The channel to send the message on.
+     * @param message The message to send.
+     * @param priority The lane to queue the message in.
+     * @return Whether or not the attempt was valid.
+     */
+    public boolean sendChatMessage(String channelName, String message, ChatSendQueue.Priority priority)
     {
         if (m_ChatState != ChatState.Initialized)
         {
             return false;
         }
 
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Not in channel: " + channelName);
             return false;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
-        return channel.sendChatMessage(message);
+        return channel.sendChatMessage(message, priority);
     }
 
     /**
@@ -1281,13 +2087,13 @@ public class ChatController
             return;
         }
 
-        if (!m_Channels.containsKey(channelName))
+        ChatChannelListener channel = getChannel(channelName);
+        if (channel == null)
         {
             reportError("Not in channel: " + channelName);
             return;
         }
 
-        ChatChannelListener channel = m_Channels.get(channelName);
         channel.clearMessages(username);
     }
 
@@ -1325,7 +2131,17 @@ public class ChatController
 
         if (m_EmoticonData == null)
         {
-            ErrorCode ret = m_Chat.downloadEmoticonData();
+            ErrorCode ret;
+            m_ChatLock.lock();
+            try
+            {
+                ret = m_Chat.downloadEmoticonData();
+            }
+            finally
+            {
+                m_ChatLock.unlock();
+            }
+
             if (ErrorCode.failed(ret))
             {
                 String err = ErrorCode.getString(ret);
@@ -1342,10 +2158,21 @@ public class ChatController
         }
 
         m_EmoticonData = new ChatEmoticonData();
-        ErrorCode ec = m_Chat.getEmoticonData(m_EmoticonData);
+        ErrorCode ec;
+        m_ChatLock.lock();
+        try
+        {
+            ec = m_Chat.getEmoticonData(m_EmoticonData);
+        }
+        finally
+        {
+            m_ChatLock.unlock();
+        }
 
         if (ErrorCode.succeeded(ec))
         {
+            cacheEmoticonTextures();
+
             try
             {
                 if (m_Listener != null)
@@ -1364,6 +2191,33 @@ public class ChatController
         }
     }
 
+    /**
+     * Moves the texture sheets into the cache and drops the heap copies.
+     */
+    protected void cacheEmoticonTextures()
+    {
+        if (m_EmoticonCache == null || m_ActiveEmoticonMode != EmoticonMode.TextureAtlas || m_EmoticonData.textures == null)
+        {
+            return;
+        }
+
+        if (!m_EmoticonCache.store(m_EmoticonData))
+        {
+            reportWarning(String.format("Unable to cache the emoticon textures in %s", m_EmoticonCache.getDirectory().getPath()));
+            return;
+        }
+
+        if (!m_ReleaseEmoticonHeapBuffers)
+        {
+            return;
+        }
+
+        for (int i = 0; i < m_EmoticonData.textures.length; ++i)
+        {
+            m_EmoticonData.textures[i].buffer = null;
+        }
+    }
+
     protected void cleanupEmoticonData()
     {
         if (m_EmoticonData == null)
@@ -1371,7 +2225,16 @@ public class ChatController
             return;
         }
 
-        ErrorCode ec = m_Chat.clearEmoticonData();
+        ErrorCode ec;
+        m_ChatLock.lock();
+        try
+        {
+            ec = m_Chat.clearEmoticonData();
+        }
+        finally
+        {
+            m_ChatLock.unlock();
+        }
 
         if (ErrorCode.succeeded(ec))
         {
@@ -0,0 +1,577 @@
+package tv.twitch.chat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import tv.twitch.ErrorCode;
+
+
+/**
+ * Flushes chat events on a background thread so the native parsing of a burst of messages doesn't land in the game's frame.  The
+ * callbacks fired by the SDK during the flush are not run on the pump thread.  Listeners wrapped by the pump queue them instead and the
+ * game thread runs them with drain(), which stops once its time budget is used up and leaves the rest for the next frame.
+ *
+ * The pump thread only calls Chat.flushEvents() and holds the lock given to the constructor while it does.  The SDK isn't thread safe
+ * so every other call into the Chat instance must hold the same lock, which the ChatController does.  Calls which can be put off, such
+ * as sending queued messages, should use tryLock() so the game thread doesn't wait out a flush.  Callbacks are queued as pooled
+ * events which are reused once drained so a steady stream of messages doesn't allocate.
+ */
+public class ChatEventPump
+{
+    protected final Chat m_Chat;
+    protected final Lock m_Lock;
+    protected final ArrayDeque<Event> m_Events = new ArrayDeque<Event>();       //!< Waiting to be run.  Also guards m_FreeEvents.
+    protected final ArrayDeque<Event> m_FreeEvents = new ArrayDeque<Event>();   //!< Run events kept for reuse.
+
+    protected volatile Thread m_Thread = null;
+    protected volatile boolean m_Running = false;
+    protected volatile long m_IntervalMilliseconds = 500;
+    protected volatile ErrorCode m_LastError = null;     //!< The last error from flushing, cleared once taken.
+
+    protected long m_NumEventsRun = 0;
+    protected long m_NumDeferredDrains = 0;
+    protected volatile long m_NumAllocations = 0;
+
+    public ChatEventPump(Chat chat)
+    {
+        this(chat, new ReentrantLock());
+    }
+
+    /**
+     * @param lock The lock the owner holds around its own calls into the Chat instance
+     */
+    public ChatEventPump(Chat chat, Lock lock)
+    {
+        m_Chat = chat;
+        m_Lock = lock;
+    }
+
+    //#region Properties
+
+    public boolean getIsRunning()
+    {
+        return m_Running;
+    }
+
+    /**
+     * The time between flushes.
+     */
+    public long getIntervalMilliseconds()
+    {
+        return m_IntervalMilliseconds;
+    }
+    public void setIntervalMilliseconds(long value)
+    {
+        m_IntervalMilliseconds = Math.max(1, value);
+    }
+
+    /**
+     * The number of events waiting to be run on the game thread.
+     */
+    public int getNumQueuedEvents()
+    {
+        synchronized (m_Events)
+        {
+            return m_Events.size();
+        }
+    }
+
+    /**
+     * The number of events run by drain().
+     */
+    public long getNumEventsRun()
+    {
+        return m_NumEventsRun;
+    }
+
+    /**
+     * The number of events allocated.  Events are reused once they have been run so this stops increasing once the pump has seen a
+     * typical burst.
+     */
+    public long getNumAllocations()
+    {
+        return m_NumAllocations;
+    }
+
+    /**
+     * The lock held around every call into the Chat instance.  The pump holds it while flushing.
+     */
+    public Lock getLock()
+    {
+        return m_Lock;
+    }
+
+    /**
+     * The number of times drain() ran out of time and left events for the next call.
+     */
+    public long getNumDeferredDrains()
+    {
+        return m_NumDeferredDrains;
+    }
+
+    //#endregion
+
+    public void start()
+    {
+        if (m_Thread != null)
+        {
+            return;
+        }
+
+        m_Running = true;
+
+        m_Thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pump();
+            }
+        }, "Twitch Chat Pump");
+
+        m_Thread.setDaemon(true);
+        m_Thread.start();
+    }
+
+    /**
+     * Stops the pump thread and waits for it to exit.  Events already queued are kept and can still be drained.
+     */
+    public void stop()
+    {
+        Thread thread = m_Thread;
+        if (thread == null)
+        {
+            return;
+        }
+
+        m_Running = false;
+        LockSupport.unpark(thread);
+
+        if (thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        m_Thread = null;
+    }
+
+    /**
+     * Runs the queued events in the order they were received until the queue is empty or the budget is used.  At least one event is
+     * run each call so the queue always makes progress.  Must be called from the game thread.
+     * @param budgetNanos The time which may be spent running events
+     * @return The number of events run
+     */
+    public int drain(long budgetNanos)
+    {
+        long start = System.nanoTime();
+        int count = 0;
+
+        while (true)
+        {
+            Event event;
+            synchronized (m_Events)
+            {
+                event = m_Events.poll();
+            }
+
+            if (event == null)
+            {
+                break;
+            }
+
+            try
+            {
+                event.run();
+            }
+            finally
+            {
+                event.clear();
+                synchronized (m_Events)
+                {
+                    m_FreeEvents.add(event);
+                }
+            }
+            count++;
+
+            if (System.nanoTime() - start >= budgetNanos)
+            {
+                if (getNumQueuedEvents() > 0)
+                {
+                    m_NumDeferredDrains++;
+                }
+                break;
+            }
+        }
+
+        m_NumEventsRun += count;
+        return count;
+    }
+
+    /**
+     * Retrieves and clears the last error returned by flushing.
+     * @return The error or null if there wasn't one
+     */
+    public ErrorCode takeLastError()
+    {
+        ErrorCode err = m_LastError;
+        m_LastError = null;
+        return err;
+    }
+
+    /**
+     * Wraps a channel listener so that the callbacks fired on the pump thread are queued for drain().  Callbacks fired on any other
+     * thread are passed straight through.
+     */
+    public IChatChannelListener wrap(IChatChannelListener target)
+    {
+        return wrap(target, null);
+    }
+
+    /**
+     * Wraps a channel listener so that the callbacks fired on the pump thread are queued for drain() and counted in the channel's statistics.
+     * @param target The listener
+     * @param statistics The statistics of the channel or null
+     */
+    public IChatChannelListener wrap(final IChatChannelListener target, final ChatChannelStatistics statistics)
+    {
+        return new IChatChannelListener()
+        {
+            @Override
+            public void chatStatusCallback(String channelName, ErrorCode result)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatStatusCallback(channelName, result);
+                    return;
+                }
+
+                Event event = obtain(Event.CHAT_STATUS, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_Result = result;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatChannelMembershipCallback(String channelName, ChatEvent evt, ChatChannelInfo channelInfo)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatChannelMembershipCallback(channelName, evt, channelInfo);
+                    return;
+                }
+
+                Event event = obtain(Event.CHANNEL_MEMBERSHIP, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_ChatEvent = evt;
+                event.m_ChannelInfo = channelInfo;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatChannelUserChangeCallback(String channelName, ChatUserInfo[] joinList, ChatUserInfo[] leaveList, ChatUserInfo[] userInfoList)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatChannelUserChangeCallback(channelName, joinList, leaveList, userInfoList);
+                    return;
+                }
+
+                Event event = obtain(Event.CHANNEL_USER_CHANGE, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_JoinList = joinList;
+                event.m_LeaveList = leaveList;
+                event.m_UserInfoList = userInfoList;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatChannelRawMessageCallback(String channelName, ChatRawMessage[] messageList)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatChannelRawMessageCallback(channelName, messageList);
+                    return;
+                }
+
+                Event event = obtain(Event.CHANNEL_RAW_MESSAGE, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_RawMessages = messageList;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatChannelTokenizedMessageCallback(String channelName, ChatTokenizedMessage[] messageList)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatChannelTokenizedMessageCallback(channelName, messageList);
+                    return;
+                }
+
+                Event event = obtain(Event.CHANNEL_TOKENIZED_MESSAGE, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_TokenizedMessages = messageList;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatClearCallback(String channelName, String username)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatClearCallback(channelName, username);
+                    return;
+                }
+
+                Event event = obtain(Event.CHAT_CLEAR, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_UserName = username;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatBadgeDataDownloadCallback(String channelName, ErrorCode result)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatBadgeDataDownloadCallback(channelName, result);
+                    return;
+                }
+
+                Event event = obtain(Event.BADGE_DATA_DOWNLOAD, statistics);
+                event.m_ChannelListener = target;
+                event.m_ChannelName = channelName;
+                event.m_Result = result;
+                enqueue(event);
+            }
+        };
+    }
+
+    /**
+     * Wraps the chat listener so that the callbacks fired on the pump thread are queued for drain().
+     */
+    public IChatAPIListener wrap(final IChatAPIListener target)
+    {
+        return new IChatAPIListener()
+        {
+            @Override
+            public void chatInitializationCallback(ErrorCode result)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatInitializationCallback(result);
+                    return;
+                }
+
+                Event event = obtain(Event.INITIALIZATION, null);
+                event.m_APIListener = target;
+                event.m_Result = result;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatShutdownCallback(ErrorCode result)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatShutdownCallback(result);
+                    return;
+                }
+
+                Event event = obtain(Event.SHUTDOWN, null);
+                event.m_APIListener = target;
+                event.m_Result = result;
+                enqueue(event);
+            }
+
+            @Override
+            public void chatEmoticonDataDownloadCallback(ErrorCode result)
+            {
+                if (!getIsPumpThread())
+                {
+                    target.chatEmoticonDataDownloadCallback(result);
+                    return;
+                }
+
+                Event event = obtain(Event.EMOTICON_DATA_DOWNLOAD, null);
+                event.m_APIListener = target;
+                event.m_Result = result;
+                enqueue(event);
+            }
+        };
+    }
+
+    protected boolean getIsPumpThread()
+    {
+        return Thread.currentThread() == m_Thread;
+    }
+
+    /**
+     * Takes an event from the free list or allocates one if the list is empty.  Only called on the pump thread.
+     */
+    protected Event obtain(int type, ChatChannelStatistics statistics)
+    {
+        Event event;
+        synchronized (m_Events)
+        {
+            event = m_FreeEvents.poll();
+        }
+
+        if (event == null)
+        {
+            event = new Event();
+            m_NumAllocations++;
+        }
+
+        event.m_Type = type;
+        event.m_Statistics = statistics;
+
+        if (statistics != null)
+        {
+            statistics.onEventQueued();
+        }
+
+        return event;
+    }
+
+    protected void enqueue(Event event)
+    {
+        synchronized (m_Events)
+        {
+            m_Events.add(event);
+        }
+    }
+
+    protected void pump()
+    {
+        while (m_Running)
+        {
+            ErrorCode ret;
+            m_Lock.lock();
+            try
+            {
+                ret = m_Chat.flushEvents();
+            }
+            finally
+            {
+                m_Lock.unlock();
+            }
+
+            if (ErrorCode.failed(ret))
+            {
+                m_LastError = ret;
+            }
+
+            LockSupport.parkNanos(m_IntervalMilliseconds * 1000000L);
+        }
+    }
+
+    /**
+     * A callback waiting to be run on the game thread.  The arguments of every kind of callback share one class so events can be reused.
+     */
+    protected static class Event
+    {
+        static final int CHAT_STATUS = 0;
+        static final int CHANNEL_MEMBERSHIP = 1;
+        static final int CHANNEL_USER_CHANGE = 2;
+        static final int CHANNEL_RAW_MESSAGE = 3;
+        static final int CHANNEL_TOKENIZED_MESSAGE = 4;
+        static final int CHAT_CLEAR = 5;
+        static final int BADGE_DATA_DOWNLOAD = 6;
+        static final int INITIALIZATION = 7;
+        static final int SHUTDOWN = 8;
+        static final int EMOTICON_DATA_DOWNLOAD = 9;
+
+        int m_Type;
+        ChatChannelStatistics m_Statistics;
+        IChatChannelListener m_ChannelListener;
+        IChatAPIListener m_APIListener;
+        String m_ChannelName;
+        ErrorCode m_Result;
+        ChatEvent m_ChatEvent;
+        ChatChannelInfo m_ChannelInfo;
+        ChatUserInfo[] m_JoinList;
+        ChatUserInfo[] m_LeaveList;
+        ChatUserInfo[] m_UserInfoList;
+        ChatRawMessage[] m_RawMessages;
+        ChatTokenizedMessage[] m_TokenizedMessages;
+        String m_UserName;
+
+        void run()
+        {
+            if (m_Statistics != null)
+            {
+                m_Statistics.onQueuedEventFired();
+            }
+
+            switch (m_Type)
+            {
+                case CHAT_STATUS:
+                    m_ChannelListener.chatStatusCallback(m_ChannelName, m_Result);
+                    break;
+                case CHANNEL_MEMBERSHIP:
+                    m_ChannelListener.chatChannelMembershipCallback(m_ChannelName, m_ChatEvent, m_ChannelInfo);
+                    break;
+                case CHANNEL_USER_CHANGE:
+                    m_ChannelListener.chatChannelUserChangeCallback(m_ChannelName, m_JoinList, m_LeaveList, m_UserInfoList);
+                    break;
+                case CHANNEL_RAW_MESSAGE:
+                    m_ChannelListener.chatChannelRawMessageCallback(m_ChannelName, m_RawMessages);
+                    break;
+                case CHANNEL_TOKENIZED_MESSAGE:
+                    m_ChannelListener.chatChannelTokenizedMessageCallback(m_ChannelName, m_TokenizedMessages);
+                    break;
+                case CHAT_CLEAR:
+                    m_ChannelListener.chatClearCallback(m_ChannelName, m_UserName);
+                    break;
+                case BADGE_DATA_DOWNLOAD:
+                    m_ChannelListener.chatBadgeDataDownloadCallback(m_ChannelName, m_Result);
+                    break;
+                case INITIALIZATION:
+                    m_APIListener.chatInitializationCallback(m_Result);
+                    break;
+                case SHUTDOWN:
+                    m_APIListener.chatShutdownCallback(m_Result);
+                    break;
+                case EMOTICON_DATA_DOWNLOAD:
+                    m_APIListener.chatEmoticonDataDownloadCallback(m_Result);
+                    break;
+            }
+        }
+
+        /**
+         * Drops the references so a pooled event doesn't keep messages alive.
+         */
+        void clear()
+        {
+            m_Statistics = null;
+            m_ChannelListener = null;
+            m_APIListener = null;
+            m_ChannelName = null;
+            m_Result = null;
+            m_ChatEvent = null;
+            m_ChannelInfo = null;
+            m_JoinList = null;
+            m_LeaveList = null;
+            m_UserInfoList = null;
+            m_RawMessages = null;
+            m_TokenizedMessages = null;
+            m_UserName = null;
+        }
+    }
+}
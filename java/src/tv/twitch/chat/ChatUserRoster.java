@@ -0,0 +1,178 @@
+package tv.twitch.chat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The users in a chat channel indexed by display name so joins, leaves and updates take constant time no matter how many users are in
+ * the channel.  Users are also indexed by their modes and subscriptions so the moderators or subscribers can be listed without scanning
+ * the whole channel.
+ *
+ * Users are kept in the order they joined.  The collections returned are read only views of the roster rather than copies so they
+ * shouldn't be held across updates.  The roster isn't thread safe.
+ */
+public class ChatUserRoster
+{
+    protected Map<String, ChatUserInfo> m_Users = new LinkedHashMap<String, ChatUserInfo>();
+    protected EnumMap<ChatUserMode, Map<String, ChatUserInfo>> m_UsersByMode = new EnumMap<ChatUserMode, Map<String, ChatUserInfo>>(ChatUserMode.class);
+    protected EnumMap<ChatUserSubscription, Map<String, ChatUserInfo>> m_UsersBySubscription = new EnumMap<ChatUserSubscription, Map<String, ChatUserInfo>>(ChatUserSubscription.class);
+
+    public ChatUserRoster()
+    {
+        for (ChatUserMode mode : ChatUserMode.values())
+        {
+            m_UsersByMode.put(mode, new LinkedHashMap<String, ChatUserInfo>());
+        }
+
+        for (ChatUserSubscription subscription : ChatUserSubscription.values())
+        {
+            m_UsersBySubscription.put(subscription, new LinkedHashMap<String, ChatUserInfo>());
+        }
+    }
+
+    //#region Properties
+
+    public int size()
+    {
+        return m_Users.size();
+    }
+
+    public int getNumUsers(ChatUserMode mode)
+    {
+        return m_UsersByMode.get(mode).size();
+    }
+
+    public int getNumUsers(ChatUserSubscription subscription)
+    {
+        return m_UsersBySubscription.get(subscription).size();
+    }
+
+    //#endregion
+
+    /**
+     * Adds the user or replaces the info of the user with the same display name.
+     */
+    public void put(ChatUserInfo user)
+    {
+        if (user == null || user.displayName == null)
+        {
+            return;
+        }
+
+        ChatUserInfo existing = m_Users.put(user.displayName, user);
+        if (existing != null)
+        {
+            removeFromIndexes(existing);
+        }
+
+        if (user.modes != null)
+        {
+            for (ChatUserMode mode : user.modes)
+            {
+                m_UsersByMode.get(mode).put(user.displayName, user);
+            }
+        }
+
+        if (user.subscriptions != null)
+        {
+            for (ChatUserSubscription subscription : user.subscriptions)
+            {
+                m_UsersBySubscription.get(subscription).put(user.displayName, user);
+            }
+        }
+    }
+
+    /**
+     * Removes the user with the same display name.
+     * @return Whether or not the user was in the roster
+     */
+    public boolean remove(ChatUserInfo user)
+    {
+        if (user == null || user.displayName == null)
+        {
+            return false;
+        }
+
+        ChatUserInfo existing = m_Users.remove(user.displayName);
+        if (existing == null)
+        {
+            return false;
+        }
+
+        removeFromIndexes(existing);
+        return true;
+    }
+
+    public void clear()
+    {
+        m_Users.clear();
+
+        for (Map<String, ChatUserInfo> users : m_UsersByMode.values())
+        {
+            users.clear();
+        }
+
+        for (Map<String, ChatUserInfo> users : m_UsersBySubscription.values())
+        {
+            users.clear();
+        }
+    }
+
+    /**
+     * Retrieves the user with the given display name.
+     * @return The user or null if not in the channel
+     */
+    public ChatUserInfo get(String displayName)
+    {
+        return m_Users.get(displayName);
+    }
+
+    public boolean contains(String displayName)
+    {
+        return m_Users.containsKey(displayName);
+    }
+
+    public Collection<ChatUserInfo> getUsers()
+    {
+        return Collections.unmodifiableCollection(m_Users.values());
+    }
+
+    /**
+     * The users which have the given mode, such as the moderators.
+     */
+    public Collection<ChatUserInfo> getUsers(ChatUserMode mode)
+    {
+        return Collections.unmodifiableCollection(m_UsersByMode.get(mode).values());
+    }
+
+    /**
+     * The users which have the given subscription, such as the subscribers.
+     */
+    public Collection<ChatUserInfo> getUsers(ChatUserSubscription subscription)
+    {
+        return Collections.unmodifiableCollection(m_UsersBySubscription.get(subscription).values());
+    }
+
+    protected void removeFromIndexes(ChatUserInfo user)
+    {
+        if (user.modes != null)
+        {
+            for (ChatUserMode mode : user.modes)
+            {
+                m_UsersByMode.get(mode).remove(user.displayName);
+            }
+        }
+
+        if (user.subscriptions != null)
+        {
+            for (ChatUserSubscription subscription : user.subscriptions)
+            {
+                m_UsersBySubscription.get(subscription).remove(user.displayName);
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package tv.twitch.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+
+/**
+ * Keeps the emoticon texture sheets in memory mapped files so they don't have to be held on the Java heap.  The pixels are handed out
+ * as direct ByteBuffers which can be passed straight to glTexImage2D without copying.
+ *
+ * The SDK doesn't report a version for the emoticon data so the sheets are identified by a checksum of their contents.  When the data
+ * downloaded in a later session is unchanged the files written previously are mapped again rather than rewritten.  Sheets from the last
+ * session can also be loaded at startup, before the download has finished.
+ *
+ * The cache isn't thread safe.
+ */
+public class EmoticonTextureCache
+{
+    /**
+     * A texture sheet backed by a mapped file.
+     */
+    public static class Sheet
+    {
+        protected final int m_SheetIndex;
+        protected final int m_Width;
+        protected final int m_Height;
+        protected final MappedByteBuffer m_Pixels;
+
+        protected Sheet(int sheetIndex, int width, int height, MappedByteBuffer pixels)
+        {
+            m_SheetIndex = sheetIndex;
+            m_Width = width;
+            m_Height = height;
+            m_Pixels = pixels;
+        }
+
+        public int getSheetIndex()
+        {
+            return m_SheetIndex;
+        }
+
+        public int getWidth()
+        {
+            return m_Width;
+        }
+
+        public int getHeight()
+        {
+            return m_Height;
+        }
+
+        /**
+         * A read only view of the RGBA pixels.  Each call returns a new view positioned at the start.
+         */
+        public ByteBuffer getPixels()
+        {
+            return m_Pixels.asReadOnlyBuffer();
+        }
+    }
+
+    protected static final String INDEX_FILE_NAME = "emoticons.properties";
+
+    protected final File m_Directory;
+    protected String m_Version = null;
+    protected List<Sheet> m_Sheets = new ArrayList<Sheet>();
+
+    public EmoticonTextureCache(File directory)
+    {
+        m_Directory = directory;
+    }
+
+    //#region Properties
+
+    public File getDirectory()
+    {
+        return m_Directory;
+    }
+
+    /**
+     * The checksum of the sheets currently mapped or null if there aren't any.
+     */
+    public String getVersion()
+    {
+        return m_Version;
+    }
+
+    public int getSheetCount()
+    {
+        return m_Sheets.size();
+    }
+
+    public Sheet getSheet(int i)
+    {
+        return m_Sheets.get(i);
+    }
+
+    //#endregion
+
+    /**
+     * Maps the sheets written by a previous session.
+     * @return Whether or not a complete set of sheets was found
+     */
+    public boolean load()
+    {
+        m_Sheets.clear();
+        m_Version = null;
+
+        Properties index = readIndex();
+        if (index == null)
+        {
+            return false;
+        }
+
+        String version = index.getProperty("version");
+        List<Sheet> sheets = mapSheets(index, version);
+        if (sheets == null)
+        {
+            return false;
+        }
+
+        m_Sheets = sheets;
+        m_Version = version;
+        return true;
+    }
+
+    /**
+     * Caches the sheets downloaded by the SDK.  If they match the sheets already on disk those are reused, otherwise they're written out.
+     * @return Whether or not the sheets are available from the cache
+     */
+    public boolean store(ChatEmoticonData data)
+    {
+        if (data == null || data.textures == null)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < data.textures.length; ++i)
+        {
+            if (data.textures[i] == null || data.textures[i].buffer == null)
+            {
+                return false;
+            }
+        }
+
+        String version = computeVersion(data);
+        if (version.equals(m_Version))
+        {
+            return true;
+        }
+
+        // the previous session may have written the same data
+        Properties index = readIndex();
+        if (index != null && version.equals(index.getProperty("version")))
+        {
+            List<Sheet> sheets = mapSheets(index, version);
+            if (sheets != null)
+            {
+                m_Sheets = sheets;
+                m_Version = version;
+                return true;
+            }
+        }
+
+        if (!m_Directory.exists() && !m_Directory.mkdirs())
+        {
+            return false;
+        }
+
+        try
+        {
+            index = new Properties();
+            index.setProperty("version", version);
+            index.setProperty("count", Integer.toString(data.textures.length));
+
+            for (int i = 0; i < data.textures.length; ++i)
+            {
+                ChatTextureSheet sheet = data.textures[i];
+
+                File file = getSheetFile(version, i);
+                FileOutputStream stream = new FileOutputStream(file);
+                try
+                {
+                    stream.write(sheet.buffer);
+                }
+                finally
+                {
+                    stream.close();
+                }
+
+                index.setProperty("sheet." + i, String.format("%d,%d,%d,%d", sheet.sheetIndex, sheet.width, sheet.height, sheet.buffer.length));
+            }
+
+            // write the index last and swap it in whole so a partial write is never loaded
+            File temp = new File(m_Directory, INDEX_FILE_NAME + ".tmp");
+            FileOutputStream stream = new FileOutputStream(temp);
+            try
+            {
+                index.store(stream, "Twitch emoticon texture sheets");
+                stream.getFD().sync();
+            }
+            finally
+            {
+                stream.close();
+            }
+
+            replace(temp, new File(m_Directory, INDEX_FILE_NAME));
+        }
+        catch (IOException x)
+        {
+            return false;
+        }
+
+        List<Sheet> sheets = mapSheets(index, version);
+        if (sheets == null)
+        {
+            return false;
+        }
+
+        m_Sheets = sheets;
+        m_Version = version;
+
+        deleteOtherVersions();
+        return true;
+    }
+
+    /**
+     * Drops the references to the mapped sheets.  The mappings are released once the buffers handed out are collected.
+     */
+    public void clear()
+    {
+        m_Sheets = new ArrayList<Sheet>();
+        m_Version = null;
+    }
+
+    /**
+     * Renames the file over the target so readers see either the old or the new contents.
+     */
+    protected static void replace(File source, File target) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException x)
+        {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    protected File getSheetFile(String version, int i)
+    {
+        return new File(m_Directory, String.format("sheet_%s_%d.rgba", version, i));
+    }
+
+    protected Properties readIndex()
+    {
+        File file = new File(m_Directory, INDEX_FILE_NAME);
+        if (!file.exists())
+        {
+            return null;
+        }
+
+        Properties index = new Properties();
+        try
+        {
+            FileInputStream stream = new FileInputStream(file);
+            try
+            {
+                index.load(stream);
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch (IOException x)
+        {
+            return null;
+        }
+
+        return index.getProperty("version") == null ? null : index;
+    }
+
+    protected List<Sheet> mapSheets(Properties index, String version)
+    {
+        List<Sheet> sheets = new ArrayList<Sheet>();
+
+        try
+        {
+            int count = Integer.parseInt(index.getProperty("count", "0"));
+            for (int i = 0; i < count; ++i)
+            {
+                String[] fields = index.getProperty("sheet." + i, "").split(",");
+                if (fields.length < 4)
+                {
+                    return null;
+                }
+
+                long length = Long.parseLong(fields[3]);
+                File file = getSheetFile(version, i);
+                if (file.length() != length)
+                {
+                    return null;
+                }
+
+                // the mapping stays valid after the file is closed
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try
+                {
+                    MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    sheets.add(new Sheet(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), pixels));
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+        }
+        catch (NumberFormatException x)
+        {
+            return null;
+        }
+        catch (IOException x)
+        {
+            return null;
+        }
+
+        return sheets;
+    }
+
+    /**
+     * Removes the sheets of other versions.  This may fail while they're still mapped, in which case they're removed by a later session.
+     */
+    protected void deleteOtherVersions()
+    {
+        File[] files = m_Directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        String current = "sheet_" + m_Version + "_";
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.startsWith("sheet_") && !name.startsWith(current))
+            {
+                file.delete();
+            }
+        }
+    }
+
+    protected static String computeVersion(ChatEmoticonData data)
+    {
+        CRC32 crc = new CRC32();
+        long length = 0;
+
+        for (int i = 0; i < data.textures.length; ++i)
+        {
+            ChatTextureSheet sheet = data.textures[i];
+            if (sheet.buffer != null)
+            {
+                crc.update(sheet.buffer);
+                length += sheet.buffer.length;
+            }
+        }
+
+        return String.format("%08x%x", crc.getValue(), length);
+    }
+}
@@ -0,0 +1,386 @@
+package tv.twitch.chat;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A fixed capacity history of messages stored in a circular array.  Adding a message when the history is full overwrites the oldest
+ * one so neither adding nor evicting allocates.  Iteration runs from the oldest message to the newest directly over the array.
+ *
+ * If a KeySelector is given the messages with the same key, such as the messages from one user, are chained together so they can be
+ * removed without looking at anyone else's messages.  Removed messages are tombstoned rather than taken out of the array.  They keep
+ * their place until they are evicted, which lets a UI mark them as removed without rebuilding, but iterators skip them.
+ *
+ * The history isn't thread safe and iterators fail if the history is modified other than through the iterator.
+ */
+public class MessageHistory<T> implements Iterable<T>
+{
+    /**
+     * Selects messages to be removed.
+     */
+    public interface Filter<T>
+    {
+        boolean matches(T message);
+    }
+
+    /**
+     * Retrieves the key messages are indexed by.
+     */
+    public interface KeySelector<T>
+    {
+        String getKey(T message);
+    }
+
+    protected final KeySelector<? super T> m_KeySelector;
+
+    protected Object[] m_Messages;
+    protected boolean[] m_Removed;      //!< Whether or not each slot has been tombstoned.
+    protected String[] m_Keys;          //!< The key each slot is chained under or null if not chained.
+    protected int[] m_NextWithKey;      //!< The slot of the next newer message with the same key or -1.
+    protected HashMap<String, int[]> m_Chains = new HashMap<String, int[]>();  //!< The oldest and newest slot for each key.
+
+    protected int m_Head = 0;           //!< The index of the oldest message.
+    protected int m_Count = 0;
+    protected int m_NumRemoved = 0;
+    protected int m_ModCount = 0;
+
+    public MessageHistory(int capacity)
+    {
+        this(capacity, null);
+    }
+
+    public MessageHistory(int capacity, KeySelector<? super T> keySelector)
+    {
+        m_KeySelector = keySelector;
+        allocate(Math.max(1, capacity));
+    }
+
+    //#region Properties
+
+    public int getCapacity()
+    {
+        return m_Messages.length;
+    }
+    /**
+     * Changes the number of messages kept.  If the history is shrunk the oldest messages are dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public void setCapacity(int value)
+    {
+        value = Math.max(1, value);
+        if (value == m_Messages.length)
+        {
+            return;
+        }
+
+        Object[] messages = m_Messages;
+        boolean[] removed = m_Removed;
+        int head = m_Head;
+        int count = m_Count;
+        int keep = Math.min(count, value);
+
+        allocate(value);
+
+        for (int i = count - keep; i < count; ++i)
+        {
+            int slot = (head + i) % messages.length;
+            add((T)messages[slot]);
+
+            if (removed[slot])
+            {
+                tombstone(index(m_Count - 1));
+            }
+        }
+
+        m_ModCount++;
+    }
+
+    /**
+     * The number of messages in the history including those which have been removed.
+     */
+    public int size()
+    {
+        return m_Count;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_Count == m_NumRemoved;
+    }
+
+    /**
+     * The number of messages which have been removed but not yet evicted.
+     */
+    public int getNumRemoved()
+    {
+        return m_NumRemoved;
+    }
+
+    //#endregion
+
+    /**
+     * Retrieves a message where 0 is the oldest.  Removed messages are still returned.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int i)
+    {
+        return (T)m_Messages[checkIndex(i)];
+    }
+
+    /**
+     * Whether or not the message at the given index has been removed.
+     */
+    public boolean getIsRemoved(int i)
+    {
+        return m_Removed[checkIndex(i)];
+    }
+
+    /**
+     * Appends a message, evicting the oldest if the history is full.
+     */
+    public void add(T message)
+    {
+        int slot;
+        if (m_Count < m_Messages.length)
+        {
+            slot = index(m_Count);
+            m_Count++;
+        }
+        else
+        {
+            slot = m_Head;
+            evict(slot);
+            m_Head = index(1);
+        }
+
+        m_Messages[slot] = message;
+        m_Removed[slot] = false;
+        m_NextWithKey[slot] = -1;
+        m_Keys[slot] = null;
+
+        String key = m_KeySelector == null || message == null ? null : m_KeySelector.getKey(message);
+        if (key != null)
+        {
+            m_Keys[slot] = key;
+
+            int[] chain = m_Chains.get(key);
+            if (chain == null)
+            {
+                m_Chains.put(key, new int[] { slot, slot });
+            }
+            else
+            {
+                m_NextWithKey[chain[1]] = slot;
+                chain[1] = slot;
+            }
+        }
+
+        m_ModCount++;
+    }
+
+    /**
+     * Appends the messages in order.  Only the newest messages which fit are copied.
+     */
+    public void addAll(T[] messages)
+    {
+        int start = Math.max(0, messages.length - m_Messages.length);
+        for (int i = start; i < messages.length; ++i)
+        {
+            add(messages[i]);
+        }
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < m_Count; ++i)
+        {
+            int slot = index(i);
+            m_Messages[slot] = null;
+            m_Keys[slot] = null;
+        }
+
+        m_Chains.clear();
+        m_Head = 0;
+        m_Count = 0;
+        m_NumRemoved = 0;
+        m_ModCount++;
+    }
+
+    /**
+     * Removes all the messages with the given key.  Only the messages with the key are visited.
+     * @return The number of messages removed
+     */
+    public int removeKey(String key)
+    {
+        int[] chain = key == null ? null : m_Chains.remove(key);
+        if (chain == null)
+        {
+            return 0;
+        }
+
+        int removed = 0;
+        for (int slot = chain[0]; slot >= 0; )
+        {
+            int next = m_NextWithKey[slot];
+
+            m_Keys[slot] = null;
+            m_NextWithKey[slot] = -1;
+            if (tombstone(slot))
+            {
+                removed++;
+            }
+
+            slot = next;
+        }
+
+        m_ModCount++;
+        return removed;
+    }
+
+    /**
+     * Removes the messages which match the filter.  Every message is visited so prefer removeKey() when possible.
+     * @return The number of messages removed
+     */
+    @SuppressWarnings("unchecked")
+    public int removeMatching(Filter<? super T> filter)
+    {
+        int removed = 0;
+        for (int i = 0; i < m_Count; ++i)
+        {
+            int slot = index(i);
+            if (!m_Removed[slot] && filter.matches((T)m_Messages[slot]) && tombstone(slot))
+            {
+                removed++;
+            }
+        }
+
+        if (removed > 0)
+        {
+            m_ModCount++;
+        }
+
+        return removed;
+    }
+
+    /**
+     * Iterates from the oldest message to the newest without copying.  Removed messages are skipped.  The iterator doesn't support removal.
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new Iterator<T>()
+        {
+            protected int m_Next = skipRemoved(0);
+            protected final int m_ExpectedModCount = m_ModCount;
+
+            @Override
+            public boolean hasNext()
+            {
+                return m_Next < m_Count;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next()
+            {
+                if (m_ModCount != m_ExpectedModCount)
+                {
+                    throw new ConcurrentModificationException();
+                }
+                if (m_Next >= m_Count)
+                {
+                    throw new NoSuchElementException();
+                }
+
+                T message = (T)m_Messages[index(m_Next)];
+                m_Next = skipRemoved(m_Next + 1);
+
+                return message;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    protected void allocate(int capacity)
+    {
+        m_Messages = new Object[capacity];
+        m_Removed = new boolean[capacity];
+        m_Keys = new String[capacity];
+        m_NextWithKey = new int[capacity];
+        m_Chains.clear();
+        m_Head = 0;
+        m_Count = 0;
+        m_NumRemoved = 0;
+    }
+
+    /**
+     * Drops the oldest message which is about to be overwritten.  Being the oldest it's also the oldest in its chain.
+     */
+    protected void evict(int slot)
+    {
+        if (m_Removed[slot])
+        {
+            m_NumRemoved--;
+        }
+
+        String key = m_Keys[slot];
+        if (key != null)
+        {
+            int next = m_NextWithKey[slot];
+            if (next < 0)
+            {
+                m_Chains.remove(key);
+            }
+            else
+            {
+                m_Chains.get(key)[0] = next;
+            }
+        }
+    }
+
+    protected boolean tombstone(int slot)
+    {
+        if (m_Removed[slot])
+        {
+            return false;
+        }
+
+        m_Removed[slot] = true;
+        m_NumRemoved++;
+        return true;
+    }
+
+    protected int skipRemoved(int i)
+    {
+        while (i < m_Count && m_Removed[index(i)])
+        {
+            i++;
+        }
+
+        return i;
+    }
+
+    protected int checkIndex(int i)
+    {
+        if (i < 0 || i >= m_Count)
+        {
+            throw new IndexOutOfBoundsException(String.format("Index %d with %d messages", i, m_Count));
+        }
+
+        return index(i);
+    }
+
+    protected int index(int i)
+    {
+        int index = m_Head + i;
+        return index < m_Messages.length ? index : index - m_Messages.length;
+    }
+}
@@ -0,0 +1,161 @@
+package tv.twitch.sample;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GLContext;
+
+import tv.twitch.broadcast.PixelBufferCapture;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+
+
+/**
+ * Reads the back buffer into OpenGL pixel buffer objects using LWJGL.  When the viewport isn't the broadcast size it's first scaled into
+ * a framebuffer object of the broadcast size with glBlitFramebuffer.  Requires OpenGL 3.0.
+ */
+public class LwjglPixelBufferCapture extends PixelBufferCapture
+{
+    protected IntBuffer m_PixelBuffers = null;
+    protected ByteBuffer[] m_MappedBuffers = null;    //!< The last mapping of each pixel buffer which LWJGL will reuse if the address is unchanged.
+    protected IntBuffer m_Viewport = BufferUtils.createIntBuffer(16);
+    protected int m_ScaleFramebuffer = 0;             //!< The framebuffer the viewport is scaled into, created on first use.
+    protected int m_ScaleRenderbuffer = 0;
+
+    public LwjglPixelBufferCapture(int numPixelBuffers)
+    {
+        super(numPixelBuffers);
+    }
+
+    /**
+     * Whether or not the current context supports pixel buffer objects.
+     */
+    public static boolean getIsSupported()
+    {
+        ContextCapabilities caps = GLContext.getCapabilities();
+        return caps.OpenGL30;
+    }
+
+    @Override
+    protected boolean createPixelBuffers(int count, int size)
+    {
+        m_PixelBuffers = BufferUtils.createIntBuffer(count);
+        m_MappedBuffers = new ByteBuffer[count];
+
+        glGenBuffers(m_PixelBuffers);
+
+        for (int i = 0; i < count; ++i)
+        {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, m_PixelBuffers.get(i));
+            glBufferData(GL_PIXEL_PACK_BUFFER, size, GL_STREAM_READ);
+        }
+
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        return glGetError() == GL_NO_ERROR;
+    }
+
+    @Override
+    protected void deletePixelBuffers()
+    {
+        if (m_PixelBuffers != null)
+        {
+            glDeleteBuffers(m_PixelBuffers);
+        }
+
+        if (m_ScaleFramebuffer != 0)
+        {
+            glDeleteFramebuffers(m_ScaleFramebuffer);
+            glDeleteRenderbuffers(m_ScaleRenderbuffer);
+        }
+
+        m_PixelBuffers = null;
+        m_MappedBuffers = null;
+        m_ScaleFramebuffer = 0;
+        m_ScaleRenderbuffer = 0;
+    }
+
+    @Override
+    protected void beginReadback(int index, int width, int height)
+    {
+        glGetInteger(GL_VIEWPORT, m_Viewport);
+        int x = m_Viewport.get(0);
+        int y = m_Viewport.get(1);
+        int viewportWidth = m_Viewport.get(2);
+        int viewportHeight = m_Viewport.get(3);
+
+        int readFramebuffer = 0;
+        int drawFramebuffer = 0;
+        boolean scale = viewportWidth != width || viewportHeight != height;
+
+        if (scale)
+        {
+            readFramebuffer = glGetInteger(GL_READ_FRAMEBUFFER_BINDING);
+            drawFramebuffer = glGetInteger(GL_DRAW_FRAMEBUFFER_BINDING);
+
+            if (m_ScaleFramebuffer == 0)
+            {
+                createScaleFramebuffer(width, height);
+            }
+
+            // scale the viewport into the broadcast sized framebuffer and read from that instead
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, m_ScaleFramebuffer);
+            glBlitFramebuffer(x, y, x + viewportWidth, y + viewportHeight, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_LINEAR);
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, m_ScaleFramebuffer);
+
+            x = 0;
+            y = 0;
+        }
+
+        // with a pack buffer bound glReadPixels writes to the buffer and returns without waiting
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, m_PixelBuffers.get(index));
+        glReadPixels(x, y, width, height, GL_BGRA, GL_UNSIGNED_BYTE, 0);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+        if (scale)
+        {
+            glBindFramebuffer(GL_READ_FRAMEBUFFER, readFramebuffer);
+            glBindFramebuffer(GL_DRAW_FRAMEBUFFER, drawFramebuffer);
+        }
+    }
+
+    protected void createScaleFramebuffer(int width, int height)
+    {
+        m_ScaleRenderbuffer = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, m_ScaleRenderbuffer);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        // the caller restores the draw framebuffer binding
+        m_ScaleFramebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, m_ScaleFramebuffer);
+        glFramebufferRenderbuffer(GL_DRAW_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, m_ScaleRenderbuffer);
+    }
+
+    @Override
+    protected ByteBuffer mapPixelBuffer(int index, int size)
+    {
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, m_PixelBuffers.get(index));
+        m_MappedBuffers[index] = glMapBuffer(GL_PIXEL_PACK_BUFFER, GL_READ_ONLY, size, m_MappedBuffers[index]);
+
+        if (m_MappedBuffers[index] == null)
+        {
+            glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+        }
+
+        return m_MappedBuffers[index];
+    }
+
+    @Override
+    protected void unmapPixelBuffer(int index)
+    {
+        glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+        glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    }
+}
@@ -0,0 +1,344 @@
+package tv.twitch.broadcast;
+
+import tv.twitch.ErrorCode;
+
+
+/**
+ * Chooses the bitrate to encode at while broadcasting based on how the uplink is actually coping.  The bitrate steps between a fixed set
+ * of quality rungs, from the bitrate the broadcast was started with down to a fraction of it.  The BroadcastController feeds in the
+ * statistics after each poll along with any frame submission issues and an AdaptiveBitratePolicy picks the rung.
+ *
+ * Congestion is judged from what the SDK actually reports: TTV_WRN_FRAMES_QUEUEING and rejected frames from frame submission, and send
+ * stalls where no bytes reached the ingest server over a whole poll.  A poll interval with either of those is a congested interval.
+ *
+ * The controller also estimates the send backlog, the number of seconds of encoded video which haven't been sent yet.  The encoder only
+ * produces the rung's bitrate when the scene is busy, so bytes sent falling short of the rung's bitrate on its own just means a static
+ * scene.  The shortfall only adds to the backlog in congested intervals, when the SDK has confirmed data is waiting, and the backlog
+ * drains in clear intervals.
+ *
+ * The policy's choice is held back by hysteresis.  It can only step down after getCongestedIntervalsToStepDown() congested intervals
+ * in a row and only step up after a clear interval.
+ *
+ * The SDK can't change the bitrate of a running broadcast so a change of rung either has to be applied by the game or by letting the
+ * BroadcastController restart the broadcast, see BroadcastController.setRestartForAdaptiveBitrate.
+ */
+public class AdaptiveBitrateController
+{
+    public interface Listener
+    {
+        /**
+         * Fired when the controller decides to move to a different rung.
+         * @param source The controller
+         * @param rung The new rung where 0 is the highest bitrate
+         * @param kbps The bitrate of the new rung
+         */
+        void onBitrateRungChanged(AdaptiveBitrateController source, int rung, int kbps);
+    }
+
+    public static final float[] DEFAULT_RUNG_FRACTIONS = { 1.0f, 0.75f, 0.55f, 0.4f, 0.3f };
+
+    protected Listener m_Listener = null;
+    protected AdaptiveBitratePolicy m_Policy = new AimdBitratePolicy();
+    protected float[] m_RungFractions = DEFAULT_RUNG_FRACTIONS;
+    protected long m_MinSwitchIntervalMilliseconds = 5000;
+    protected float m_MaxBacklogSeconds = 10.0f;
+    protected int m_CongestedIntervalsToStepDown = 3;
+
+    protected int[] m_RungsKbps = new int[0];
+    protected int m_CurrentRung = 0;
+    protected long m_LastSwitchTime = 0;
+    protected float m_MeasuredKbps = 0;
+    protected float m_BacklogSeconds = 0;
+    protected int m_NumCongestionEvents = 0;
+    protected int m_NumIntervalEvents = 0;          //!< The congestion events since the last update.
+    protected int m_NumCongestedIntervals = 0;      //!< The congested intervals in a row.
+    protected long m_LastSnapshotTime = -1;
+
+    public AdaptiveBitrateController()
+    {
+    }
+
+    public AdaptiveBitrateController(AdaptiveBitratePolicy policy)
+    {
+        setPolicy(policy);
+    }
+
+    //region Properties
+
+    public Listener getListener()
+    {
+        return m_Listener;
+    }
+    public void setListener(Listener listener)
+    {
+        m_Listener = listener;
+    }
+
+    public AdaptiveBitratePolicy getPolicy()
+    {
+        return m_Policy;
+    }
+    public void setPolicy(AdaptiveBitratePolicy value)
+    {
+        if (value != null)
+        {
+            m_Policy = value;
+        }
+    }
+
+    /**
+     * The bitrate of each rung as a fraction of the starting bitrate in descending order.  Changes take effect the next time broadcasting starts.
+     */
+    public float[] getRungFractions()
+    {
+        return m_RungFractions.clone();
+    }
+    public void setRungFractions(float[] value)
+    {
+        if (value != null && value.length > 0)
+        {
+            m_RungFractions = value.clone();
+        }
+    }
+
+    /**
+     * The least time between two changes of rung.  This keeps the controller from reacting to short bursts.
+     */
+    public long getMinSwitchIntervalMilliseconds()
+    {
+        return m_MinSwitchIntervalMilliseconds;
+    }
+    public void setMinSwitchIntervalMilliseconds(long value)
+    {
+        m_MinSwitchIntervalMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The number of congested poll intervals in a row needed before the bitrate is stepped down.  This keeps a single warning from
+     * costing a rung.
+     */
+    public int getCongestedIntervalsToStepDown()
+    {
+        return m_CongestedIntervalsToStepDown;
+    }
+    public void setCongestedIntervalsToStepDown(int value)
+    {
+        m_CongestedIntervalsToStepDown = Math.max(1, value);
+    }
+
+    public int getRungCount()
+    {
+        return m_RungsKbps.length;
+    }
+
+    public int getRungKbps(int rung)
+    {
+        return m_RungsKbps[rung];
+    }
+
+    public int getCurrentRung()
+    {
+        return m_CurrentRung;
+    }
+
+    public int getCurrentKbps()
+    {
+        return m_RungsKbps.length == 0 ? 0 : m_RungsKbps[m_CurrentRung];
+    }
+
+    /**
+     * The upload throughput over the statistics' rolling window.
+     */
+    public float getMeasuredKbps()
+    {
+        return m_MeasuredKbps;
+    }
+
+    /**
+     * The estimated number of seconds of encoded video waiting to be sent.  This only grows while the SDK reports congestion.
+     */
+    public float getBacklogSeconds()
+    {
+        return m_BacklogSeconds;
+    }
+
+    /**
+     * The number of frames the SDK refused or queued up because it was backed up since the last change of rung.
+     */
+    public int getNumCongestionEvents()
+    {
+        return m_NumCongestionEvents;
+    }
+
+    /**
+     * The number of poll intervals in a row in which the SDK reported congestion or nothing was sent.
+     */
+    public int getNumCongestedIntervals()
+    {
+        return m_NumCongestedIntervals;
+    }
+
+    /**
+     * Whether or not the uplink has been congested for long enough to step down.
+     */
+    public boolean getIsCongested()
+    {
+        return m_NumCongestedIntervals >= m_CongestedIntervalsToStepDown;
+    }
+
+    public long getMillisecondsSinceRungChange()
+    {
+        return (System.nanoTime() - m_LastSwitchTime) / 1000000;
+    }
+
+    //endregion
+
+    /**
+     * Builds the rungs below the given bitrate and starts at the top.  Called when broadcasting starts.
+     */
+    public void reset(int maxKbps)
+    {
+        int[] rungs = new int[m_RungFractions.length];
+        int count = 0;
+
+        for (int i = 0; i < m_RungFractions.length; ++i)
+        {
+            int kbps = Math.max(Constants.TTV_MIN_BITRATE, Math.round(maxKbps * m_RungFractions[i]));
+
+            // skip duplicates once the minimum is reached
+            if (count == 0 || kbps < rungs[count - 1])
+            {
+                rungs[count++] = kbps;
+            }
+        }
+
+        m_RungsKbps = new int[count];
+        System.arraycopy(rungs, 0, m_RungsKbps, 0, count);
+
+        m_CurrentRung = 0;
+        m_Policy.reset();
+        resetMeasurements();
+    }
+
+    /**
+     * Finds the highest rung at or below the given bitrate.
+     * @return The rung or the lowest rung if they are all above it
+     */
+    public int findRung(float kbps)
+    {
+        for (int i = 0; i < m_RungsKbps.length; ++i)
+        {
+            if (m_RungsKbps[i] <= kbps)
+            {
+                return i;
+            }
+        }
+
+        return m_RungsKbps.length - 1;
+    }
+
+    /**
+     * Records a frame submission issue.  Warnings that frames are queueing and rejected frames indicate the encoder output is backing up.
+     */
+    public void onFrameSubmissionIssue(ErrorCode ret)
+    {
+        if (ret == ErrorCode.TTV_WRN_FRAMES_QUEUEING || ret == ErrorCode.TTV_EC_FRAME_QUEUE_FULL)
+        {
+            m_NumCongestionEvents++;
+            m_NumIntervalEvents++;
+        }
+    }
+
+    /**
+     * Updates the measurements with the latest statistics and asks the policy for a rung.
+     * @return Whether or not the rung changed
+     */
+    public boolean update(StreamStatistics.Snapshot stats)
+    {
+        if (stats == null || m_RungsKbps.length == 0)
+        {
+            return false;
+        }
+
+        // nothing meaningful to measure until video is flowing
+        if (stats.getRTMPState() != RTMPState.SendVideo)
+        {
+            m_LastSnapshotTime = -1;
+            return false;
+        }
+
+        if (m_LastSnapshotTime < 0)
+        {
+            m_LastSnapshotTime = stats.getTimeMilliseconds();
+            m_NumIntervalEvents = 0;
+            return false;
+        }
+
+        long elapsed = stats.getTimeMilliseconds() - m_LastSnapshotTime;
+        m_LastSnapshotTime = stats.getTimeMilliseconds();
+
+        if (elapsed <= 0)
+        {
+            return false;
+        }
+
+        boolean stalled = stats.getBytesSentDelta() == 0;
+        boolean congested = stalled || m_NumIntervalEvents > 0;
+        m_NumIntervalEvents = 0;
+
+        float rateKbps = m_RungsKbps[m_CurrentRung];
+        if (congested)
+        {
+            // the rung's bitrate is the most the encoder can produce so this is an upper bound on the growth
+            float producedKbits = rateKbps * elapsed / 1000.0f;
+            float sentKbits = stats.getBytesSentDelta() * 8 / 1000.0f;
+            m_BacklogSeconds = Math.min(m_MaxBacklogSeconds, m_BacklogSeconds + Math.max(0, producedKbits - sentKbits) / rateKbps);
+            m_NumCongestedIntervals++;
+        }
+        else
+        {
+            // the SDK isn't holding anything back so whatever was waiting has been sent
+            m_BacklogSeconds = Math.max(0, m_BacklogSeconds - elapsed / 1000.0f);
+            m_NumCongestedIntervals = 0;
+        }
+        m_MeasuredKbps = stats.getRollingBitrateKbps();
+
+        if (getMillisecondsSinceRungChange() < m_MinSwitchIntervalMilliseconds)
+        {
+            return false;
+        }
+
+        int rung = Math.min(Math.max(0, m_Policy.selectRung(this)), m_RungsKbps.length - 1);
+
+        // hysteresis so a single bad or good interval doesn't move the bitrate
+        if ((rung > m_CurrentRung && !getIsCongested()) || (rung < m_CurrentRung && m_NumCongestedIntervals > 0))
+        {
+            return false;
+        }
+
+        if (rung == m_CurrentRung)
+        {
+            return false;
+        }
+
+        m_CurrentRung = rung;
+        resetMeasurements();
+
+        if (m_Listener != null)
+        {
+            m_Listener.onBitrateRungChanged(this, rung, m_RungsKbps[rung]);
+        }
+
+        return true;
+    }
+
+    protected void resetMeasurements()
+    {
+        m_LastSwitchTime = System.nanoTime();
+        m_BacklogSeconds = 0;
+        m_NumCongestionEvents = 0;
+        m_NumIntervalEvents = 0;
+        m_NumCongestedIntervals = 0;
+        m_LastSnapshotTime = -1;
+    }
+}
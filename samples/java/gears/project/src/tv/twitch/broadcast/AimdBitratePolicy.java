@@ -0,0 +1,71 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * Additive increase, multiplicative decrease.  Once the controller reports the uplink as congested the bitrate is cut to a fraction of
+ * the measured throughput.  When it has been clear for a while the bitrate is raised one rung at a time.  This converges quickly after
+ * a drop and probes upwards cautiously.
+ */
+public class AimdBitratePolicy implements AdaptiveBitratePolicy
+{
+    protected float m_DecreaseFactor = 0.7f;
+    protected long m_IncreaseIntervalMilliseconds = 15000;
+    protected float m_ClearBacklogSeconds = 0.25f;
+
+    public AimdBitratePolicy()
+    {
+    }
+
+    /**
+     * The fraction of the measured throughput to drop to when congested.
+     */
+    public float getDecreaseFactor()
+    {
+        return m_DecreaseFactor;
+    }
+    public void setDecreaseFactor(float value)
+    {
+        m_DecreaseFactor = Math.min(1.0f, Math.max(0.1f, value));
+    }
+
+    /**
+     * How long the uplink must be clear at the current rung before stepping up a rung.
+     */
+    public long getIncreaseIntervalMilliseconds()
+    {
+        return m_IncreaseIntervalMilliseconds;
+    }
+    public void setIncreaseIntervalMilliseconds(long value)
+    {
+        m_IncreaseIntervalMilliseconds = Math.max(0, value);
+    }
+
+    @Override
+    public void reset()
+    {
+    }
+
+    @Override
+    public int selectRung(AdaptiveBitrateController controller)
+    {
+        int current = controller.getCurrentRung();
+        float measured = controller.getMeasuredKbps();
+
+        if (controller.getIsCongested())
+        {
+            // multiplicative decrease, always at least one rung
+            int rung = controller.findRung(measured * m_DecreaseFactor);
+            return Math.max(rung, Math.min(current + 1, controller.getRungCount() - 1));
+        }
+
+        // additive increase
+        if (current > 0 &&
+            controller.getBacklogSeconds() <= m_ClearBacklogSeconds &&
+            controller.getMillisecondsSinceRungChange() >= m_IncreaseIntervalMilliseconds)
+        {
+            return current - 1;
+        }
+
+        return current;
+    }
+}
@@ -0,0 +1,75 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * A buffer based policy modelled on BOLA.  BOLA was designed for playback where a full buffer allows a higher bitrate.  When
+ * uploading, the equivalent is the headroom left before the send backlog reaches its limit, so a backlog near zero allows a higher bitrate
+ * and a growing backlog pushes the bitrate down.  Each rung's utility is the log of its bitrate relative to the lowest rung and the rung
+ * which maximizes (V * (utility + gamma) - headroom) / bitrate is chosen.
+ *
+ * Because it reacts to the backlog rather than throughput estimates it doesn't oscillate on a noisy uplink.
+ */
+public class BolaBitratePolicy implements AdaptiveBitratePolicy
+{
+    protected float m_MaxBacklogSeconds = 3.0f;     //!< The backlog treated as an empty buffer.
+    protected float m_Gamma = 5.0f;                 //!< Weights smoothness against utility.
+
+    public BolaBitratePolicy()
+    {
+    }
+
+    /**
+     * The send backlog at which the lowest rung is always chosen.
+     */
+    public float getMaxBacklogSeconds()
+    {
+        return m_MaxBacklogSeconds;
+    }
+    public void setMaxBacklogSeconds(float value)
+    {
+        m_MaxBacklogSeconds = Math.max(0.5f, value);
+    }
+
+    @Override
+    public void reset()
+    {
+    }
+
+    @Override
+    public int selectRung(AdaptiveBitrateController controller)
+    {
+        int count = controller.getRungCount();
+        float lowest = controller.getRungKbps(count - 1);
+
+        // the headroom plays the role of the playback buffer level
+        float headroom = Math.max(0, m_MaxBacklogSeconds - controller.getBacklogSeconds());
+
+        // chosen so the highest rung is picked with a full buffer
+        float maxUtility = (float)Math.log(controller.getRungKbps(0) / lowest);
+        float v = (m_MaxBacklogSeconds - 1.0f) / (maxUtility + m_Gamma);
+
+        int best = count - 1;
+        float bestScore = -Float.MAX_VALUE;
+
+        for (int i = 0; i < count; ++i)
+        {
+            float kbps = controller.getRungKbps(i);
+            float utility = (float)Math.log(kbps / lowest);
+            float score = (v * (utility + m_Gamma) - headroom) / kbps;
+
+            if (score > bestScore)
+            {
+                bestScore = score;
+                best = i;
+            }
+        }
+
+        // sustained congestion means the backlog estimate is behind reality
+        if (controller.getIsCongested())
+        {
+            best = Math.max(best, Math.min(controller.getCurrentRung() + 1, count - 1));
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,557 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A bounded pool of the FrameBuffers used as capture destinations while broadcasting.  Each buffer lives in a fixed slot and the free slots
+ * are kept on a lock-free stack so buffers can be acquired on the game thread and released from whichever thread the SDK fires
+ * bufferUnlockCallback on without any locking or allocation.
+ *
+ * The SDK hands buffers back by native address so the slots are also indexed by address in a small open addressed hash table.  The
+ * table is only written by the owning thread and is replaced rather than rebuilt in place so it can be read from any thread without
+ * locking.  PooledFrameBuffers know their own slot and skip the table altogether.
+ *
+ * Buffers can only be added and freed by the thread which owns the pool (the thread driving the BroadcastController).  Acquiring and
+ * releasing is safe from any thread.
+ */
+public class FrameBufferPool
+{
+    protected static final int INVALID_SLOT = -1;
+
+    protected static final int SLOT_EMPTY = 0;      //!< No buffer is in the slot.
+    protected static final int SLOT_FREE = 1;       //!< The buffer is on the free stack.
+    protected static final int SLOT_IN_USE = 2;     //!< The buffer has been handed out and not yet released.
+
+    protected static final int INDEX_EMPTY = 0;     //!< The index entry has never been used.
+    protected static final int INDEX_REMOVED = -1;  //!< The index entry was used by a buffer which has since been freed.
+
+    protected final int m_Capacity;
+    protected final AtomicReferenceArray<FrameBuffer> m_Buffers;
+    protected final AtomicLongArray m_Addresses;
+    protected final AtomicIntegerArray m_SlotStates;
+
+    protected volatile AtomicIntegerArray m_Index;  //!< Slot + 1 by hashed address, see INDEX_EMPTY and INDEX_REMOVED.
+    protected int m_NumIndexRemoved = 0;            //!< The number of INDEX_REMOVED entries, only touched by the owning thread.
+
+    /**
+     * The head of the free stack.  The low 32 bits are the slot index + 1 (0 meaning empty) and the high 32 bits are a version which is
+     * bumped on every change to avoid ABA problems.
+     */
+    protected final AtomicLong m_Head = new AtomicLong(0);
+    protected final AtomicIntegerArray m_Next;
+
+    protected final AtomicInteger m_NumBuffers = new AtomicInteger(0);
+    protected final AtomicInteger m_NumFree = new AtomicInteger(0);
+
+    protected final ReentrantLock m_WaitLock = new ReentrantLock();
+    protected final Condition m_BufferAvailable = m_WaitLock.newCondition();
+    protected final AtomicInteger m_NumWaiters = new AtomicInteger(0);
+
+    protected final AtomicLong m_EmptySinceNanos = new AtomicLong(0);
+    protected final AtomicLong m_TotalEmptyNanos = new AtomicLong(0);
+    protected final AtomicLong m_NumEmptyAcquires = new AtomicLong(0);
+
+    public FrameBufferPool(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        m_Capacity = capacity;
+        m_Buffers = new AtomicReferenceArray<FrameBuffer>(capacity);
+        m_Addresses = new AtomicLongArray(capacity);
+        m_SlotStates = new AtomicIntegerArray(capacity);
+        m_Next = new AtomicIntegerArray(capacity);
+        m_Index = createIndex();
+    }
+
+    //region Properties
+
+    /**
+     * The maximum number of buffers the pool can hold.
+     */
+    public int getCapacity()
+    {
+        return m_Capacity;
+    }
+
+    /**
+     * The number of buffers currently in the pool, both free and in use.
+     */
+    public int getBufferCount()
+    {
+        return m_NumBuffers.get();
+    }
+
+    /**
+     * The number of buffers which can currently be acquired.
+     */
+    public int getFreeCount()
+    {
+        return m_NumFree.get();
+    }
+
+    /**
+     * The number of times an acquire was attempted while the pool was empty.
+     */
+    public long getEmptyAcquireCount()
+    {
+        return m_NumEmptyAcquires.get();
+    }
+
+    /**
+     * The total time in milliseconds the pool has been empty while someone wanted a buffer, including the current empty period.
+     */
+    public long getTotalEmptyMilliseconds()
+    {
+        long total = m_TotalEmptyNanos.get();
+
+        long since = m_EmptySinceNanos.get();
+        if (since != 0)
+        {
+            total += System.nanoTime() - since;
+        }
+
+        return total / 1000000;
+    }
+
+    //endregion
+
+    /**
+     * Adds a buffer to the pool and makes it available.  Must be called from the owning thread.
+     * @param buffer The buffer to add
+     * @return The slot the buffer was placed in or -1 if the pool is full
+     */
+    public int add(FrameBuffer buffer)
+    {
+        if (buffer == null || !buffer.getIsValid())
+        {
+            return INVALID_SLOT;
+        }
+
+        for (int slot = 0; slot < m_Capacity; ++slot)
+        {
+            if (m_SlotStates.get(slot) == SLOT_EMPTY)
+            {
+                m_Buffers.set(slot, buffer);
+                m_Addresses.set(slot, buffer.getAddress());
+                m_SlotStates.set(slot, SLOT_IN_USE);
+                m_NumBuffers.incrementAndGet();
+
+                addToIndex(slot, buffer.getAddress());
+                if (buffer instanceof PooledFrameBuffer)
+                {
+                    ((PooledFrameBuffer)buffer).setSlot(slot);
+                }
+
+                releaseSlot(slot);
+
+                return slot;
+            }
+        }
+
+        return INVALID_SLOT;
+    }
+
+    /**
+     * Takes a free buffer out of the pool and frees it.  Must be called from the owning thread.
+     * @return Whether or not there was a free buffer to remove
+     */
+    public boolean freeOne()
+    {
+        int slot = popSlot();
+        if (slot == INVALID_SLOT)
+        {
+            return false;
+        }
+
+        FrameBuffer buffer = m_Buffers.getAndSet(slot, null);
+        removeFromIndex(slot, m_Addresses.get(slot));
+        m_Addresses.set(slot, 0);
+        m_SlotStates.set(slot, SLOT_EMPTY);
+        m_NumBuffers.decrementAndGet();
+
+        freeBuffer(buffer);
+
+        return true;
+    }
+
+    /**
+     * Frees all the buffers in the pool whether or not they are in use.  Must be called from the owning thread after the SDK is done with them.
+     */
+    public void freeAll()
+    {
+        m_Head.set(0);
+        m_Index = createIndex();
+        m_NumIndexRemoved = 0;
+
+        for (int slot = 0; slot < m_Capacity; ++slot)
+        {
+            FrameBuffer buffer = m_Buffers.getAndSet(slot, null);
+            m_Addresses.set(slot, 0);
+            m_SlotStates.set(slot, SLOT_EMPTY);
+
+            if (buffer != null)
+            {
+                freeBuffer(buffer);
+            }
+        }
+
+        m_NumBuffers.set(0);
+        m_NumFree.set(0);
+    }
+
+    /**
+     * Finds the slot holding the buffer with the given native address.  Safe to call from any thread.
+     * @return The slot or -1 if the address does not belong to the pool
+     */
+    public int getSlot(long address)
+    {
+        if (address == 0)
+        {
+            return INVALID_SLOT;
+        }
+
+        AtomicIntegerArray index = m_Index;
+        int mask = index.length() - 1;
+
+        // the entry is only trusted once the slot is confirmed to still hold the address
+        for (int i = hash(address) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, ++probes)
+        {
+            int entry = index.get(i);
+            if (entry == INDEX_EMPTY)
+            {
+                break;
+            }
+            else if (entry != INDEX_REMOVED && m_Addresses.get(entry - 1) == address)
+            {
+                return entry - 1;
+            }
+        }
+
+        return INVALID_SLOT;
+    }
+
+    /**
+     * Finds the slot holding the given buffer.  Safe to call from any thread.
+     * @return The slot or -1 if the buffer does not belong to the pool
+     */
+    public int getSlot(FrameBuffer buffer)
+    {
+        if (buffer == null)
+        {
+            return INVALID_SLOT;
+        }
+
+        if (buffer instanceof PooledFrameBuffer)
+        {
+            int slot = ((PooledFrameBuffer)buffer).getSlot();
+            if (slot >= 0 && slot < m_Capacity && m_Buffers.get(slot) == buffer)
+            {
+                return slot;
+            }
+        }
+
+        return getSlot(buffer.getAddress());
+    }
+
+    /**
+     * Retrieves the buffer in the given slot.
+     */
+    public FrameBuffer getBuffer(int slot)
+    {
+        return m_Buffers.get(slot);
+    }
+
+    /**
+     * Takes a free buffer from the pool without waiting.
+     * @return The buffer or null if none are free
+     */
+    public FrameBuffer acquire()
+    {
+        int slot = popSlot();
+        if (slot == INVALID_SLOT)
+        {
+            markEmpty();
+            return null;
+        }
+
+        return m_Buffers.get(slot);
+    }
+
+    /**
+     * Takes a free buffer from the pool, waiting up to the given amount of time for one to be released.
+     * @return The buffer or null if none became free in time or the thread was interrupted
+     */
+    public FrameBuffer acquire(long timeout, TimeUnit unit)
+    {
+        FrameBuffer buffer = acquire();
+        if (buffer != null || timeout <= 0)
+        {
+            return buffer;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        int slot = INVALID_SLOT;
+
+        m_NumWaiters.incrementAndGet();
+        m_WaitLock.lock();
+        try
+        {
+            while (true)
+            {
+                slot = popSlot();
+                if (slot != INVALID_SLOT || nanos <= 0)
+                {
+                    break;
+                }
+
+                nanos = m_BufferAvailable.awaitNanos(nanos);
+            }
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            m_WaitLock.unlock();
+            m_NumWaiters.decrementAndGet();
+        }
+
+        return slot == INVALID_SLOT ? null : m_Buffers.get(slot);
+    }
+
+    /**
+     * Takes a free buffer from the pool, waiting until one is released.
+     * @return The buffer or null if the thread was interrupted
+     */
+    public FrameBuffer acquireBlocking()
+    {
+        return acquire(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a buffer to the pool.  Safe to call from any thread.
+     * @return Whether or not the buffer belonged to the pool and was in use
+     */
+    public boolean release(FrameBuffer buffer)
+    {
+        int slot = getSlot(buffer);
+        if (slot == INVALID_SLOT)
+        {
+            return false;
+        }
+
+        return releaseSlot(slot);
+    }
+
+    /**
+     * Returns the buffer with the given native address to the pool.  Safe to call from any thread.
+     * @return Whether or not the buffer belonged to the pool and was in use
+     */
+    public boolean release(long address)
+    {
+        int slot = getSlot(address);
+        if (slot == INVALID_SLOT)
+        {
+            return false;
+        }
+
+        return releaseSlot(slot);
+    }
+
+    /**
+     * Returns the buffer in the given slot to the pool.  Safe to call from any thread.
+     * @return Whether or not the slot was in use
+     */
+    public boolean releaseSlot(int slot)
+    {
+        // guard against double releases which would corrupt the free stack
+        if (!m_SlotStates.compareAndSet(slot, SLOT_IN_USE, SLOT_FREE))
+        {
+            return false;
+        }
+
+        pushSlot(slot);
+        m_NumFree.incrementAndGet();
+
+        long since = m_EmptySinceNanos.getAndSet(0);
+        if (since != 0)
+        {
+            m_TotalEmptyNanos.addAndGet(System.nanoTime() - since);
+        }
+
+        // only take the lock if someone is actually waiting
+        if (m_NumWaiters.get() > 0)
+        {
+            m_WaitLock.lock();
+            try
+            {
+                m_BufferAvailable.signal();
+            }
+            finally
+            {
+                m_WaitLock.unlock();
+            }
+        }
+
+        return true;
+    }
+
+    protected void pushSlot(int slot)
+    {
+        while (true)
+        {
+            long head = m_Head.get();
+            m_Next.set(slot, (int)head);
+
+            long next = nextVersion(head) | (long)(slot + 1);
+            if (m_Head.compareAndSet(head, next))
+            {
+                return;
+            }
+        }
+    }
+
+    protected int popSlot()
+    {
+        while (true)
+        {
+            long head = m_Head.get();
+            int top = (int)head;
+            if (top == 0)
+            {
+                return INVALID_SLOT;
+            }
+
+            int slot = top - 1;
+            long next = nextVersion(head) | (m_Next.get(slot) & 0xFFFFFFFFL);
+            if (m_Head.compareAndSet(head, next))
+            {
+                m_SlotStates.set(slot, SLOT_IN_USE);
+                m_NumFree.decrementAndGet();
+                return slot;
+            }
+        }
+    }
+
+    protected AtomicIntegerArray createIndex()
+    {
+        // keep the table at most half full of live buffers so probes stay short
+        int size = 2;
+        while (size < m_Capacity * 2)
+        {
+            size <<= 1;
+        }
+
+        return new AtomicIntegerArray(size);
+    }
+
+    protected void addToIndex(int slot, long address)
+    {
+        AtomicIntegerArray index = m_Index;
+        int mask = index.length() - 1;
+
+        for (int i = hash(address) & mask; ; i = (i + 1) & mask)
+        {
+            int entry = index.get(i);
+            if (entry == INDEX_EMPTY || entry == INDEX_REMOVED)
+            {
+                if (entry == INDEX_REMOVED)
+                {
+                    m_NumIndexRemoved--;
+                }
+
+                index.set(i, slot + 1);
+                return;
+            }
+        }
+    }
+
+    protected void removeFromIndex(int slot, long address)
+    {
+        AtomicIntegerArray index = m_Index;
+        int mask = index.length() - 1;
+
+        for (int i = hash(address) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, ++probes)
+        {
+            int entry = index.get(i);
+            if (entry == INDEX_EMPTY)
+            {
+                return;
+            }
+            else if (entry == slot + 1)
+            {
+                // removed entries keep the probe chains of the other buffers intact
+                index.set(i, INDEX_REMOVED);
+                m_NumIndexRemoved++;
+                break;
+            }
+        }
+
+        // once the removed entries start to lengthen the probes build a fresh table and swap it in so readers never see it half built
+        if (m_NumIndexRemoved > m_Capacity / 2)
+        {
+            AtomicIntegerArray fresh = createIndex();
+            int freshMask = fresh.length() - 1;
+
+            for (int s = 0; s < m_Capacity; ++s)
+            {
+                long a = m_Addresses.get(s);
+                if (s == slot || a == 0)
+                {
+                    continue;
+                }
+
+                int i = hash(a) & freshMask;
+                while (fresh.get(i) != INDEX_EMPTY)
+                {
+                    i = (i + 1) & freshMask;
+                }
+                fresh.set(i, s + 1);
+            }
+
+            m_Index = fresh;
+            m_NumIndexRemoved = 0;
+        }
+    }
+
+    protected void freeBuffer(FrameBuffer buffer)
+    {
+        if (buffer instanceof PooledFrameBuffer)
+        {
+            ((PooledFrameBuffer)buffer).setSlot(INVALID_SLOT);
+        }
+
+        buffer.free();
+    }
+
+    protected void markEmpty()
+    {
+        m_NumEmptyAcquires.incrementAndGet();
+
+        long now = System.nanoTime();
+        m_EmptySinceNanos.compareAndSet(0, now == 0 ? 1 : now);
+    }
+
+    protected static int hash(long address)
+    {
+        // the native buffers are aligned so the low bits of the address are all the same, mix them in from the top
+        return (int)((address * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    protected static long nextVersion(long head)
+    {
+        return ((head >>> 32) + 1) << 32;
+    }
+}
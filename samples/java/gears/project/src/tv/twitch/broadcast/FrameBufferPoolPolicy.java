@@ -0,0 +1,152 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * Determines how many capture buffers the BroadcastController keeps in its FrameBufferPool.  The pool starts with the minimum number
+ * of buffers.  When a capture finds every buffer in use by the SDK the pool may grow by one buffer up to the maximum.  When the pool has
+ * had spare buffers for a whole idle period it gives one back, never going below the minimum.
+ *
+ * The policy also tracks the high-water mark of buffers in use at once which is useful for tuning the minimum for a given game.
+ */
+public class FrameBufferPoolPolicy
+{
+    public static final int DEFAULT_MIN_BUFFERS = 3;                //!< The number of buffers the SDK needs to be able to encode smoothly.
+    public static final int DEFAULT_MAX_BUFFERS = 6;
+    public static final long DEFAULT_SHRINK_IDLE_MILLISECONDS = 10000;
+
+    protected int m_MinBuffers = DEFAULT_MIN_BUFFERS;
+    protected int m_MaxBuffers = DEFAULT_MAX_BUFFERS;
+    protected boolean m_GrowOnStarvation = true;
+    protected long m_ShrinkIdleMilliseconds = DEFAULT_SHRINK_IDLE_MILLISECONDS;
+
+    protected int m_HighWaterMark = 0;              //!< The most buffers in use at once since the last reset.
+    protected int m_LowestFreeCount = 0;            //!< The fewest free buffers seen during the current idle period.
+    protected long m_IdlePeriodStartTime = 0;       //!< When the current idle period began in nanoseconds.
+
+    public FrameBufferPoolPolicy()
+    {
+    }
+
+    public FrameBufferPoolPolicy(int minBuffers, int maxBuffers)
+    {
+        setMinBuffers(minBuffers);
+        setMaxBuffers(maxBuffers);
+    }
+
+    //region Properties
+
+    /**
+     * The number of buffers allocated when broadcasting starts and the fewest the pool will shrink to.
+     */
+    public int getMinBuffers()
+    {
+        return m_MinBuffers;
+    }
+    public void setMinBuffers(int value)
+    {
+        m_MinBuffers = Math.max(1, value);
+        m_MaxBuffers = Math.max(m_MaxBuffers, m_MinBuffers);
+    }
+
+    /**
+     * The most buffers the pool may grow to.
+     */
+    public int getMaxBuffers()
+    {
+        return m_MaxBuffers;
+    }
+    public void setMaxBuffers(int value)
+    {
+        m_MaxBuffers = Math.max(1, value);
+        m_MinBuffers = Math.min(m_MinBuffers, m_MaxBuffers);
+    }
+
+    /**
+     * Whether or not a new buffer is allocated when a capture finds every buffer in use.
+     */
+    public boolean getGrowOnStarvation()
+    {
+        return m_GrowOnStarvation;
+    }
+    public void setGrowOnStarvation(boolean value)
+    {
+        m_GrowOnStarvation = value;
+    }
+
+    /**
+     * How long the pool must have had a spare buffer before one is freed.  A value of 0 disables shrinking.
+     */
+    public long getShrinkIdleMilliseconds()
+    {
+        return m_ShrinkIdleMilliseconds;
+    }
+    public void setShrinkIdleMilliseconds(long value)
+    {
+        m_ShrinkIdleMilliseconds = Math.max(0, value);
+    }
+
+    /**
+     * The most buffers which have been in use at once since broadcasting started.
+     */
+    public int getHighWaterMark()
+    {
+        return m_HighWaterMark;
+    }
+
+    //endregion
+
+    /**
+     * Clears the tracked usage.  Called when the pool is allocated.
+     */
+    public void reset(FrameBufferPool pool)
+    {
+        m_HighWaterMark = 0;
+        m_LowestFreeCount = pool.getFreeCount();
+        m_IdlePeriodStartTime = System.nanoTime();
+    }
+
+    /**
+     * Whether or not another buffer should be allocated because the pool ran dry.
+     */
+    public boolean shouldGrow(FrameBufferPool pool)
+    {
+        return m_GrowOnStarvation && pool.getBufferCount() < Math.min(m_MaxBuffers, pool.getCapacity());
+    }
+
+    /**
+     * Records the state of the pool after a buffer was acquired.
+     */
+    public void onBufferAcquired(FrameBufferPool pool)
+    {
+        int free = pool.getFreeCount();
+        int inUse = pool.getBufferCount() - free;
+
+        m_HighWaterMark = Math.max(m_HighWaterMark, inUse);
+        m_LowestFreeCount = Math.min(m_LowestFreeCount, free);
+    }
+
+    /**
+     * Whether or not a free buffer should be released because the pool has had a spare for a whole idle period.  This begins a new
+     * idle period each time the period elapses.
+     */
+    public boolean shouldShrink(FrameBufferPool pool)
+    {
+        if (m_ShrinkIdleMilliseconds <= 0)
+        {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if ((now - m_IdlePeriodStartTime) / 1000000 < m_ShrinkIdleMilliseconds)
+        {
+            return false;
+        }
+
+        boolean shrink = m_LowestFreeCount > 0 && pool.getFreeCount() > 0 && pool.getBufferCount() > m_MinBuffers;
+
+        m_IdlePeriodStartTime = now;
+        m_LowestFreeCount = pool.getFreeCount() - (shrink ? 1 : 0);
+
+        return shrink;
+    }
+}
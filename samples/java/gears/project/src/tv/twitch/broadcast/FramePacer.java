@@ -0,0 +1,175 @@
+package tv.twitch.broadcast;
+
+
+/**
+ * Paces captures to the broadcast framerate.  If frames are sent to the SDK faster than the target FPS it will simply release the extra
+ * buffers without encoding them which means the game wasted time doing the capture.
+ *
+ * Capture deadlines are laid out on a fixed grid from the first capture rather than measured from the previous capture so the error
+ * from the game's own frame timing doesn't accumulate and the average capture rate matches the target.  If the game falls more than a
+ * whole frame behind the missed deadlines are skipped rather than captured in a burst.
+ *
+ * A gap longer than IDLE_GAP_NANOS, such as a loading screen or a minimized window, isn't counted as missed deadlines.  The grid starts
+ * again from the next capture, as it does after restart() which the BroadcastController calls when pausing and resuming.
+ *
+ * The pacer also tracks how late each capture was relative to its deadline, which is the jitter the encoder sees.
+ */
+public class FramePacer
+{
+    public static final long IDLE_GAP_NANOS = 1000000000L;     //!< A capture this late means the game stopped rendering rather than fell behind.
+
+    protected int m_TargetFps = 0;
+    protected long m_IntervalNanos = 0;
+    protected long m_NextDeadline = 0;          //!< When the next capture is due in nanoseconds or 0 if the next frame should be captured.
+    protected long m_LastCaptureTime = 0;
+
+    protected long m_NumCaptures = 0;
+    protected long m_NumMissedDeadlines = 0;    //!< The deadlines which passed without a capture because the game was running too slowly.
+    protected long m_TotalJitterNanos = 0;
+    protected long m_MaxJitterNanos = 0;
+    protected long m_NumIntervals = 0;
+    protected long m_TotalIntervalNanos = 0;
+
+    public FramePacer()
+    {
+    }
+
+    public FramePacer(int targetFps)
+    {
+        reset(targetFps);
+    }
+
+    //region Properties
+
+    public int getTargetFps()
+    {
+        return m_TargetFps;
+    }
+
+    /**
+     * The number of frames captured since the last reset.
+     */
+    public long getCaptureCount()
+    {
+        return m_NumCaptures;
+    }
+
+    /**
+     * The number of capture deadlines which were skipped because the game wasn't rendering fast enough to make them.
+     */
+    public long getMissedDeadlineCount()
+    {
+        return m_NumMissedDeadlines;
+    }
+
+    /**
+     * The average time in milliseconds between a capture's deadline and when it actually happened.
+     */
+    public double getAverageJitterMilliseconds()
+    {
+        return m_NumCaptures > 0 ? m_TotalJitterNanos / (double)m_NumCaptures / 1000000.0 : 0;
+    }
+
+    /**
+     * The longest time in milliseconds between a capture's deadline and when it actually happened.
+     */
+    public double getMaxJitterMilliseconds()
+    {
+        return m_MaxJitterNanos / 1000000.0;
+    }
+
+    /**
+     * The capture rate actually achieved.
+     */
+    public double getActualFps()
+    {
+        return m_TotalIntervalNanos > 0 ? m_NumIntervals * 1000000000.0 / m_TotalIntervalNanos : 0;
+    }
+
+    /**
+     * The time in nanoseconds until the next capture is due.  This will be 0 if a capture is due now.
+     */
+    public long getNanosUntilNextCapture(long now)
+    {
+        return m_NextDeadline == 0 ? 0 : Math.max(0, m_NextDeadline - now);
+    }
+
+    //endregion
+
+    /**
+     * Starts pacing at the given framerate and clears the statistics.  The next frame will be captured.
+     */
+    public void reset(int targetFps)
+    {
+        m_TargetFps = Math.max(1, targetFps);
+        m_IntervalNanos = 1000000000L / m_TargetFps;
+        m_NextDeadline = 0;
+        m_LastCaptureTime = 0;
+
+        m_NumCaptures = 0;
+        m_NumMissedDeadlines = 0;
+        m_TotalJitterNanos = 0;
+        m_MaxJitterNanos = 0;
+        m_NumIntervals = 0;
+        m_TotalIntervalNanos = 0;
+    }
+
+    /**
+     * Starts a new grid from the next frame, which will be captured, without clearing the statistics.  Used after a pause when the time
+     * the game wasn't rendering shouldn't be counted as missed deadlines.
+     */
+    public void restart()
+    {
+        m_NextDeadline = 0;
+        m_LastCaptureTime = 0;
+    }
+
+    /**
+     * Determines whether or not a frame rendered at the given time should be captured.  If so, the capture is recorded and the next
+     * deadline is scheduled so this should be called exactly once per rendered frame.
+     * @param now The current time from System.nanoTime()
+     */
+    public boolean shouldCapture(long now)
+    {
+        if (m_IntervalNanos == 0)
+        {
+            return true;
+        }
+
+        if (m_NextDeadline != 0 && now - m_NextDeadline < 0)
+        {
+            return false;
+        }
+
+        // the game has been idle so start again instead of counting every interval in the gap as missed
+        if (m_NextDeadline == 0 || now - m_NextDeadline > IDLE_GAP_NANOS)
+        {
+            restart();
+            m_NextDeadline = now;
+        }
+
+        long jitter = now - m_NextDeadline;
+        m_TotalJitterNanos += jitter;
+        m_MaxJitterNanos = Math.max(m_MaxJitterNanos, jitter);
+        m_NumCaptures++;
+
+        if (m_LastCaptureTime != 0)
+        {
+            m_TotalIntervalNanos += now - m_LastCaptureTime;
+            m_NumIntervals++;
+        }
+        m_LastCaptureTime = now;
+
+        m_NextDeadline += m_IntervalNanos;
+
+        // more than a frame behind so skip the deadlines we missed instead of trying to catch up
+        if (now - m_NextDeadline >= 0)
+        {
+            long missed = (now - m_NextDeadline) / m_IntervalNanos + 1;
+            m_NumMissedDeadlines += missed;
+            m_NextDeadline += missed * m_IntervalNanos;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,232 @@
+package tv.twitch.broadcast;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Measures how long it takes to open a TCP connection to each ingest server.  All the servers are probed at once on a small pool of
+ * background threads so the whole list can be ranked in about the time it takes to reach the slowest server.  Connect latency is a
+ * cheap stand-in for distance to the server and is used to pick which servers are worth a full bandwidth test.
+ */
+public class IngestProbe
+{
+    public static final int DEFAULT_RTMP_PORT = 1935;
+    public static final int MAX_THREADS = 8;
+
+    protected final IngestServer[] m_Servers;
+    protected final AtomicLongArray m_ConnectMilliseconds;     //!< The best connect time of each server or -1 if unreachable.
+    protected final AtomicInteger m_NumRemaining;
+
+    protected int m_TimeoutMilliseconds = 2000;
+    protected int m_NumAttempts = 2;
+    protected ExecutorService m_Executor = null;
+
+    public IngestProbe(IngestServer[] servers)
+    {
+        m_Servers = servers;
+        m_ConnectMilliseconds = new AtomicLongArray(servers.length);
+        m_NumRemaining = new AtomicInteger(servers.length);
+
+        for (int i = 0; i < servers.length; ++i)
+        {
+            m_ConnectMilliseconds.set(i, -1);
+        }
+    }
+
+    //region Properties
+
+    /**
+     * How long to wait for each connection before treating the server as unreachable.
+     */
+    public int getTimeoutMilliseconds()
+    {
+        return m_TimeoutMilliseconds;
+    }
+    public void setTimeoutMilliseconds(int value)
+    {
+        m_TimeoutMilliseconds = Math.max(1, value);
+    }
+
+    /**
+     * The number of connections made to each server.  The fastest is kept.
+     */
+    public int getNumAttempts()
+    {
+        return m_NumAttempts;
+    }
+    public void setNumAttempts(int value)
+    {
+        m_NumAttempts = Math.max(1, value);
+    }
+
+    public IngestServer[] getServers()
+    {
+        return m_Servers;
+    }
+
+    public boolean getIsDone()
+    {
+        return m_NumRemaining.get() <= 0;
+    }
+
+    /**
+     * The fraction of servers which have been probed between [0,1].
+     */
+    public float getProgress()
+    {
+        return m_Servers.length == 0 ? 1.0f : 1.0f - (float)Math.max(0, m_NumRemaining.get()) / (float)m_Servers.length;
+    }
+
+    /**
+     * The best connect time in milliseconds to the server at the given index or -1 if it could not be reached or hasn't been probed yet.
+     */
+    public long getConnectMilliseconds(int index)
+    {
+        return m_ConnectMilliseconds.get(index);
+    }
+
+    //endregion
+
+    /**
+     * Starts probing all the servers in the background.
+     */
+    public void start()
+    {
+        if (m_Executor != null || m_Servers.length == 0)
+        {
+            return;
+        }
+
+        m_Executor = Executors.newFixedThreadPool(Math.min(MAX_THREADS, m_Servers.length), new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Twitch Ingest Probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (int i = 0; i < m_Servers.length; ++i)
+        {
+            final int index = i;
+            m_Executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        m_ConnectMilliseconds.set(index, probe(m_Servers[index]));
+                    }
+                    finally
+                    {
+                        m_NumRemaining.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        // the threads exit once the queued probes are done
+        m_Executor.shutdown();
+    }
+
+    /**
+     * Abandons any probes which haven't finished.
+     */
+    public void cancel()
+    {
+        if (m_Executor != null)
+        {
+            m_Executor.shutdownNow();
+        }
+
+        m_NumRemaining.set(0);
+    }
+
+    protected long probe(IngestServer server)
+    {
+        InetSocketAddress address = getAddress(server);
+        if (address == null || address.isUnresolved())
+        {
+            return -1;
+        }
+
+        long best = -1;
+
+        for (int attempt = 0; attempt < m_NumAttempts && !Thread.currentThread().isInterrupted(); ++attempt)
+        {
+            Socket socket = new Socket();
+            try
+            {
+                long start = System.nanoTime();
+                socket.connect(address, m_TimeoutMilliseconds);
+                long elapsed = (System.nanoTime() - start) / 1000000;
+
+                best = best < 0 ? elapsed : Math.min(best, elapsed);
+            }
+            catch (Exception x)
+            {
+                // unreachable on this attempt
+            }
+            finally
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (Exception x)
+                {
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Extracts the host and port from a server url of the form rtmp://host[:port]/app/{stream_key}.
+     */
+    protected static InetSocketAddress getAddress(IngestServer server)
+    {
+        String url = server.serverUrl;
+        if (url == null)
+        {
+            return null;
+        }
+
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+
+        int end = url.indexOf('/', start);
+        String authority = end < 0 ? url.substring(start) : url.substring(start, end);
+
+        int port = DEFAULT_RTMP_PORT;
+        int colon = authority.lastIndexOf(':');
+        if (colon >= 0)
+        {
+            try
+            {
+                port = Integer.parseInt(authority.substring(colon + 1));
+            }
+            catch (NumberFormatException x)
+            {
+                return null;
+            }
+            authority = authority.substring(0, colon);
+        }
+
+        if (authority.length() == 0)
+        {
+            return null;
+        }
+
+        // resolves the host name
+        return new InetSocketAddress(authority, port);
+    }
+}
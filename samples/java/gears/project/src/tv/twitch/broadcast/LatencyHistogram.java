@@ -0,0 +1,204 @@
+package tv.twitch.broadcast;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A fixed size histogram of durations in nanoseconds.  Buckets are linear within each power of two and there are 64 of them per power of
+ * two so any recorded value is reported to within about 1.5% regardless of magnitude.  Recording doesn't allocate or lock and is safe to
+ * do from multiple threads so it can be left in the frame loop.
+ *
+ * Percentiles are read by taking a Snapshot which should be done off the hot path.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The distribution at a point in time.  All values are in nanoseconds.
+     */
+    public static final class Snapshot
+    {
+        private final long m_Count;
+        private final long m_Mean;
+        private final long m_Max;
+        private final long m_P50;
+        private final long m_P99;
+        private final long m_P999;
+
+        Snapshot(long count, long mean, long max, long p50, long p99, long p999)
+        {
+            m_Count = count;
+            m_Mean = mean;
+            m_Max = max;
+            m_P50 = p50;
+            m_P99 = p99;
+            m_P999 = p999;
+        }
+
+        public long getCount()
+        {
+            return m_Count;
+        }
+
+        public long getMeanNanos()
+        {
+            return m_Mean;
+        }
+
+        public long getMaxNanos()
+        {
+            return m_Max;
+        }
+
+        public long getP50Nanos()
+        {
+            return m_P50;
+        }
+
+        public long getP99Nanos()
+        {
+            return m_P99;
+        }
+
+        public long getP999Nanos()
+        {
+            return m_P999;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", m_Count, m_Mean / 1e6, m_P50 / 1e6, m_P99 / 1e6, m_P999 / 1e6, m_Max / 1e6);
+        }
+    }
+
+    protected static final int SUB_BUCKET_BITS = 6;
+    protected static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    protected static final int MAX_MAGNITUDE = 40;         //!< Values of 2^40 ns (about 18 minutes) and up are clamped.
+    protected static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+    protected final AtomicLongArray m_Counts = new AtomicLongArray(SUB_BUCKET_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT);
+    protected final AtomicLong m_TotalCount = new AtomicLong(0);
+    protected final AtomicLong m_TotalNanos = new AtomicLong(0);
+    protected final AtomicLong m_Max = new AtomicLong(0);
+
+    public LatencyHistogram()
+    {
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long value = Math.min(Math.max(0, nanos), MAX_VALUE);
+
+        m_Counts.incrementAndGet(getBucket(value));
+        m_TotalCount.incrementAndGet();
+        m_TotalNanos.addAndGet(value);
+
+        long max = m_Max.get();
+        while (value > max && !m_Max.compareAndSet(max, value))
+        {
+            max = m_Max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given start time.
+     * @param startNanos The start time from System.nanoTime()
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Clears all the recorded values.  Values recorded by other threads during the reset may be lost.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < m_Counts.length(); ++i)
+        {
+            m_Counts.set(i, 0);
+        }
+
+        m_TotalCount.set(0);
+        m_TotalNanos.set(0);
+        m_Max.set(0);
+    }
+
+    public long getCount()
+    {
+        return m_TotalCount.get();
+    }
+
+    /**
+     * Finds the value which the given fraction of the recorded values are at or below.
+     * @param percentile The percentile between 0 and 100
+     * @return The value in nanoseconds or 0 if nothing has been recorded
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        long total = 0;
+        for (int i = 0; i < m_Counts.length(); ++i)
+        {
+            total += m_Counts.get(i);
+        }
+
+        if (total == 0)
+        {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100.0));
+        long seen = 0;
+
+        for (int i = 0; i < m_Counts.length(); ++i)
+        {
+            seen += m_Counts.get(i);
+            if (seen >= target)
+            {
+                return Math.min(getBucketHighestValue(i), m_Max.get());
+            }
+        }
+
+        return m_Max.get();
+    }
+
+    public Snapshot getSnapshot()
+    {
+        long count = m_TotalCount.get();
+        long mean = count > 0 ? m_TotalNanos.get() / count : 0;
+
+        return new Snapshot(count, mean, m_Max.get(), getPercentileNanos(50), getPercentileNanos(99), getPercentileNanos(99.9));
+    }
+
+    protected static int getBucket(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+        {
+            return (int)value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + sub;
+    }
+
+    protected static long getBucketHighestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKET_COUNT)
+        {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        long sub = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+
+        return ((SUB_BUCKET_COUNT + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,275 @@
+package tv.twitch.chat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Shares badge data between channels.  Most of the badge art is the same in every channel so the pixels of identical texture sheets are
+ * stored once and referenced by each channel's badge data.  Only the pixel arrays are shared.  Each channel keeps its own sheet objects
+ * since their other fields, such as the sheet index the channel's badge tokens refer to, can differ.  The shared pixels must not be
+ * modified.  Channels are reference counted while joined and after the last reference is released
+ * the channel is kept in a least recently used list so rejoining it doesn't need a download.
+ *
+ * The cache isn't thread safe.  The ChatController uses it from the game thread.
+ */
+public class ChatBadgeCache
+{
+    protected static class ChannelEntry
+    {
+        public final ChatBadgeData data;
+        public int refCount = 1;
+
+        public ChannelEntry(ChatBadgeData data)
+        {
+            this.data = data;
+        }
+    }
+
+    protected static class SheetEntry
+    {
+        public final byte[] buffer;
+        public int refCount = 0;
+
+        public SheetEntry(byte[] buffer)
+        {
+            this.buffer = buffer;
+        }
+    }
+
+    protected HashMap<String, ChannelEntry> m_Channels = new HashMap<String, ChannelEntry>();               //!< Channels currently in use.
+    protected LinkedHashMap<String, ChatBadgeData> m_RecentChannels = new LinkedHashMap<String, ChatBadgeData>(16, 0.75f, true);  //!< Released channels, least recently used first.
+    protected HashMap<String, SheetEntry> m_Sheets = new HashMap<String, SheetEntry>();                     //!< The shared sheet pixels by content key.
+    protected int m_MaxRecentChannels = 8;
+
+    protected long m_NumHits = 0;
+    protected long m_NumSharedSheets = 0;
+
+    public ChatBadgeCache()
+    {
+    }
+
+    //#region Properties
+
+    /**
+     * The number of released channels kept.
+     */
+    public int getMaxRecentChannels()
+    {
+        return m_MaxRecentChannels;
+    }
+    public void setMaxRecentChannels(int value)
+    {
+        m_MaxRecentChannels = Math.max(0, value);
+        trimRecentChannels();
+    }
+
+    public int getNumChannels()
+    {
+        return m_Channels.size() + m_RecentChannels.size();
+    }
+
+    /**
+     * The number of distinct texture sheet pixel arrays held.
+     */
+    public int getNumSheets()
+    {
+        return m_Sheets.size();
+    }
+
+    /**
+     * The number of times a channel's badges were found in the cache.
+     */
+    public long getNumHits()
+    {
+        return m_NumHits;
+    }
+
+    /**
+     * The number of texture sheets whose pixels were replaced by identical pixels already in the cache.
+     */
+    public long getNumSharedSheets()
+    {
+        return m_NumSharedSheets;
+    }
+
+    //#endregion
+
+    /**
+     * Takes a reference to the badges of a channel if they're cached.
+     * @return The badge data or null if it needs to be downloaded
+     */
+    public ChatBadgeData acquire(String channelName)
+    {
+        ChannelEntry entry = m_Channels.get(channelName);
+        if (entry != null)
+        {
+            entry.refCount++;
+            m_NumHits++;
+            return entry.data;
+        }
+
+        ChatBadgeData data = m_RecentChannels.remove(channelName);
+        if (data != null)
+        {
+            m_Channels.put(channelName, new ChannelEntry(data));
+            m_NumHits++;
+        }
+
+        return data;
+    }
+
+    /**
+     * Adds newly downloaded badges and takes a reference to them.  The pixels of the texture sheets are replaced with the shared copies
+     * where possible.
+     * @return The badge data to use
+     */
+    public ChatBadgeData put(String channelName, ChatBadgeData data)
+    {
+        if (m_Channels.containsKey(channelName) || m_RecentChannels.containsKey(channelName))
+        {
+            removeChannel(channelName);
+        }
+
+        if (data.textures != null)
+        {
+            for (int i = 0; i < data.textures.length; ++i)
+            {
+                acquireSheet(data.textures[i]);
+            }
+        }
+
+        m_Channels.put(channelName, new ChannelEntry(data));
+        return data;
+    }
+
+    /**
+     * Releases a reference to the badges of a channel.  When the last reference is released the badges are kept as recently used.
+     */
+    public void release(String channelName)
+    {
+        ChannelEntry entry = m_Channels.get(channelName);
+        if (entry == null)
+        {
+            return;
+        }
+
+        entry.refCount--;
+        if (entry.refCount > 0)
+        {
+            return;
+        }
+
+        m_Channels.remove(channelName);
+        m_RecentChannels.put(channelName, entry.data);
+        trimRecentChannels();
+    }
+
+    /**
+     * Drops the released channels.  Channels still in use are kept.
+     */
+    public void clearRecentChannels()
+    {
+        Iterator<Map.Entry<String, ChatBadgeData>> iter = m_RecentChannels.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            releaseSheets(iter.next().getValue());
+            iter.remove();
+        }
+    }
+
+    protected void removeChannel(String channelName)
+    {
+        ChannelEntry entry = m_Channels.remove(channelName);
+        if (entry != null)
+        {
+            releaseSheets(entry.data);
+        }
+
+        ChatBadgeData data = m_RecentChannels.remove(channelName);
+        if (data != null)
+        {
+            releaseSheets(data);
+        }
+    }
+
+    protected void trimRecentChannels()
+    {
+        Iterator<Map.Entry<String, ChatBadgeData>> iter = m_RecentChannels.entrySet().iterator();
+        while (m_RecentChannels.size() > m_MaxRecentChannels && iter.hasNext())
+        {
+            releaseSheets(iter.next().getValue());
+            iter.remove();
+        }
+    }
+
+    /**
+     * Points the sheet at the shared copy of its pixels, adding them if they're new.
+     */
+    protected void acquireSheet(ChatTextureSheet sheet)
+    {
+        if (sheet == null || sheet.buffer == null)
+        {
+            return;
+        }
+
+        String key = getSheetKey(sheet);
+        SheetEntry entry = m_Sheets.get(key);
+
+        if (entry != null && Arrays.equals(entry.buffer, sheet.buffer))
+        {
+            entry.refCount++;
+            m_NumSharedSheets++;
+            sheet.buffer = entry.buffer;
+            return;
+        }
+
+        // on the unlikely checksum collision the new sheet simply isn't shared
+        if (entry == null)
+        {
+            entry = new SheetEntry(sheet.buffer);
+            entry.refCount = 1;
+            m_Sheets.put(key, entry);
+        }
+    }
+
+    protected void releaseSheets(ChatBadgeData data)
+    {
+        if (data.textures == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < data.textures.length; ++i)
+        {
+            ChatTextureSheet sheet = data.textures[i];
+            if (sheet == null || sheet.buffer == null)
+            {
+                continue;
+            }
+
+            String key = getSheetKey(sheet);
+            SheetEntry entry = m_Sheets.get(key);
+            if (entry != null && entry.buffer == sheet.buffer)
+            {
+                entry.refCount--;
+                if (entry.refCount <= 0)
+                {
+                    m_Sheets.remove(key);
+                }
+            }
+        }
+    }
+
+    protected static String getSheetKey(ChatTextureSheet sheet)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(sheet.buffer);
+
+        return String.format("%dx%d:%d:%08x", sheet.width, sheet.height, sheet.buffer.length, crc.getValue());
+    }
+}
@@ -0,0 +1,375 @@
+package tv.twitch.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * All the chat events received during one call to ChatController.update() grouped by channel.  This lets a UI refresh once per frame
+ * rather than once per callback.
+ *
+ * The batch and its lists are reused from one update to the next so dispatching doesn't allocate once the lists have grown to the
+ * size of a typical frame.  getNumAllocations() counts the times they had to grow.  The contents are only valid during the callback and
+ * must be copied if they are needed afterwards.  A channel's storage is dropped once it has been delivered disconnected.
+ *
+ * Clearing a user's messages only applies to the messages received before it.  Each cleared user comes with the number of messages
+ * which were in the batch at the time so messages the user sent after being cleared aren't wiped along with the older ones.
+ */
+public class ChatEventBatch
+{
+    /**
+     * A growable list which keeps its storage when cleared.
+     */
+    public static class EventList<T>
+    {
+        protected final ChatEventBatch m_Batch;
+        protected Object[] m_Items;
+        protected int m_Count = 0;
+
+        protected EventList(ChatEventBatch batch)
+        {
+            m_Batch = batch;
+            m_Items = new Object[8];
+        }
+
+        public int size()
+        {
+            return m_Count;
+        }
+
+        public boolean isEmpty()
+        {
+            return m_Count == 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(int i)
+        {
+            if (i < 0 || i >= m_Count)
+            {
+                throw new IndexOutOfBoundsException(String.format("Index %d with %d events", i, m_Count));
+            }
+
+            return (T)m_Items[i];
+        }
+
+        protected void add(T item)
+        {
+            reserve(1);
+            m_Items[m_Count++] = item;
+        }
+
+        protected void addAll(T[] items)
+        {
+            reserve(items.length);
+            System.arraycopy(items, 0, m_Items, m_Count, items.length);
+            m_Count += items.length;
+        }
+
+        protected void clear()
+        {
+            for (int i = 0; i < m_Count; ++i)
+            {
+                m_Items[i] = null;
+            }
+
+            m_Count = 0;
+        }
+
+        protected void reserve(int n)
+        {
+            if (m_Count + n <= m_Items.length)
+            {
+                return;
+            }
+
+            Object[] items = new Object[Math.max(m_Items.length * 2, m_Count + n)];
+            System.arraycopy(m_Items, 0, items, 0, m_Count);
+            m_Items = items;
+            m_Batch.m_NumAllocations++;
+        }
+    }
+
+    /**
+     * The events for a single channel.
+     */
+    public static class ChannelEvents
+    {
+        protected final String m_ChannelName;
+        protected boolean m_Changed = false;        //!< Whether or not the channel is in the batch.
+        protected boolean m_Connected = false;
+        protected boolean m_Disconnected = false;
+        protected boolean m_AllMessagesCleared = false;
+        protected boolean m_IsConnected = false;     //!< Whether or not the last connection event was a connect.
+
+        protected final EventList<ChatRawMessage> m_RawMessages;
+        protected final EventList<ChatTokenizedMessage> m_TokenizedMessages;
+        protected final EventList<ChatUserInfo> m_JoinedUsers;
+        protected final EventList<ChatUserInfo> m_LeftUsers;
+        protected final EventList<ChatUserInfo> m_UpdatedUsers;
+        protected final EventList<String> m_ClearedUsers;
+        protected int[] m_ClearedRawIndices = new int[8];           //!< The number of raw messages in the batch when each user was cleared.
+        protected int[] m_ClearedTokenizedIndices = new int[8];     //!< The number of tokenized messages in the batch when each user was cleared.
+
+        protected ChannelEvents(ChatEventBatch batch, String channelName)
+        {
+            m_ChannelName = channelName;
+            m_RawMessages = new EventList<ChatRawMessage>(batch);
+            m_TokenizedMessages = new EventList<ChatTokenizedMessage>(batch);
+            m_JoinedUsers = new EventList<ChatUserInfo>(batch);
+            m_LeftUsers = new EventList<ChatUserInfo>(batch);
+            m_UpdatedUsers = new EventList<ChatUserInfo>(batch);
+            m_ClearedUsers = new EventList<String>(batch);
+        }
+
+        //#region Properties
+
+        public String getChannelName()
+        {
+            return m_ChannelName;
+        }
+
+        /**
+         * Whether or not the channel was connected during the update.
+         */
+        public boolean getConnected()
+        {
+            return m_Connected;
+        }
+
+        /**
+         * Whether or not the channel was disconnected during the update.
+         */
+        public boolean getDisconnected()
+        {
+            return m_Disconnected;
+        }
+
+        /**
+         * Whether or not the whole message history was cleared.  Messages received afterwards in the same update are still in getRawMessages().
+         */
+        public boolean getAllMessagesCleared()
+        {
+            return m_AllMessagesCleared;
+        }
+
+        public EventList<ChatRawMessage> getRawMessages()
+        {
+            return m_RawMessages;
+        }
+
+        public EventList<ChatTokenizedMessage> getTokenizedMessages()
+        {
+            return m_TokenizedMessages;
+        }
+
+        public EventList<ChatUserInfo> getJoinedUsers()
+        {
+            return m_JoinedUsers;
+        }
+
+        public EventList<ChatUserInfo> getLeftUsers()
+        {
+            return m_LeftUsers;
+        }
+
+        public EventList<ChatUserInfo> getUpdatedUsers()
+        {
+            return m_UpdatedUsers;
+        }
+
+        /**
+         * The users whose messages were cleared.  A clear only applies to the user's messages received before it, which includes those
+         * in the batch before getClearedRawMessageIndex() or getClearedTokenizedMessageIndex().
+         */
+        public EventList<String> getClearedUsers()
+        {
+            return m_ClearedUsers;
+        }
+
+        /**
+         * The number of raw messages which were in the batch when the i'th cleared user was cleared.  The user's messages from this
+         * index on were received after the clear and should be kept.
+         */
+        public int getClearedRawMessageIndex(int i)
+        {
+            checkClearedUser(i);
+            return m_ClearedRawIndices[i];
+        }
+
+        /**
+         * The number of tokenized messages which were in the batch when the i'th cleared user was cleared.  The user's messages from
+         * this index on were received after the clear and should be kept.
+         */
+        public int getClearedTokenizedMessageIndex(int i)
+        {
+            checkClearedUser(i);
+            return m_ClearedTokenizedIndices[i];
+        }
+
+        //#endregion
+
+        protected void checkClearedUser(int i)
+        {
+            if (i < 0 || i >= m_ClearedUsers.size())
+            {
+                throw new IndexOutOfBoundsException(String.format("Index %d with %d cleared users", i, m_ClearedUsers.size()));
+            }
+        }
+
+        protected void clear()
+        {
+            m_Changed = false;
+            m_Connected = false;
+            m_Disconnected = false;
+            m_AllMessagesCleared = false;
+            m_RawMessages.clear();
+            m_TokenizedMessages.clear();
+            m_JoinedUsers.clear();
+            m_LeftUsers.clear();
+            m_UpdatedUsers.clear();
+            m_ClearedUsers.clear();
+        }
+    }
+
+    protected HashMap<String, ChannelEvents> m_Channels = new HashMap<String, ChannelEvents>();
+    protected List<ChannelEvents> m_ChangedChannels = new ArrayList<ChannelEvents>();
+    protected long m_NumAllocations = 0;
+
+    public ChatEventBatch()
+    {
+    }
+
+    //#region Properties
+
+    /**
+     * The number of channels with events in this batch.
+     */
+    public int getNumChannels()
+    {
+        return m_ChangedChannels.size();
+    }
+
+    public ChannelEvents getChannel(int i)
+    {
+        return m_ChangedChannels.get(i);
+    }
+
+    public boolean isEmpty()
+    {
+        return m_ChangedChannels.isEmpty();
+    }
+
+    /**
+     * The number of times storage has been allocated for events since the batch was created.  This should stop increasing once the
+     * batch has seen a typical frame.
+     */
+    public long getNumAllocations()
+    {
+        return m_NumAllocations;
+    }
+
+    //#endregion
+
+    protected void addConnected(String channelName)
+    {
+        ChannelEvents events = getChannelEvents(channelName);
+        events.m_Connected = true;
+        events.m_IsConnected = true;
+    }
+
+    protected void addDisconnected(String channelName)
+    {
+        ChannelEvents events = getChannelEvents(channelName);
+        events.m_Disconnected = true;
+        events.m_IsConnected = false;
+    }
+
+    protected void addRawMessages(String channelName, ChatRawMessage[] messages)
+    {
+        getChannelEvents(channelName).m_RawMessages.addAll(messages);
+    }
+
+    protected void addTokenizedMessages(String channelName, ChatTokenizedMessage[] messages)
+    {
+        getChannelEvents(channelName).m_TokenizedMessages.addAll(messages);
+    }
+
+    protected void addUserChanges(String channelName, ChatUserInfo[] joinList, ChatUserInfo[] leaveList, ChatUserInfo[] userInfoList)
+    {
+        ChannelEvents events = getChannelEvents(channelName);
+        events.m_JoinedUsers.addAll(joinList);
+        events.m_LeftUsers.addAll(leaveList);
+        events.m_UpdatedUsers.addAll(userInfoList);
+    }
+
+    protected void addMessagesCleared(String channelName, String username)
+    {
+        ChannelEvents events = getChannelEvents(channelName);
+
+        if (username == null || username.length() == 0)
+        {
+            // anything received earlier in the batch is gone too
+            events.m_AllMessagesCleared = true;
+            events.m_RawMessages.clear();
+            events.m_TokenizedMessages.clear();
+            events.m_ClearedUsers.clear();
+        }
+        else
+        {
+            int i = events.m_ClearedUsers.size();
+            events.m_ClearedUsers.add(username);
+
+            if (i >= events.m_ClearedRawIndices.length)
+            {
+                int length = events.m_ClearedUsers.m_Items.length;
+                events.m_ClearedRawIndices = Arrays.copyOf(events.m_ClearedRawIndices, length);
+                events.m_ClearedTokenizedIndices = Arrays.copyOf(events.m_ClearedTokenizedIndices, length);
+                m_NumAllocations++;
+            }
+
+            // remember where the clear happened so later messages from the user survive it
+            events.m_ClearedRawIndices[i] = events.m_RawMessages.size();
+            events.m_ClearedTokenizedIndices[i] = events.m_TokenizedMessages.size();
+        }
+    }
+
+    protected void clear()
+    {
+        for (int i = 0; i < m_ChangedChannels.size(); ++i)
+        {
+            ChannelEvents events = m_ChangedChannels.get(i);
+
+            // a channel which has left doesn't need its storage kept around
+            if (events.m_Disconnected && !events.m_IsConnected)
+            {
+                m_Channels.remove(events.m_ChannelName);
+            }
+
+            events.clear();
+        }
+
+        m_ChangedChannels.clear();
+    }
+
+    protected ChannelEvents getChannelEvents(String channelName)
+    {
+        ChannelEvents events = m_Channels.get(channelName);
+        if (events == null)
+        {
+            events = new ChannelEvents(this, channelName);
+            m_Channels.put(channelName, events);
+            m_NumAllocations++;
+        }
+
+        if (!events.m_Changed)
+        {
+            events.m_Changed = true;
+            m_ChangedChannels.add(events);
+        }
+
+        return events;
+    }
+}
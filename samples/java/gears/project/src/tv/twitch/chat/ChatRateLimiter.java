@@ -0,0 +1,111 @@
+package tv.twitch.chat;
+
+
+/**
+ * Enforces the chat server's message rate limit.  The limit applies to the user across every channel they're connected to, so the
+ * ChatController shares one limiter between the send queues of all its channels.
+ *
+ * The limiter keeps a log of the times of the most recent sends and allows a send when fewer than the limit fall within the last
+ * period.  This is a sliding window, so no window of the period's length ever holds more than the limit, which a token bucket starting
+ * full doesn't guarantee.
+ *
+ * The limiter isn't thread safe.  The ChatController uses it from the game thread.
+ */
+public class ChatRateLimiter
+{
+    // the default Twitch limit for users who aren't moderators
+    public static final int DEFAULT_MESSAGES = 20;
+    public static final long DEFAULT_PERIOD_MILLISECONDS = 30000;
+
+    protected long[] m_SendTimes = new long[DEFAULT_MESSAGES];     //!< A ring of the times of the most recent sends in nanoseconds.
+    protected int m_Head = 0;                                       //!< The oldest send in the ring.
+    protected int m_Count = 0;
+    protected long m_PeriodNanos = DEFAULT_PERIOD_MILLISECONDS * 1000000L;
+
+    public ChatRateLimiter()
+    {
+    }
+
+    public ChatRateLimiter(int messages, long periodMilliseconds)
+    {
+        setRateLimit(messages, periodMilliseconds);
+    }
+
+    //#region Properties
+
+    /**
+     * Sets the number of messages which may be sent in any period, such as the higher limit for moderators.  Sends already made still
+     * count against the new limit.
+     */
+    public void setRateLimit(int messages, long periodMilliseconds)
+    {
+        messages = Math.max(1, messages);
+
+        // keep the most recent sends
+        long[] times = new long[messages];
+        int count = Math.min(m_Count, messages);
+        for (int i = 0; i < count; ++i)
+        {
+            times[i] = m_SendTimes[(m_Head + m_Count - count + i) % m_SendTimes.length];
+        }
+
+        m_SendTimes = times;
+        m_Head = 0;
+        m_Count = count;
+        m_PeriodNanos = Math.max(1, periodMilliseconds) * 1000000L;
+    }
+
+    public int getMessages()
+    {
+        return m_SendTimes.length;
+    }
+
+    public long getPeriodMilliseconds()
+    {
+        return m_PeriodNanos / 1000000L;
+    }
+
+    //#endregion
+
+    /**
+     * The number of messages which may be sent right now.
+     * @param now The current time from System.nanoTime()
+     */
+    public int getAvailable(long now)
+    {
+        expire(now);
+        return m_SendTimes.length - m_Count;
+    }
+
+    /**
+     * Records a send if the limit allows it.
+     * @param now The current time from System.nanoTime()
+     * @return Whether or not the message may be sent
+     */
+    public boolean tryAcquire(long now)
+    {
+        expire(now);
+
+        if (m_Count >= m_SendTimes.length)
+        {
+            return false;
+        }
+
+        m_SendTimes[(m_Head + m_Count) % m_SendTimes.length] = now;
+        m_Count++;
+
+        return true;
+    }
+
+    /**
+     * Forgets the sends which have left the window.
+     */
+    protected void expire(long now)
+    {
+        while (m_Count > 0 && now - m_SendTimes[m_Head] >= m_PeriodNanos)
+        {
+            m_Head = (m_Head + 1) % m_SendTimes.length;
+            m_Count--;
+        }
+    }
+}
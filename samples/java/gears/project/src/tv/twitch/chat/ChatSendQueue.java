@@ -0,0 +1,313 @@
+package tv.twitch.chat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import tv.twitch.ErrorCode;
+
+
+/**
+ * Queues outgoing chat messages for a channel and sends them no faster than the server allows.  Sending is limited by a ChatRateLimiter
+ * which may be shared with the queues of other channels since the server's limit covers all of a user's channels.  Moderation commands
+ * go in their own lane and are always sent before regular chat.  Messages which fail to send are retried with an exponential backoff and
+ * dropped after too many attempts.
+ *
+ * The queue isn't thread safe.  The ChatController uses it from the game thread.
+ */
+public class ChatSendQueue
+{
+    /**
+     * The lanes messages are queued in, highest priority first.
+     */
+    public enum Priority
+    {
+        Moderation,     //!< Commands such as timeouts and bans.
+        Normal,         //!< Regular chat messages.
+    }
+
+    /**
+     * The chat commands which moderate the channel, without the leading / or .
+     */
+    protected static final Set<String> MODERATION_COMMANDS = new HashSet<String>(Arrays.asList(
+        "timeout", "untimeout", "ban", "unban", "clear", "slow", "slowoff", "subscribers", "subscribersoff", "r9kbeta", "r9kbetaoff",
+        "emoteonly", "emoteonlyoff", "mod", "unmod"));
+
+    /**
+     * Sends a message to the server.
+     */
+    public interface Sender
+    {
+        ErrorCode send(String message);
+    }
+
+    protected static class PendingMessage
+    {
+        public final String message;
+        public final long queuedTime;
+        public int attempts = 0;
+        public long nextAttemptTime = 0;
+
+        public PendingMessage(String message, long queuedTime)
+        {
+            this.message = message;
+            this.queuedTime = queuedTime;
+        }
+    }
+
+    protected final ArrayDeque<PendingMessage>[] m_Lanes;
+    protected final ChatRateLimiter m_RateLimiter;
+
+    protected int m_MaxQueuedMessages = 100;
+    protected int m_MaxAttempts = 4;
+    protected long m_InitialBackoffMilliseconds = 1000;
+    protected long m_MaxBackoffMilliseconds = 30000;
+
+    protected long m_NumSent = 0;
+    protected long m_NumRetries = 0;
+    protected long m_NumDropped = 0;
+    protected long m_NumRejected = 0;
+    protected long m_TotalLatencyNanos = 0;
+    protected long m_MaxLatencyNanos = 0;
+
+    /**
+     * Creates a queue with its own rate limiter.
+     */
+    public ChatSendQueue()
+    {
+        this(new ChatRateLimiter());
+    }
+
+    /**
+     * @param rateLimiter The limiter, which may be shared with other queues
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ChatSendQueue(ChatRateLimiter rateLimiter)
+    {
+        m_RateLimiter = rateLimiter;
+
+        Priority[] priorities = Priority.values();
+        m_Lanes = new ArrayDeque[priorities.length];
+        for (int i = 0; i < priorities.length; ++i)
+        {
+            m_Lanes[i] = new ArrayDeque<PendingMessage>();
+        }
+    }
+
+    //#region Properties
+
+    /**
+     * The limiter the queue sends through.  Changing its limit affects every queue sharing it.
+     */
+    public ChatRateLimiter getRateLimiter()
+    {
+        return m_RateLimiter;
+    }
+
+    /**
+     * The most messages which may be waiting.  Messages sent when the queue is full are rejected.
+     */
+    public int getMaxQueuedMessages()
+    {
+        return m_MaxQueuedMessages;
+    }
+    public void setMaxQueuedMessages(int value)
+    {
+        m_MaxQueuedMessages = Math.max(1, value);
+    }
+
+    /**
+     * The number of times a message is tried before it's dropped.
+     */
+    public int getMaxAttempts()
+    {
+        return m_MaxAttempts;
+    }
+    public void setMaxAttempts(int value)
+    {
+        m_MaxAttempts = Math.max(1, value);
+    }
+
+    public int getNumQueued()
+    {
+        int count = 0;
+        for (int i = 0; i < m_Lanes.length; ++i)
+        {
+            count += m_Lanes[i].size();
+        }
+
+        return count;
+    }
+
+    public int getNumQueued(Priority priority)
+    {
+        return m_Lanes[priority.ordinal()].size();
+    }
+
+    public long getNumSent()
+    {
+        return m_NumSent;
+    }
+
+    public long getNumRetries()
+    {
+        return m_NumRetries;
+    }
+
+    /**
+     * The number of messages dropped after failing too many times.
+     */
+    public long getNumDropped()
+    {
+        return m_NumDropped;
+    }
+
+    /**
+     * The number of messages rejected because the queue was full.
+     */
+    public long getNumRejected()
+    {
+        return m_NumRejected;
+    }
+
+    /**
+     * The average time from queueing a message to sending it.
+     */
+    public float getAverageLatencyMilliseconds()
+    {
+        return m_NumSent == 0 ? 0 : m_TotalLatencyNanos / (m_NumSent * 1000000.0f);
+    }
+
+    public float getMaxLatencyMilliseconds()
+    {
+        return m_MaxLatencyNanos / 1000000.0f;
+    }
+
+    //#endregion
+
+    /**
+     * Decides which lane a message belongs in.  Chat commands which moderate the channel are prioritized.  The whole command word is
+     * matched so commands which only look something up, such as /mods, stay in the normal lane.
+     */
+    public static Priority classify(String message)
+    {
+        if (message.startsWith("/") || message.startsWith("."))
+        {
+            int end = message.indexOf(' ');
+            String command = message.substring(1, end < 0 ? message.length() : end).toLowerCase();
+            if (MODERATION_COMMANDS.contains(command))
+            {
+                return Priority.Moderation;
+            }
+        }
+
+        return Priority.Normal;
+    }
+
+    /**
+     * Adds a message to the back of its lane.
+     * @return Whether or not there was room for the message
+     */
+    public boolean enqueue(String message, Priority priority)
+    {
+        if (getNumQueued() >= m_MaxQueuedMessages)
+        {
+            m_NumRejected++;
+            return false;
+        }
+
+        m_Lanes[priority.ordinal()].addLast(new PendingMessage(message, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Sends as many messages as the rate limit allows, highest priority first.  A lane whose oldest message is backing off holds up the
+     * rest of that lane so messages aren't reordered.
+     * @return The number of messages sent
+     */
+    public int update(Sender sender)
+    {
+        int sent = 0;
+        for (Priority priority : Priority.values())
+        {
+            sent += update(sender, priority);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Sends as many messages from one lane as the rate limit allows.
+     * @return The number of messages sent
+     */
+    public int update(Sender sender, Priority priority)
+    {
+        return update(sender, priority, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sends up to the given number of messages from one lane as the rate limit allows.  Used to take turns between the channels sharing
+     * the limiter and to send the high priority lanes of every channel before any of the lower ones.
+     * @return The number of messages sent
+     */
+    public int update(Sender sender, Priority priority, int maxMessages)
+    {
+        long now = System.nanoTime();
+        int sent = 0;
+
+        ArrayDeque<PendingMessage> lane = m_Lanes[priority.ordinal()];
+        while (!lane.isEmpty() && sent < maxMessages)
+        {
+            PendingMessage pending = lane.peekFirst();
+            if (pending.attempts > 0 && pending.nextAttemptTime - now > 0)
+            {
+                break;
+            }
+
+            // a failed attempt may still have counted against the limit
+            if (!m_RateLimiter.tryAcquire(now))
+            {
+                break;
+            }
+            pending.attempts++;
+
+            ErrorCode ret = sender.send(pending.message);
+            if (ErrorCode.succeeded(ret))
+            {
+                lane.removeFirst();
+
+                long latency = now - pending.queuedTime;
+                m_TotalLatencyNanos += latency;
+                m_MaxLatencyNanos = Math.max(m_MaxLatencyNanos, latency);
+                m_NumSent++;
+                sent++;
+            }
+            else if (pending.attempts >= m_MaxAttempts)
+            {
+                lane.removeFirst();
+                m_NumDropped++;
+            }
+            else
+            {
+                long backoff = Math.min(m_MaxBackoffMilliseconds, m_InitialBackoffMilliseconds << (pending.attempts - 1));
+                pending.nextAttemptTime = now + backoff * 1000000L;
+                m_NumRetries++;
+                break;
+            }
+        }
+
+        return sent;
+    }
+
+    /**
+     * Drops all the waiting messages.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < m_Lanes.length; ++i)
+        {
+            m_Lanes[i].clear();
+        }
+    }
+}
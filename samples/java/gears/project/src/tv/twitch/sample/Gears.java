@@ -83,7 +83,6 @@ public class Gears
     private String clientSecret = "";
 
     private BroadcastController broadcastController = null;
-    private long lastCaptureTime = 0;						//!< The timestamp of the last frame capture.
     private long metaDataSpanSequenceId = -1; 
     private IngestTester ingestTester = null;
 
@@ -371,6 +370,12 @@ public class Gears
 
 
     public static void main(String[] args) {
+        // the asynchronous pixel buffer capture copies into the frame buffers from Java, which is opt in
+        if (System.getProperty("tv.twitch.broadcast.nativeMemory") == null)
+        {
+            System.setProperty("tv.twitch.broadcast.nativeMemory", "true");
+        }
+
         new Gears().execute();
         System.exit(0);
     }
@@ -544,9 +549,13 @@ public class Gears
                 }
                 else
                 {
-                    ingestTester = broadcastController.startIngestTest();
+                    // only test servers without a recent result and only run the full bandwidth test on the 3 closest of those.
+                    // this still blocks broadcasting until it's done.
+                    ingestTester = broadcastController.startStaleIngestTest(3);
                     if (ingestTester != null)
                     {
+                        // move on from a server as soon as its bitrate settles
+                        ingestTester.setUseAdaptiveDuration(true);
                         ingestTester.setListener(ingestTesterListener);
                     }
                 }
@@ -707,30 +716,21 @@ public class Gears
 
     private void submitFrame()
     {
-        if (!broadcastController.getIsBroadcasting() || broadcastController.getIsPaused())
-        {
-            return;
-        }
-
-        long curTime = System.nanoTime();
-        long nanoPerFrame = 1000000000 / broadcastFramesPerSecond;
-
         // If you send frames too quickly to the SDK (based on the broadcast FPS you configured) it will not be able 
         // to make use of them all.  In that case, it will simply release buffers without using them which means the
-        // game wasted time doing the capture.  To mitigate this, the app should pace the captures to the broadcast FPS.
-        long captureDelta = curTime - lastCaptureTime;
-        boolean isTimeForNextCapture = captureDelta >= nanoPerFrame;
-
-        if (!isTimeForNextCapture)
+        // game wasted time doing the capture.  The controller paces the captures to the broadcast FPS.
+        if (!broadcastController.shouldCaptureThisFrame())
         {
             return;
         }
 
-        FrameBuffer buffer = broadcastController.getNextFreeBuffer();
-        broadcastController.captureFrameBuffer_ReadPixels(buffer);
-        broadcastController.submitFrame(buffer);
+        // read the frame back asynchronously when pixel buffers are available so the render loop doesn't stall on glReadPixels
+        if (broadcastController.getPixelBufferCapture() == null && LwjglPixelBufferCapture.getIsSupported())
+        {
+            broadcastController.setPixelBufferCapture(new LwjglPixelBufferCapture(2));
+        }
 
-        lastCaptureTime = curTime;
+        broadcastController.captureFrame();
     }
 
     private void initBroadcasting()
@@ -746,6 +746,18 @@ public class Gears
         broadcastController.setClientId(clientId);
         broadcastController.setClientSecret(clientSecret);
 
+        // remember ingest test results between runs in the user's application data
+        IngestResultCache ingestResultCache = new IngestResultCache(IngestResultCache.getDefaultFile());
+        ingestResultCache.load();
+        broadcastController.setIngestResultCache(ingestResultCache);
+
+        // submit frames on a separate thread so the encoder can't stall the render loop
+        broadcastController.setFrameSubmitter(new FrameSubmitter(2, FrameSubmitter.QueueFullPolicy.DropOldest));
+
+        // track the bitrate the uplink can sustain.  restarting the broadcast on each change is left off since every restart drops the
+        // stream for viewers and needs long hold times, see setRestartForAdaptiveBitrate.
+        broadcastController.setAdaptiveBitrateController(new AdaptiveBitrateController());
+
         if (!broadcastController.initialize())
         {
             broadcastController = null;
@@ -779,6 +791,9 @@ public class Gears
         chatController.setAuthToken(broadcastController.getAuthToken());
         chatController.setEmoticonParsingModeMode(emoticonParsingMode);
 
+        // receive chat on a background thread so bursts of messages don't cause hitches
+        chatController.setUseEventPump(true);
+
         if (!chatController.initialize())
         {
             chatController = null;